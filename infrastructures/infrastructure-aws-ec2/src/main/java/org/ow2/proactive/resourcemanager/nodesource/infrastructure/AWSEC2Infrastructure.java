@@ -28,9 +28,6 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 import java.security.KeyException;
 import java.util.*;
 import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.node.Node;
@@ -43,7 +40,6 @@ import org.ow2.proactive.resourcemanager.rmnode.RMDeployingNode;
 import org.ow2.proactive.resourcemanager.utils.RMNodeStarter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Maps;
 
 import lombok.Getter;
 
@@ -82,9 +78,6 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
 
     private transient InitScriptGenerator initScriptGenerator = new InitScriptGenerator();
 
-    // Lock for acquireNodes (dynamic policy)
-    private final transient Lock dynamicAcquireLock = new ReentrantLock();
-
     private boolean isCreatedInfrastructure = false;
 
     private boolean isUsingAutoGeneratedKeyPair = false;
@@ -252,45 +245,56 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
     }
 
     @Override
-    public synchronized void acquireNodes(final int numberOfNodes, final long startTimeout,
-            final Map<String, ?> nodeConfiguration) {
+    protected boolean recreateInstances(int nbInstances) {
         nodeSource.executeInParallel(() -> {
-            try {
-                if (dynamicAcquireLock.tryLock(startTimeout, TimeUnit.MILLISECONDS)) {
-                    logger.info(String.format("Acquiring %d nodes with the configuration: %s.",
-                                              numberOfNodes,
-                                              nodeConfiguration));
-                    try {
-                        AWSEC2CustomizableParameter deployParams = getNodeSpecificParameters(nodeConfiguration);
-                        int nbInstancesToDeploy = calNumberOfInstancesToDeploy(numberOfNodes,
-                                                                               nodeConfiguration,
-                                                                               numberOfInstances,
-                                                                               numberOfNodesPerInstance);
-                        if (nbInstancesToDeploy <= 0) {
-                            logger.info("No need to deploy new instances, acquireNodes skipped.");
-                            return;
-                        }
-                        deployInstancesWithNodes(nbInstancesToDeploy, false, deployParams);
-                    } catch (Exception e) {
-                        logger.error("Error during node acquisition", e);
-                    } finally {
-                        dynamicAcquireLock.unlock();
-                    }
-                } else {
-                    logger.info("Infrastructure is busy, acquireNodes skipped.");
-                }
-            } catch (InterruptedException e) {
-                logger.info("acquireNodes skipped because of InterruptedException:", e);
-            }
+            deployInstancesWithNodes(nbInstances, false);
         });
+        return true;
+    }
+
+    @Override
+    protected boolean redeployNodesOnInstancesWithoutNodes(Set<String> instanceIds) {
+        // once the infrastructure is created, the acquisition of a node
+        // redeploys the nodes on the instances without nodes
+        if (!isInfrastructureCreated()) {
+            return false;
+        }
+        acquireNode();
+        return true;
+    }
+
+    @Override
+    public void acquireNodes(final int numberOfNodes, final long startTimeout, final Map<String, ?> nodeConfiguration) {
+        requestNodesAcquisition(numberOfNodes, startTimeout, nodeConfiguration);
+    }
+
+    @Override
+    protected void deployRequestedNodes(int numberOfNodes, Map<String, ?> nodeConfiguration) {
+        AWSEC2CustomizableParameter deployParams = getNodeSpecificParameters(nodeConfiguration);
+        DeploymentPlan plan = planDeployment(numberOfNodes,
+                                             nodeConfiguration,
+                                             numberOfInstances,
+                                             numberOfNodesPerInstance);
+        if (plan.getNbInstancesToCreate() <= 0) {
+            logger.info("No need to deploy new instances, acquireNodes skipped.");
+            return;
+        }
+        deployInstancesWithNodes(plan.getNbInstancesToCreate(), plan.getNbNodesOnLastInstance(), false, deployParams);
     }
 
     private void deployInstancesWithNodes(int nbInstancesToDeploy, boolean reuseCreatedInstances) {
-        deployInstancesWithNodes(nbInstancesToDeploy, reuseCreatedInstances, getDefaultNodeParameters());
+        deployInstancesWithNodes(nbInstancesToDeploy,
+                                 numberOfNodesPerInstance,
+                                 reuseCreatedInstances,
+                                 getDefaultNodeParameters());
     }
 
-    private void deployInstancesWithNodes(int nbInstancesToDeploy, boolean reuseCreatedInstances,
-            AWSEC2CustomizableParameter params) {
+    /**
+     * @param nbNodesOnLastInstance number of nodes deployed on one of the created instances,
+     * the other ones running numberOfNodesPerInstance nodes
+     */
+    private void deployInstancesWithNodes(int nbInstancesToDeploy, int nbNodesOnLastInstance,
+            boolean reuseCreatedInstances, AWSEC2CustomizableParameter params) {
         connectorIaasController.waitForConnectorIaasToBeUP();
 
         createAwsInfrastructureIfNeeded();
@@ -314,6 +318,7 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
                 logger.error("Failed to create the instance with the error: ", e);
                 return;
             }
+            registerDeployingInstances(instancesIds);
 
         } else {
 
@@ -328,9 +333,13 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
             existPersistedInstanceIds = true;
         }
 
-        // execute script on instances to deploy or redeploy nodes on them
+        // execute script on instances to deploy or redeploy nodes on them. A new request may
+        // need less nodes than numberOfNodesPerInstance on its last instance
+        int nbRemainingInstances = instancesIds.size();
         for (String currentInstanceId : instancesIds) {
-            deployNodesOnInstance(currentInstanceId, existPersistedInstanceIds, params);
+            int nbNodes = --nbRemainingInstances == 0 && !existPersistedInstanceIds ? nbNodesOnLastInstance
+                                                                                   : numberOfNodesPerInstance;
+            deployNodesOnInstance(currentInstanceId, nbNodes, existPersistedInstanceIds, params);
 
             // in all cases, we must remove the instance from the free
             // instance map as we tried everything to deploy nodes on it
@@ -370,8 +379,8 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
                                                                         keyPairName);
     }
 
-    private void deployNodesOnInstance(final String instanceId, final boolean existPersistedInstanceIds,
-            AWSEC2CustomizableParameter params) {
+    private void deployNodesOnInstance(final String instanceId, final int nbNodes,
+            final boolean existPersistedInstanceIds, AWSEC2CustomizableParameter params) {
         nodeSource.executeInParallel(() -> {
             //change the delimiter between the instanceId and region to make a valid nodeName
             String baseNodeName = getBaseNodeNameFromInstanceId(instanceId);
@@ -386,12 +395,12 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
                                                                             params.getAdditionalProperties(),
                                                                             nodeSource.getName(),
                                                                             baseNodeName,
-                                                                            numberOfNodesPerInstance,
+                                                                            nbNodes,
                                                                             getCredentials());
                 logger.info("start up script: " + scripts);
 
                 // declare nodes as "deploying" state to the RM
-                List<String> nodeNames = RMNodeStarter.getWorkersNodeNames(baseNodeName, numberOfNodesPerInstance);
+                List<String> nodeNames = RMNodeStarter.getWorkersNodeNames(baseNodeName, nbNodes);
                 List<String> deployingNodes = addMultipleDeployingNodes(nodeNames,
                                                                         scripts.toString(),
                                                                         "Nodes deployment on AWS EC2",
@@ -399,15 +408,18 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
                 logger.info("Deploying nodes: " + deployingNodes);
                 // run node.jar on the instance with the specified VM credentials
 
-                connectorIaasController.executeScriptWithKeyAuthentication(getInfrastructureId(),
-                                                                           instanceId,
-                                                                           scripts,
-                                                                           params.getVmUsername(),
-                                                                           getPersistedKeyPairInfo().getValue());
+                ScriptExecution scriptExecution = () -> connectorIaasController.executeScriptWithKeyAuthentication(getInfrastructureId(),
+                                                                                                                   instanceId,
+                                                                                                                   scripts,
+                                                                                                                   params.getVmUsername(),
+                                                                                                                   getPersistedKeyPairInfo().getValue());
+                try {
+                    scriptExecution.execute();
+                } catch (ScriptNotExecutedException e) {
+                    handleScriptNotExecutedException(existPersistedInstanceIds, instanceId, e, scriptExecution);
+                }
             } catch (KeyException e) {
                 logger.error("A problem occurred while acquiring user credentials path. The node startup script will be not executed.");
-            } catch (ScriptNotExecutedException e) {
-                handleScriptNotExecutedException(existPersistedInstanceIds, instanceId, e);
             }
         });
     }
@@ -475,33 +487,13 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
     @Override
     protected void unregisterNodeAndRemoveInstanceIfNeeded(final String instanceId, final String nodeName,
             final String infrastructureId, final boolean terminateInstanceIfEmpty) {
-        setPersistedInfraVariable(() -> {
-            // First read from the runtime variables map
-            //noinspection unchecked
-            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
-            // Make modifications to the nodesPerInstance map
-            if (nodesPerInstance.get(instanceId) != null) {
-                nodesPerInstance.get(instanceId).remove(nodeName);
-                logger.info("Removed node: " + nodeName);
-                if (nodesPerInstance.get(instanceId).isEmpty()) {
-                    logger.info("Instance :" + instanceId + " is empty ");
-                    if (terminateInstanceIfEmpty) {
-                        logger.info("Call terminate instance for: " + instanceId);
-                        connectorIaasController.terminateInstance(infrastructureId, instanceId);
-                        logger.info("Instance terminated: " + instanceId);
-                    }
-                    nodesPerInstance.remove(instanceId);
-                    logger.info("Removed instance: " + instanceId);
-                }
-                // Finally write to the runtime variable map
-                decrementNumberOfAcquiredNodesWithLockAndPersist();
-                persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-            } else {
-                logger.error("Cannot remove node " + nodeName + " because instance " + instanceId +
-                             " is not registered");
-            }
-            return null;
-        });
+        boolean instanceRemoved = updateInstanceState(instanceId, () -> removeNodeFromInstance(instanceId,
+                                                                                               nodeName,
+                                                                                               true));
+        if (instanceRemoved && terminateInstanceIfEmpty) {
+            logger.info("Call terminate instance for: " + instanceId);
+            requestInstanceTermination(instanceId);
+        }
     }
 
     @Override
@@ -522,7 +514,7 @@ public class AWSEC2Infrastructure extends AbstractAddonInfrastructure {
         // Delete the instance when instance doesn't contain any other deploying nodes or persisted nodes
         if (!existOtherDeployingNodesOnInstance(currentNode, instanceId) &&
             !existRegisteredNodesOnInstance(instanceId)) {
-            connectorIaasController.terminateInstance(getInfrastructureId(), instanceId);
+            requestInstanceTermination(instanceId);
         }
     }
 
@@ -426,6 +426,107 @@ public class AWSEC2InfrastructureTest {
                                                                                      anyString());
     }
 
+    @Test
+    public void testLastInstanceDeployedWithRemainingNodes() throws KeyException {
+        awsec2Infrastructure.configure(AWS_KEY,
+                                       AWS_SECRET_KEY,
+                                       NUMBER_OF_INSTANCES,
+                                       NUMBER_OF_NODES_PER_INSTANCE,
+                                       IMAGE,
+                                       VM_USERNAME,
+                                       VM_KEY_PAIR_NAME,
+                                       VM_PRIVATE_KEY,
+                                       VM_TYPE,
+                                       RAM,
+                                       CORES,
+                                       SECURITY_GROUP_NAMES,
+                                       SUBNET_ID,
+                                       RM_HOSTNAME,
+                                       CONNECTOR_IAAS_URL,
+                                       NODE_JAR_URL,
+                                       ADDITIONAL_PROPERTIES,
+                                       NODE_TIMEOUT,
+                                       STARTUP_SCRIPT,
+                                       SPOT_PRICE);
+
+        awsec2Infrastructure.connectorIaasController = connectorIaasController;
+
+        when(nodeSource.getAdministrator()).thenReturn(client);
+
+        when(client.getCredentials()).thenReturn(Credentials.getCredentialsBase64(rmCreds.getBytes()));
+
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+
+        when(initScriptGenerator.buildLinuxScript(anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyString(),
+                                                  anyInt(),
+                                                  anyString())).thenReturn(INIT_SCRIPTS);
+        doAnswer((Answer<Object>) invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(nodeSource).executeInParallel(any(Runnable.class));
+
+        doReturn(new ArrayList<>()).when(awsec2Infrastructure).addMultipleDeployingNodes(anyListOf(String.class),
+                                                                                         anyString(),
+                                                                                         anyString(),
+                                                                                         anyLong());
+        doReturn(0).when(awsec2Infrastructure).getNbDeployingNodes();
+
+        when(connectorIaasController.createAwsEc2InstancesWithOptions(INFRASTRUCTURE_ID,
+                                                                      INFRASTRUCTURE_ID,
+                                                                      IMAGE,
+                                                                      2,
+                                                                      CORES,
+                                                                      RAM,
+                                                                      VM_TYPE,
+                                                                      SPOT_PRICE,
+                                                                      SECURITY_GROUP_NAMES,
+                                                                      SUBNET_ID,
+                                                                      null,
+                                                                      null,
+                                                                      VM_USERNAME,
+                                                                      VM_KEY_PAIR_NAME)).thenReturn(Sets.newHashSet("123",
+                                                                                                                    "456"));
+
+        // 4 nodes with 3 nodes per instance: a full instance and an instance running 1 node
+        awsec2Infrastructure.deployRequestedNodes(4, Collections.emptyMap());
+
+        verify(initScriptGenerator).buildLinuxScript(anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     eq(NUMBER_OF_NODES_PER_INSTANCE),
+                                                     anyString());
+        verify(initScriptGenerator).buildLinuxScript(anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     anyString(),
+                                                     eq(1),
+                                                     anyString());
+        verify(connectorIaasController, times(2)).executeScriptWithKeyAuthentication(anyString(),
+                                                                                     anyString(),
+                                                                                     anyListOf(String.class),
+                                                                                     anyString(),
+                                                                                     anyString());
+    }
+
     @Test
     public void testRemoveNode() throws ProActiveException, RMException {
         final String instanceId = "instance-id";
@@ -469,7 +570,7 @@ public class AWSEC2InfrastructureTest {
 
         verify(proActiveRuntime).killNode(nodeName);
 
-        verify(connectorIaasController).terminateInstance(INFRASTRUCTURE_ID, instanceIdWithRegion);
+        verify(connectorIaasController, timeout(10000)).terminateInstance(INFRASTRUCTURE_ID, instanceIdWithRegion);
 
         assertThat(awsec2Infrastructure.getNodesPerInstancesMap().isEmpty(), is(true));
 
@@ -507,6 +608,8 @@ public class AWSEC2InfrastructureTest {
 
         when(nodeInformation.getName()).thenReturn("nodename");
 
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+
         awsec2Infrastructure.notifyAcquiredNode(node);
 
         assertThat(awsec2Infrastructure.getNodesPerInstancesMapCopy().get("123").isEmpty(), is(false));
@@ -529,7 +632,7 @@ public class AWSEC2InfrastructureTest {
 
         awsec2Infrastructure.notifyDeployingNodeLost(deployingNodeUrl);
 
-        verify(connectorIaasController).terminateInstance(INFRASTRUCTURE_ID, awsInstanceId);
+        verify(connectorIaasController, timeout(10000)).terminateInstance(INFRASTRUCTURE_ID, awsInstanceId);
     }
 
     @Test
@@ -556,7 +659,81 @@ public class AWSEC2InfrastructureTest {
         // when the removed deploying node are the last node of the instance, the instance should be removed
         when(awsec2Infrastructure.getDeployingAndLostNodes()).thenReturn(Collections.singletonList(deployingNode2));
         awsec2Infrastructure.notifyDeployingNodeLost(deployingNodeUrl2);
-        verify(connectorIaasController).terminateInstance(INFRASTRUCTURE_ID, awsInstanceId);
+        verify(connectorIaasController, timeout(10000)).terminateInstance(INFRASTRUCTURE_ID, awsInstanceId);
+    }
+
+    @Test
+    public void testScriptNotRetriedOnNewInstance() throws ScriptNotExecutedException {
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+
+        awsec2Infrastructure.handleScriptNotExecutedException(false,
+                                                              "123",
+                                                              new ScriptNotExecutedException(new Exception("ssh failed")),
+                                                              scriptExecution);
+
+        verify(awsec2Infrastructure, never()).listExistingInstances();
+        verify(awsec2Infrastructure, never()).recreateInstances(anyInt());
+        verify(scriptExecution, never()).execute();
+    }
+
+    @Test
+    public void testMissingSavedInstanceRecreated() throws ScriptNotExecutedException {
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+        awsec2Infrastructure.getNodesPerInstancesMap().put("123", Sets.newHashSet("node1"));
+        doReturn(Sets.newHashSet("456")).when(awsec2Infrastructure).listExistingInstances();
+
+        awsec2Infrastructure.handleScriptNotExecutedException(true,
+                                                              "123",
+                                                              new ScriptNotExecutedException(new Exception("ssh failed")),
+                                                              scriptExecution);
+
+        assertThat(awsec2Infrastructure.getNodesPerInstancesMapCopy().containsKey("123"), is(false));
+        verify(awsec2Infrastructure).recreateInstances(1);
+        verify(nodeSource).executeInParallel(any(Runnable.class));
+        verify(scriptExecution, never()).execute();
+    }
+
+    @Test
+    public void testScriptRetriedOnSavedInstance() throws ScriptNotExecutedException, InterruptedException {
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        doThrow(new ScriptNotExecutedException(new Exception("ssh failed"))).doNothing()
+                                                                            .when(scriptExecution)
+                                                                            .execute();
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+        doReturn(Sets.newHashSet("123")).when(awsec2Infrastructure).listExistingInstances();
+        doReturn(new RetryPolicy(3, 10, 10, 10000)).when(awsec2Infrastructure).getInstanceRecoveryRetryPolicy();
+
+        awsec2Infrastructure.handleScriptNotExecutedException(true,
+                                                              "123",
+                                                              new ScriptNotExecutedException(new Exception("ssh failed")),
+                                                              scriptExecution);
+
+        // the failed deployment is the first attempt, the second retry succeeds
+        verify(scriptExecution, timeout(10000).times(2)).execute();
+        Thread.sleep(200);
+        verify(scriptExecution, times(2)).execute();
+        verify(awsec2Infrastructure, never()).recreateInstances(anyInt());
+    }
+
+    @Test
+    public void testScriptAbandonedAfterMaxAttempts() throws ScriptNotExecutedException, InterruptedException {
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        doThrow(new ScriptNotExecutedException(new Exception("ssh failed"))).when(scriptExecution).execute();
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+        // an instance which cannot be listed is supposed to exist
+        doReturn(null).when(awsec2Infrastructure).listExistingInstances();
+        doReturn(new RetryPolicy(3, 10, 10, 10000)).when(awsec2Infrastructure).getInstanceRecoveryRetryPolicy();
+
+        awsec2Infrastructure.handleScriptNotExecutedException(true,
+                                                              "123",
+                                                              new ScriptNotExecutedException(new Exception("ssh failed")),
+                                                              scriptExecution);
+
+        verify(scriptExecution, timeout(10000).times(2)).execute();
+        Thread.sleep(200);
+        verify(scriptExecution, times(2)).execute();
+        verify(awsec2Infrastructure, never()).recreateInstances(anyInt());
     }
 
     @Test
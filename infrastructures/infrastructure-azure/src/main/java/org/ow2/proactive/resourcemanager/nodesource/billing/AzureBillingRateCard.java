@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.time.Instant;
 import java.util.*;
 
 import org.apache.log4j.Logger;
@@ -56,20 +57,25 @@ public class AzureBillingRateCard {
 
     private String regionInfo;
 
-    private HashMap<String, LinkedHashMap<String, Double>> metersRates;
+    // Immutable table of the rates by meter id, replaced as a whole on update so that it is read without copy nor lock
+    private volatile Map<String, MeterRates> metersRates;
+
+    // On-disk cache of the whole rate card, or null to download it on each update
+    private final AzureRateCardCache rateCardCache;
 
     public AzureBillingRateCard(String subscriptionId, String offerId, String currency, String locale,
-            String regionInfo) {
+            String regionInfo, AzureRateCardCache rateCardCache) {
         LOGGER.debug("AzureBillingRateCard constructor");
         this.subscriptionId = subscriptionId;
         this.offerId = offerId;
         this.currency = currency;
         this.locale = locale;
         this.regionInfo = regionInfo;
-        this.metersRates = new HashMap<>();
+        this.rateCardCache = rateCardCache;
+        this.metersRates = Collections.emptyMap();
     }
 
-    private String queryRateCard(String accessToken) throws IOException {
+    private RateCardResponse queryRateCard(String accessToken, String etag) throws IOException {
 
         String endpoint = String.format("https://management.azure.com/subscriptions/%s/providers/Microsoft.Commerce/RateCard?api-version=%s&$filter=OfferDurableId eq '%s' and Currency eq '%s' and Locale eq '%s' and RegionInfo eq '%s'",
                                         this.subscriptionId,
@@ -84,8 +90,20 @@ public class AzureBillingRateCard {
         conn.setRequestMethod("GET");
         conn.addRequestProperty("Authorization", "Bearer " + accessToken);
         conn.addRequestProperty("Content-Type", "application/json");
+        if (etag != null) {
+            // The rate card is not downloaded again if it did not change
+            conn.addRequestProperty("If-None-Match", etag);
+        }
         conn.connect();
 
+        RateCardResponse response = new RateCardResponse();
+        response.etag = conn.getHeaderField("ETag");
+        if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.notModified = true;
+            conn.disconnect();
+            return response;
+        }
+
         // getInputStream() works only if Http returns a code between 200 and 299
         BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getResponseCode() / 100 == 2
                                                                                                            ? conn.getInputStream()
@@ -98,87 +116,169 @@ public class AzureBillingRateCard {
             builder.append(line);
         }
         reader.close();
-        return builder.toString();
+        response.body = builder.toString();
+        return response;
     }
 
-    String getRateCard(AzureBillingCredentials azureBillingCredentials) throws IOException, AzureBillingException {
-
-        // Get a new rate card
-        String queryResult = queryRateCard(azureBillingCredentials.renewOrOnlyGetAccessToken(false));
-
-        JsonObject jsonObject = JSON_PARSER.parse(queryResult).getAsJsonObject();
-        if (jsonObject.has("Meters")) {
-            LOGGER.debug("AzureBillingRateCard getRateCard rateCard is retrieved");
-            return queryResult;
-        } else if (jsonObject.has("error") &&
-                   jsonObject.get("error")
-                             .getAsJsonObject()
-                             .get("code")
-                             .getAsString()
-                             .equals("ExpiredAuthenticationToken")) {
-            LOGGER.debug("AzureBillingRateCard getRateCard ExpiredAuthenticationToken, renewing it.");
-            azureBillingCredentials.renewOrOnlyGetAccessToken(true);
-            getRateCard(azureBillingCredentials);
-        } else {
-            LOGGER.error("AzureBillingRateCard getRateCard AzureBillingException " + queryResult);
-            throw new AzureBillingException(queryResult);
+    RateCardResponse getRateCard(AzureBillingCredentials azureBillingCredentials, String etag)
+            throws IOException, AzureBillingException {
+
+        boolean tokenRenewed = false;
+        while (true) {
+            // Get a new rate card
+            RateCardResponse response = queryRateCard(azureBillingCredentials.renewOrOnlyGetAccessToken(false), etag);
+            if (response.notModified) {
+                LOGGER.debug("AzureBillingRateCard getRateCard rateCard is not modified");
+                return response;
+            }
+
+            JsonObject jsonObject = JSON_PARSER.parse(response.body).getAsJsonObject();
+            if (jsonObject.has("Meters")) {
+                LOGGER.debug("AzureBillingRateCard getRateCard rateCard is retrieved");
+                response.rateCard = jsonObject;
+                return response;
+            } else if (!tokenRenewed && jsonObject.has("error") &&
+                       jsonObject.get("error")
+                                 .getAsJsonObject()
+                                 .get("code")
+                                 .getAsString()
+                                 .equals("ExpiredAuthenticationToken")) {
+                LOGGER.debug("AzureBillingRateCard getRateCard ExpiredAuthenticationToken, renewing it.");
+                azureBillingCredentials.renewOrOnlyGetAccessToken(true);
+                tokenRenewed = true;
+            } else {
+                LOGGER.error("AzureBillingRateCard getRateCard AzureBillingException " + response.body);
+                throw new AzureBillingException(response.body);
+            }
         }
-        return null;
     }
 
-    // synchronized to ensure we dont try to use meter rates to compute the resources cost while we are updating them
-    synchronized public HashMap<String, LinkedHashMap<String, Double>> updateOrGetMetersRates(
-            AzureBillingCredentials azureBillingCredentials, HashSet<String> metersIdsSet, boolean update)
-            throws IOException, AzureBillingException {
-
-        if (update) {
+    /**
+     * Publishes the rates of the cached rate card, if any, so that they are available
+     * before the rate card is updated.
+     *
+     * @return whether cached rates are published
+     */
+    public boolean loadCachedMetersRates() {
+        if (this.rateCardCache == null) {
+            return false;
+        }
+        AzureRateCardCache.CachedRateCard cachedRateCard = this.rateCardCache.load(getRateCardKey());
+        if (cachedRateCard == null) {
+            return false;
+        }
+        LOGGER.info("AzureBillingRateCard loadCachedMetersRates " + cachedRateCard.getMetersRates().size() +
+                    " meter rates loaded from the rate card fetched at " +
+                    Instant.ofEpochMilli(cachedRateCard.getFetchTime()));
+        this.metersRates = cachedRateCard.getMetersRates();
+        return true;
+    }
 
-            LOGGER.debug("AzureBillingRateCard synchronized updateOrGetMetersRates (update)");
+    // synchronized to ensure the rates are not updated concurrently, their readers do not need to synchronize
+    synchronized public void updateMetersRates(AzureBillingCredentials azureBillingCredentials,
+            Set<String> metersIdsSet) throws IOException, AzureBillingException {
 
-            // Get a new rate card
-            String rateCardJson = getRateCard(azureBillingCredentials);
+        LOGGER.debug("AzureBillingRateCard synchronized updateMetersRates");
 
-            // Parse the json rate card
-            JsonArray rateJsonArray = JSON_PARSER.parse(rateCardJson).getAsJsonObject().get("Meters").getAsJsonArray();
+        String rateCardKey = getRateCardKey();
+        AzureRateCardCache.CachedRateCard cachedRateCard = this.rateCardCache == null ? null
+                                                                                      : this.rateCardCache.load(rateCardKey);
 
-            LOGGER.debug("AzureBillingRateCard synchronized updateOrGetMetersRates (update) nb rates queried " +
-                         rateJsonArray.size());
+        Map<String, MeterRates> allMetersRates;
+        if (cachedRateCard != null && this.rateCardCache.isFresh(cachedRateCard)) {
+            LOGGER.debug("AzureBillingRateCard synchronized updateMetersRates using the cached rate card fetched at " +
+                         Instant.ofEpochMilli(cachedRateCard.getFetchTime()));
+            allMetersRates = cachedRateCard.getMetersRates();
+        } else {
+            // Get a new rate card, unless the cached one did not change
+            RateCardResponse response = getRateCard(azureBillingCredentials,
+                                                    cachedRateCard == null ? null : cachedRateCard.getEtag());
+            String etag = response.etag;
+            if (response.notModified) {
+                allMetersRates = cachedRateCard.getMetersRates();
+                // a not modified response does not always repeat the ETag
+                if (etag == null) {
+                    etag = cachedRateCard.getEtag();
+                }
+            } else {
+                allMetersRates = parseMetersRates(response.rateCard);
+            }
+            if (this.rateCardCache != null) {
+                this.rateCardCache.store(rateCardKey,
+                                         new AzureRateCardCache.CachedRateCard(allMetersRates,
+                                                                               System.currentTimeMillis(),
+                                                                               etag));
+            }
+        }
 
-            // Clear all rates
-            this.metersRates.clear();
+        // Store all meter rates or only required ones according to metersIdsSet param
+        Map<String, MeterRates> newMetersRates;
+        if (metersIdsSet == null || metersIdsSet.isEmpty()) {
+            newMetersRates = allMetersRates;
+        } else {
+            newMetersRates = new HashMap<>();
+            for (String meterId : metersIdsSet) {
+                MeterRates meterRates = allMetersRates.get(meterId);
+                if (meterRates != null) {
+                    newMetersRates.put(meterId, meterRates);
+                }
+            }
+            newMetersRates = Collections.unmodifiableMap(newMetersRates);
+        }
 
-            // Update the meter rates map
-            Iterator<JsonElement> rateIterator = rateJsonArray.iterator();
-            while (rateIterator.hasNext()) {
-                JsonObject rate = rateIterator.next().getAsJsonObject();
-                String currentMeterId = rate.get("MeterId").getAsString();
+        // Publish the new table at once
+        this.metersRates = newMetersRates;
+        LOGGER.debug("AzureBillingRateCard synchronized updateMetersRates " + newMetersRates.size() +
+                     " meter rates stored");
+    }
 
-                // Store all meter rates or only required ones according to metersIdsSet param
-                boolean mustStoreRate = (metersIdsSet == null || metersIdsSet.isEmpty() ||
-                                         metersIdsSet.contains(currentMeterId));
+    private static Map<String, MeterRates> parseMetersRates(JsonObject rateCard) {
 
-                if (mustStoreRate) {
+        // Parse the json rate card
+        JsonArray rateJsonArray = rateCard.get("Meters").getAsJsonArray();
 
-                    LOGGER.debug("AzureBillingRateCard updateOrGetMetersRates (update) storing rate: " + rate);
+        LOGGER.debug("AzureBillingRateCard parseMetersRates nb rates queried " + rateJsonArray.size());
 
-                    // Get the meter rate(s)
-                    JsonObject meterRates = rate.get("MeterRates").getAsJsonObject();
+        Map<String, MeterRates> metersRates = new HashMap<>();
+        Iterator<JsonElement> rateIterator = rateJsonArray.iterator();
+        while (rateIterator.hasNext()) {
+            JsonObject rate = rateIterator.next().getAsJsonObject();
+            String currentMeterId = rate.get("MeterId").getAsString();
 
-                    this.metersRates.put(currentMeterId, new LinkedHashMap<>());
-                    for (Map.Entry<String, JsonElement> meterRatesEntry : meterRates.entrySet()) {
-                        this.metersRates.get(currentMeterId).put(meterRatesEntry.getKey(),
-                                                                 meterRatesEntry.getValue().getAsDouble());
-                    }
-                }
+            // Get the meter rate(s)
+            Map<String, Double> meterRates = new HashMap<>();
+            for (Map.Entry<String, JsonElement> meterRatesEntry : rate.get("MeterRates").getAsJsonObject().entrySet()) {
+                meterRates.put(meterRatesEntry.getKey(), meterRatesEntry.getValue().getAsDouble());
             }
-            LOGGER.debug("AzureBillingRateCard synchronized updateOrGetMetersRates (update) before return");
-            return null;
-        } else {
-            LOGGER.debug("AzureBillingRateCard synchronized updateOrGetMetersRates (get)");
-            HashMap<String, LinkedHashMap<String, Double>> metersRatesCopy = new HashMap<>(this.metersRates);
-            LOGGER.debug("AzureBillingRateCard synchronized updateOrGetMetersRates (get) before return");
-            return metersRatesCopy;
+            metersRates.put(currentMeterId, MeterRates.of(meterRates));
         }
+        return Collections.unmodifiableMap(metersRates);
+    }
+
+    private String getRateCardKey() {
+        return String.join("_", this.offerId, this.currency, this.locale, this.regionInfo);
+    }
+
+    /**
+     * @return the current meter rates, by meter id. The returned table is immutable,
+     * an update of the rates replacing it by a new one.
+     */
+    public Map<String, MeterRates> getMetersRates() {
+        return this.metersRates;
+    }
+
+    /**
+     * Response of a rate card query.
+     */
+    static class RateCardResponse {
+
+        boolean notModified = false;
+
+        String etag;
+
+        private String body;
+
+        private JsonObject rateCard;
     }
 
 }
@@ -25,9 +25,10 @@
  */
 package org.ow2.proactive.resourcemanager.nodesource.billing;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.LocalDateTime;
@@ -35,12 +36,12 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.microsoft.azure.management.resources.fluentcore.arm.ResourceUtils;
 
 import lombok.Getter;
@@ -51,8 +52,6 @@ public class AzureBillingResourceUsage {
 
     private static final Logger LOGGER = Logger.getLogger(AzureBillingResourceUsage.class);
 
-    private static final JsonParser JSON_PARSER = new JsonParser();
-
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss")
                                                                         .withZone(ZoneOffset.UTC);
 
@@ -66,6 +65,20 @@ public class AzureBillingResourceUsage {
     @Setter
     private LocalDateTime resourceUsageReportedEndDateTime = null;
 
+    // Continuation link of the resource usage history being accounted page by page, and the end of its period.
+    // They are persisted with the billing information so that an interrupted history is resumed instead of restarted.
+    @Getter
+    @Setter
+    private String resourceUsageNextLink = null;
+
+    @Getter
+    @Setter
+    private LocalDateTime resourceUsageNextLinkEndDateTime = null;
+
+    // Called once a page of a resource usage history with further pages is accounted, to persist the progress
+    @Setter
+    private Runnable resourceUsagePageListener = null;
+
     @Getter
     @Setter
     private double globalCost = 0;
@@ -80,7 +93,8 @@ public class AzureBillingResourceUsage {
     @Setter
     private double budgetPercentage;
 
-    private String resourceUriRegex;
+    // Matches the URIs of the resources of the node source, compiled once since it is matched against every usage record
+    private final Pattern resourceUriPattern;
 
     private HashSet<String> metersIds = null;
 
@@ -94,19 +108,22 @@ public class AzureBillingResourceUsage {
 
         // Since ResourceUtils.constructResourceId returns 'resourcegroups' against 'resourcesGroups' in the query result
         // we replace "resourcegroups" by "resourceGroups"
-        this.resourceUriRegex = ResourceUtils.constructResourceId(subscriptionId,
-                                                                  "(?i)" + resourceGroup, // Ignore case
-                                                                  "Microsoft.Compute",
-                                                                  ".*", // Any resource type (vm, disk,..)
-                                                                  "(?i)" + nodeSourceName + "[0-9]*(?:-[a-zA-Z0-9]+)?", // "<node source name><instance id>" followed (optional) by "-ipJHSdj82sd" for ip, disk, ...
-                                                                  "")
-                                             .replaceFirst("resourcegroups", "resourceGroups"); // bug in Azure API
-
-        LOGGER.debug("AzureBillingResourceUsage AzureBillingResourceUsage " + this.resourceUriRegex);
+        String resourceUriRegex = ResourceUtils.constructResourceId(subscriptionId,
+                                                                    "(?i)" + resourceGroup, // Ignore case
+                                                                    "Microsoft.Compute",
+                                                                    ".*", // Any resource type (vm, disk,..)
+                                                                    "(?i)" + nodeSourceName + "[0-9]*(?:-[a-zA-Z0-9]+)?", // "<node source name><instance id>" followed (optional) by "-ipJHSdj82sd" for ip, disk, ...
+                                                                    "")
+                                               .replaceFirst("resourcegroups", "resourceGroups"); // bug in Azure API
+
+        // Azure resource ids are case insensitive
+        this.resourceUriPattern = Pattern.compile(resourceUriRegex, Pattern.CASE_INSENSITIVE);
+
+        LOGGER.debug("AzureBillingResourceUsage AzureBillingResourceUsage " + this.resourceUriPattern);
     }
 
-    private String queryResourceUsageHistory(String reportedStartTime, String reportedEndTime, String accessToken)
-            throws IOException {
+    private ResourceUsageHistory queryResourceUsageHistory(String reportedStartTime, String reportedEndTime,
+            String accessToken, Map<String, MeterRates> metersRates) throws IOException {
 
         String endpoint = String.format("https://management.azure.com/subscriptions/%s/providers/Microsoft.Commerce/UsageAggregates?api-version=%s&reportedStartTime=%s&reportedEndTime=%s&aggregationGranularity=%s&showDetails=%s",
                                         this.subscriptionId,
@@ -117,6 +134,12 @@ public class AzureBillingResourceUsage {
                                         "true")
                                 .replaceAll(" ", "%20");
 
+        return queryResourceUsage(endpoint, accessToken, metersRates);
+    }
+
+    ResourceUsageHistory queryResourceUsage(String endpoint, String accessToken,
+            Map<String, MeterRates> metersRates) throws IOException {
+
         HttpURLConnection conn = (HttpURLConnection) new URL(endpoint).openConnection();
         conn.setRequestMethod("GET");
         conn.addRequestProperty("Authorization", "Bearer " + accessToken);
@@ -124,25 +147,203 @@ public class AzureBillingResourceUsage {
         conn.connect();
 
         // getInputStream() works only if Http returns a code between 200 and 299
-        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getResponseCode() / 100 == 2
-                                                                                                           ? conn.getInputStream()
-                                                                                                           : conn.getErrorStream(),
-                                                                         "UTF-8"));
-
-        StringBuilder builder = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            builder.append(line);
+        int responseCode = conn.getResponseCode();
+        try (Reader reader = new InputStreamReader(responseCode / 100 == 2 ? conn.getInputStream()
+                                                                           : conn.getErrorStream(),
+                                                   "UTF-8")) {
+            ResourceUsageHistory resourceUsageHistory = readResourceUsageHistory(reader, metersRates);
+            resourceUsageHistory.responseCode = responseCode;
+            return resourceUsageHistory;
+        }
+    }
+
+    /**
+     * Reads a resource usage history response as a stream: the usage records are
+     * read one by one, and the cost of the ones matching the resources of the node
+     * source is accumulated on the fly, so that the response is never held in memory.
+     */
+    ResourceUsageHistory readResourceUsageHistory(Reader reader, Map<String, MeterRates> metersRates)
+            throws IOException {
+
+        ResourceUsageHistory resourceUsageHistory = new ResourceUsageHistory();
+        try (JsonReader jsonReader = new JsonReader(reader)) {
+            jsonReader.setLenient(true);
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case "value":
+                        resourceUsageHistory.retrieved = true;
+                        jsonReader.beginArray();
+                        while (jsonReader.hasNext()) {
+                            readResourceUsage(jsonReader, metersRates, resourceUsageHistory);
+                        }
+                        jsonReader.endArray();
+                        break;
+                    case "error":
+                        readError(jsonReader, resourceUsageHistory);
+                        break;
+                    case "nextLink":
+                        if (jsonReader.peek() == JsonToken.STRING) {
+                            resourceUsageHistory.nextLink = jsonReader.nextString();
+                        } else {
+                            jsonReader.skipValue();
+                        }
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed resource usage history: " + e.getMessage(), e);
+        }
+        return resourceUsageHistory;
+    }
+
+    private void readResourceUsage(JsonReader jsonReader, Map<String, MeterRates> metersRates,
+            ResourceUsageHistory resourceUsageHistory) throws IOException {
+
+        String currentResourceUri = null;
+        String meterId = null;
+        String usageStartTime = null;
+        String usageEndTime = null;
+        double resourceQuantityInThatHour = 0;
+
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            if (!jsonReader.nextName().equals("properties")) {
+                jsonReader.skipValue();
+                continue;
+            }
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                String propertyName = jsonReader.nextName();
+                if (jsonReader.peek() == JsonToken.NULL) {
+                    jsonReader.nextNull();
+                    continue;
+                }
+                switch (propertyName) {
+                    case "instanceData":
+                        currentResourceUri = readResourceUri(jsonReader.nextString());
+                        break;
+                    case "quantity":
+                        resourceQuantityInThatHour = jsonReader.nextDouble();
+                        break;
+                    case "meterId":
+                        meterId = jsonReader.nextString();
+                        break;
+                    case "usageStartTime":
+                        usageStartTime = jsonReader.nextString();
+                        break;
+                    case "usageEndTime":
+                        usageEndTime = jsonReader.nextString();
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endObject();
+        resourceUsageHistory.nbResourceUsages++;
+
+        if (currentResourceUri == null || meterId == null) {
+            return;
+        }
+
+        // Here, we have a resource usage per hour (i.e.  (startDateTime) [8:00,9:00], [9:00,10:00], [10:00,11:00] (endDateTime))
+        // In case of multiple VM deployed, VM names = <node source name><number>
+        boolean resourceOfNodeSource = this.resourceUriPattern.matcher(currentResourceUri).matches();
+
+        // The debug messages are built only when they are logged, since this is called for every usage record
+        boolean debugEnabled = LOGGER.isDebugEnabled();
+        if (debugEnabled) {
+            LOGGER.debug("AzureBillingResourceUsage readResourceUsage " + currentResourceUri + " matches " +
+                         this.resourceUriPattern + " ? " + resourceOfNodeSource);
+        }
+
+        if (!resourceOfNodeSource) {
+            return;
+        }
+
+        if (debugEnabled) {
+            LOGGER.debug("AzureBillingResourceUsage readResourceUsage considering resource " + currentResourceUri +
+                         " meterId " + meterId + " quantity " + resourceQuantityInThatHour);
+        }
+
+        // Store meterId to make AzureBillingRateCard store meter rates with ids in meterIdsSet
+        resourceUsageHistory.metersIds.add(meterId);
+
+        // Get the meter rates of meterId
+        MeterRates meterRates = metersRates == null ? null : metersRates.get(meterId);
+
+        if (meterRates == null) {
+            // It should never happens but in that case do not consider this resource consumption in that period for the global cost
+            if (debugEnabled) {
+                LOGGER.debug("AzureBillingResourceUsage readResourceUsage cannot retrieve meter rate for " + meterId +
+                             ". The global usage cost will not include the resource " + currentResourceUri +
+                             " at this period.");
+            }
+            return;
+        }
+
+        double resourceCostInThatHour = meterRates.getCost(resourceQuantityInThatHour);
+        resourceUsageHistory.cost += resourceCostInThatHour;
+
+        if (debugEnabled) {
+            LOGGER.debug("AzureBillingResourceUsage readResourceUsage currentResourceUri " + currentResourceUri +
+                         " resourceCostInThatHour " + resourceCostInThatHour + " (now cost of the history=" +
+                         resourceUsageHistory.cost + ") for [" + usageStartTime + ";" + usageEndTime + "]");
         }
-        reader.close();
-        return builder.toString();
+    }
+
+    /**
+     * @return the resource URI found in the instance data of a resource usage, or null
+     */
+    private static String readResourceUri(String instanceData) throws IOException {
+
+        // We need to remove '\"' in "instanceData" property to avoid exception
+        try (JsonReader jsonReader = new JsonReader(new StringReader(instanceData.replace("\\", "")))) {
+            jsonReader.setLenient(true);
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                if (!jsonReader.nextName().equals("Microsoft.Resources")) {
+                    jsonReader.skipValue();
+                    continue;
+                }
+                jsonReader.beginObject();
+                while (jsonReader.hasNext()) {
+                    if (jsonReader.nextName().equals("resourceUri") && jsonReader.peek() == JsonToken.STRING) {
+                        return jsonReader.nextString();
+                    }
+                    jsonReader.skipValue();
+                }
+                jsonReader.endObject();
+            }
+            return null;
+        }
+    }
+
+    private static void readError(JsonReader jsonReader, ResourceUsageHistory resourceUsageHistory)
+            throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (name.equals("code") && jsonReader.peek() == JsonToken.STRING) {
+                resourceUsageHistory.errorCode = jsonReader.nextString();
+            } else if (name.equals("message") && jsonReader.peek() == JsonToken.STRING) {
+                resourceUsageHistory.errorMessage = jsonReader.nextString();
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
     }
 
     // This method triggers cost getter threads shutdowns by throwing AzureBillingException, only if Azure billing server returns an unknown error response when querying it.
     // In cases where cost information are not available, we do nothing by returning null.
-    String getLastResourceUsageHistory(AzureBillingCredentials azureBillingCredentials)
-            throws IOException, AzureBillingException {
-
+    ResourceUsageHistory getLastResourceUsageHistory(AzureBillingCredentials azureBillingCredentials,
+            Map<String, MeterRates> metersRates) throws IOException, AzureBillingException {
         // With hourly granularity Azure only accept date times with '00' set to minutes and seconds (i.e. truncated)
         LocalDateTime nowTruncatedLastHour = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS);
 
@@ -165,7 +366,7 @@ public class AzureBillingResourceUsage {
         LocalDateTime endDateTime = nowTruncatedLastHour;
 
         // Find the max endDateTime with available resource usage history
-        String lastResourceUsageHistory = null;
+        ResourceUsageHistory lastResourceUsageHistory = null;
         // while startDateTime < endDateTime
         while (startDateTime.isBefore(endDateTime)) {
 
@@ -174,23 +375,22 @@ public class AzureBillingResourceUsage {
             String endDateTimeStr = formatter.format(endDateTime);
             lastResourceUsageHistory = queryResourceUsageHistory(startDateTimeStr,
                                                                  endDateTimeStr,
-                                                                 azureBillingCredentials.renewOrOnlyGetAccessToken(false));
+                                                                 azureBillingCredentials.renewOrOnlyGetAccessToken(false),
+                                                                 metersRates);
             LOGGER.debug("AzureBillingResourceUsage getLastResourceUsageHistory considering [" + startDateTimeStr +
                          ";" + endDateTimeStr + "] = " + lastResourceUsageHistory);
 
-            JsonObject jsonObject = JSON_PARSER.parse(lastResourceUsageHistory).getAsJsonObject();
-
             // HISTORY RETRIEVED !!
-            if (JSON_PARSER.parse(lastResourceUsageHistory).getAsJsonObject().has("value")) {
-                this.resourceUsageReportedEndDateTime = endDateTime;
+            if (lastResourceUsageHistory.retrieved) {
+                lastResourceUsageHistory.endDateTime = endDateTime;
                 LOGGER.debug("AzureBillingResourceUsage getLastResourceUsageHistory resource usage history is finally retrieved!");
                 return lastResourceUsageHistory;
 
-            } else if (jsonObject.has("error")) { // HISTORY NOT RETRIEVED BUT TRY AGAIN !!
+            } else if (lastResourceUsageHistory.errorCode != null &&
+                       lastResourceUsageHistory.errorMessage != null) { // HISTORY NOT RETRIEVED BUT TRY AGAIN !!
 
-                JsonObject queryErrorObject = jsonObject.get("error").getAsJsonObject();
-                String queryErrorCode = queryErrorObject.get("code").getAsString();
-                String queryErrorMessage = queryErrorObject.get("message").getAsString();
+                String queryErrorCode = lastResourceUsageHistory.errorCode;
+                String queryErrorMessage = lastResourceUsageHistory.errorMessage;
 
                 if (queryErrorCode.equals("ExpiredAuthenticationToken")) {
                     LOGGER.debug("AzureBillingResourceUsage " + queryErrorCode + ":" + queryErrorMessage +
@@ -215,7 +415,7 @@ public class AzureBillingResourceUsage {
             // HISTORY WILL NEVER BE RETRIEVED, throw an Exception to stop the periodical getter threads !!
             LOGGER.error("AzureBillingResourceUsage getLastResourceUsageHistory AzureBillingException " +
                          lastResourceUsageHistory);
-            throw new AzureBillingException(lastResourceUsageHistory);
+            throw new AzureBillingException(lastResourceUsageHistory.toString());
         }
         // DID NOT FIND AN ENDDATETIME TO GET THE HISTORY.. WILL TRY AT THE NEW PERIODICAL CALL !
         LOGGER.debug("AzureBillingResourceUsage getLastResourceUsageHistory cannot find an history for this period since " +
@@ -223,149 +423,98 @@ public class AzureBillingResourceUsage {
         return null;
     }
 
-    private double computeResourceCostInThatHour(double resourceQuantityInThatHour,
-            LinkedHashMap<String, Double> meterRates) {
-
-        LOGGER.debug("AzureBillingResourceUsage computeResourceCostInThatHour resourceQuantityInThatHour " +
-                     resourceQuantityInThatHour + " meterRates " + meterRates);
-
-        if (meterRates == null || meterRates.isEmpty()) {
-            return 0;
+    /**
+     * Accounts a page of a resource usage history into the global cost. The page
+     * is accounted once it is entirely read, so that a page failing to be read is
+     * not partially accounted and then queried again.
+     */
+    private void accountResourceUsagePage(ResourceUsageHistory resourceUsagePage) {
+
+        this.metersIds.addAll(resourceUsagePage.metersIds);
+        this.globalCost += resourceUsagePage.cost;
+        this.budgetPercentage = this.globalCost * 100 / this.budget;
+        this.resourceUsageNextLink = resourceUsagePage.nextLink;
+        if (this.resourceUsageNextLink == null) {
+            // The whole history is accounted
+            this.resourceUsageReportedEndDateTime = this.resourceUsageNextLinkEndDateTime;
+            this.resourceUsageNextLinkEndDateTime = null;
         }
 
-        double resourceCostInThatHour = 0;
-        double quantityToPriceInThisStep;
-        double lowerStepQuantity = -1;
-        double lowerStepRate = -1;
-        double upperStepQuantity;
-        double upperStepRate;
-
-        for (Map.Entry<String, Double> meterRatesEntry : meterRates.entrySet()) {
-            upperStepQuantity = Double.parseDouble(meterRatesEntry.getKey());
-            upperStepRate = meterRatesEntry.getValue();
-
-            LOGGER.debug("AzureBillingResourceUsage computeResourceCostInThatHour step rate:[" + lowerStepRate + "," +
-                         upperStepRate + "]  step quantity:[" + lowerStepQuantity + "," + upperStepQuantity + "]");
-
-            // In [lowerStepQuantity, upperStepQuantity], it costs lowerStepRate
-            if (lowerStepQuantity != -1) {
-
-                // Which quantity to consider in this interval?
-                if (resourceQuantityInThatHour >= upperStepQuantity) {
-                    quantityToPriceInThisStep = upperStepQuantity - lowerStepQuantity;
-                } else if (resourceQuantityInThatHour > lowerStepQuantity) {
-                    quantityToPriceInThisStep = resourceQuantityInThatHour - lowerStepQuantity;
-                } else {
-                    break;
-                }
-                // Price it and add it to the global cost
-                resourceCostInThatHour += quantityToPriceInThisStep * lowerStepRate;
-                LOGGER.debug("AzureBillingResourceUsage computeResourceCostInThatHour added to resourceCostInThatHour: " +
-                             quantityToPriceInThisStep + " x " + lowerStepRate + " [new resourceCostInThatHour = " +
-                             resourceCostInThatHour + "]");
-            }
-
-            // Update lowerStepQuantity & lowerStepRate
-            lowerStepQuantity = upperStepQuantity;
-            lowerStepRate = upperStepRate;
-        }
-
-        // The last quantity (without upperStepQuantity)
-        if (resourceQuantityInThatHour > lowerStepQuantity) {
-            quantityToPriceInThisStep = resourceQuantityInThatHour - lowerStepQuantity;
-            resourceCostInThatHour += quantityToPriceInThisStep * lowerStepRate;
+        LOGGER.debug("AzureBillingResourceUsage accountResourceUsagePage " + resourceUsagePage +
+                     " (now this.globalCost=" + this.globalCost + ")");
+    }
 
-            LOGGER.debug("AzureBillingResourceUsage computeResourceCostInThatHour last added to resourceCostInThatHour: " +
-                         quantityToPriceInThisStep + " x " + lowerStepRate + " [new resourceCostInThatHour = " +
-                         resourceCostInThatHour + "]");
+    /**
+     * Queries the page of the resource usage history designated by the persisted
+     * continuation link. When the page cannot be retrieved, the rest of the history
+     * is abandoned rather than queried again from its beginning, which would account
+     * the previous pages twice.
+     *
+     * @return the next page of the history, or null if the rest of the history is abandoned
+     */
+    private ResourceUsageHistory getNextResourceUsagePage(AzureBillingCredentials azureBillingCredentials,
+            Map<String, MeterRates> metersRates) throws IOException {
+
+        boolean tokenRenewed = false;
+        while (true) {
+            ResourceUsageHistory resourceUsagePage = queryResourceUsage(this.resourceUsageNextLink,
+                                                                        azureBillingCredentials.renewOrOnlyGetAccessToken(false),
+                                                                        metersRates);
+            if (resourceUsagePage.retrieved) {
+                return resourceUsagePage;
+            }
+            if (!tokenRenewed && "ExpiredAuthenticationToken".equals(resourceUsagePage.errorCode)) {
+                LOGGER.debug("AzureBillingResourceUsage getNextResourceUsagePage ExpiredAuthenticationToken (renewing token)");
+                azureBillingCredentials.renewOrOnlyGetAccessToken(true);
+                tokenRenewed = true;
+                continue;
+            }
+            LOGGER.warn("AzureBillingResourceUsage getNextResourceUsagePage cannot retrieve the next page of the resource usage history until " +
+                        this.resourceUsageNextLinkEndDateTime + " (" + resourceUsagePage +
+                        "), the rest of this history is not accounted");
+            this.resourceUsageNextLink = null;
+            this.resourceUsageReportedEndDateTime = this.resourceUsageNextLinkEndDateTime;
+            this.resourceUsageNextLinkEndDateTime = null;
+            return null;
         }
-
-        return resourceCostInThatHour;
     }
 
     // synchronized to ensure we dont try to use meter ids to get the meter rates while we are updating them
     synchronized public HashSet<String> updateResourceUsageOrGetMetersIds(
-            AzureBillingCredentials azureBillingCredentials, HashMap<String, LinkedHashMap<String, Double>> metersRates,
+            AzureBillingCredentials azureBillingCredentials, Map<String, MeterRates> metersRates,
             boolean update) throws IOException, AzureBillingException {
 
         if (update) {
 
             LOGGER.debug("AzureBillingResourceUsage synchronized updateResourceUsageInfosOrGetMetersIds (update)");
 
-            // Get the last resources usage history
-            String resourceUsageHistory = getLastResourceUsageHistory(azureBillingCredentials);
-
-            // No available resource usage history
-            if (resourceUsageHistory == null)
-                return null;
-
-            // Parse resourceUsageHistory to find the desired resource usage
-            Iterator<JsonElement> resourceUsageIterator = JSON_PARSER.parse(resourceUsageHistory)
-                                                                     .getAsJsonObject()
-                                                                     .get("value")
-                                                                     .getAsJsonArray()
-                                                                     .iterator();
-
-            while (resourceUsageIterator.hasNext()) {
-                JsonElement resourceUsage = resourceUsageIterator.next();
-
-                JsonObject resourceProperties = resourceUsage.getAsJsonObject().get("properties").getAsJsonObject();
-
-                // We need to replace '\"' in "instanceData" property to avoid exception
-                String resourceInstanceData = resourceProperties.get("instanceData").getAsString().replaceAll("\\\\",
-                                                                                                              "");
-
-                String currentResourceUri = JSON_PARSER.parse(resourceInstanceData)
-                                                       .getAsJsonObject()
-                                                       .get("Microsoft.Resources")
-                                                       .getAsJsonObject()
-                                                       .get("resourceUri")
-                                                       .getAsString();
-
-                LOGGER.debug("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) " +
-                             currentResourceUri + " matches " + this.resourceUriRegex + " ? " +
-                             currentResourceUri.matches(this.resourceUriRegex));
-
-                // Here, we have a resource usage per hour (i.e.  (startDateTime) [8:00,9:00], [9:00,10:00], [10:00,11:00] (endDateTime))
-                // In case of multiple VM deployed, VM names = <node source name><number>
-                if (currentResourceUri.matches(this.resourceUriRegex)) {
-
-                    LOGGER.debug("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) considering resource " +
-                                 resourceProperties);
-
-                    double resourceQuantityInThatHour = resourceProperties.get("quantity").getAsDouble();
-                    String meterId = resourceProperties.get("meterId").getAsString();
-
-                    // Store meterId to make AzureBillingRateCard store meter rates with ids in meterIdsSet
-                    this.metersIds.add(meterId);
-
-                    // Get the meter rates of meterId
-                    LinkedHashMap<String, Double> meterRates = metersRates.get(meterId);
-
-                    if (meterRates == null) {
-                        // It should never happens but in that case do not consider this resource consumption in that period for the global cost
-                        LOGGER.debug("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) cannot retrieve meter rate for " +
-                                     meterId + ". The global usage cost will not include the resource " +
-                                     currentResourceUri + " at this period.");
-                        continue;
-                    } else {
-                        LOGGER.debug("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) retrieved meter rate for meterId " +
-                                     meterId + " meterRates " + meterRates);
-                    }
-
-                    double resourceCostInThatHour = computeResourceCostInThatHour(resourceQuantityInThatHour,
-                                                                                  meterRates);
-                    this.globalCost += resourceCostInThatHour;
-                    this.budgetPercentage = this.globalCost * 100 / this.budget;
-
-                    LOGGER.debug("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) (in while) currentResourceUri " +
-                                 currentResourceUri + " resourceCostInThatHour " + resourceCostInThatHour +
-                                 " (now this.globalCost=" + this.globalCost + ") for [" +
-                                 resourceProperties.get("usageStartTime").getAsString() + ";" +
-                                 resourceProperties.get("usageEndTime").getAsString() + "]");
+            ResourceUsageHistory resourceUsagePage;
+            if (this.resourceUsageNextLink != null) {
+                // Resume the history interrupted by a failure or a restart
+                LOGGER.info("AzureBillingResourceUsage updateResourceUsageInfosOrGetMetersIds (update) resuming the resource usage history until " +
+                            this.resourceUsageNextLinkEndDateTime);
+                resourceUsagePage = getNextResourceUsagePage(azureBillingCredentials, metersRates);
+            } else {
+                // Get the last resources usage history, with the cost of the resources of the node source
+                resourceUsagePage = getLastResourceUsageHistory(azureBillingCredentials, metersRates);
+
+                // No available resource usage history
+                if (resourceUsagePage == null)
+                    return null;
+                this.resourceUsageNextLinkEndDateTime = resourceUsagePage.endDateTime;
+            }
 
-                } // END OF if (currentResourceUri.matches(this.resourceUriRegex))
-            } // END OF while (resourceUsageIterator.hasNext())
+            // Each page is accounted before the next one is queried
+            while (resourceUsagePage != null) {
+                accountResourceUsagePage(resourceUsagePage);
+                if (this.resourceUsageNextLink == null) {
+                    break;
+                }
+                if (this.resourceUsagePageListener != null) {
+                    this.resourceUsagePageListener.run();
+                }
+                resourceUsagePage = getNextResourceUsagePage(azureBillingCredentials, metersRates);
+            }
 
             LOGGER.debug("AzureBillingResourceUsage synchronized updateResourceUsageInfosOrGetMetersIds (update) before return");
             return new HashSet<>();
@@ -377,4 +526,59 @@ public class AzureBillingResourceUsage {
             return metersIdsCopy;
         }
     }
+
+    /**
+     * Summary of a resource usage history response: only the cost and the meters
+     * of the resources of the node source are kept from its usage records.
+     */
+    static class ResourceUsageHistory {
+
+        private int responseCode;
+
+        private boolean retrieved = false;
+
+        private String errorCode;
+
+        private String errorMessage;
+
+        private String nextLink;
+
+        private LocalDateTime endDateTime;
+
+        private int nbResourceUsages = 0;
+
+        private double cost = 0;
+
+        private final Set<String> metersIds = new HashSet<>();
+
+        boolean isRetrieved() {
+            return retrieved;
+        }
+
+        int getNbResourceUsages() {
+            return nbResourceUsages;
+        }
+
+        double getCost() {
+            return cost;
+        }
+
+        Set<String> getMetersIds() {
+            return metersIds;
+        }
+
+        String getNextLink() {
+            return nextLink;
+        }
+
+        @Override
+        public String toString() {
+            if (retrieved) {
+                return "ResourceUsageHistory{nbResourceUsages=" + nbResourceUsages + ", cost=" + cost +
+                       ", metersIds=" + metersIds + ", nextLink=" + nextLink + "}";
+            }
+            return "ResourceUsageHistory{responseCode=" + responseCode + ", errorCode=" + errorCode +
+                   ", errorMessage=" + errorMessage + "}";
+        }
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * On-disk cache of the parsed Azure rate cards, so that the rates are available as soon
+ * as the billing starts, and that the rate card is not downloaded again while its
+ * cached copy is fresh.
+ *
+ * A rate card is stored in a binary file named after its key (offer, currency, locale and
+ * region), holding the key, the time it was fetched, its ETag if any, and the thresholds
+ * and rates of each meter. The file is written to a temporary file first and then moved,
+ * so that a reader never sees a partially written rate card. An unreadable file is
+ * ignored, the rate card being downloaded again.
+ */
+public class AzureRateCardCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AzureRateCardCache.class);
+
+    private static final int MAGIC_NUMBER = 0x41524331;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File directory;
+
+    private final long timeToLive;
+
+    /**
+     * @param directory the directory of the cached rate cards, created if needed
+     * @param timeToLive the delay (in milliseconds) during which a cached rate card is fresh
+     */
+    public AzureRateCardCache(File directory, long timeToLive) {
+        this.directory = directory;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the cached rate card of the given key, or null if it is not cached or cannot be read
+     */
+    public CachedRateCard load(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC_NUMBER || input.readInt() != FORMAT_VERSION || !key.equals(input.readUTF())) {
+                LOGGER.warn("AzureRateCardCache ignoring the cached rate card " + file + " of another format or key");
+                return null;
+            }
+            long fetchTime = input.readLong();
+            String etag = input.readUTF();
+            int nbMeters = input.readInt();
+            Map<String, MeterRates> metersRates = new HashMap<>();
+            for (int meter = 0; meter < nbMeters; meter++) {
+                String meterId = input.readUTF();
+                int nbTiers = input.readInt();
+                double[] thresholds = new double[nbTiers];
+                double[] rates = new double[nbTiers];
+                for (int tier = 0; tier < nbTiers; tier++) {
+                    thresholds[tier] = input.readDouble();
+                }
+                for (int tier = 0; tier < nbTiers; tier++) {
+                    rates[tier] = input.readDouble();
+                }
+                metersRates.put(meterId, MeterRates.of(thresholds, rates));
+            }
+            LOGGER.debug("AzureRateCardCache loaded the rate card " + key + " of " + nbMeters + " meters");
+            return new CachedRateCard(Collections.unmodifiableMap(metersRates),
+                                      fetchTime,
+                                      etag.isEmpty() ? null : etag);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("AzureRateCardCache cannot read the cached rate card " + file + ", it will be downloaded again",
+                        e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the rate card of the given key. A failure to store it is logged, the
+     * rate card being downloaded again when needed.
+     */
+    public void store(String key, CachedRateCard rateCard) {
+        File file = getFile(key);
+        File temporaryFile = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            // unique temporary file, so that concurrent stores of the same rate card do not
+            // write to the same file
+            temporaryFile = Files.createTempFile(directory.toPath(), file.getName(), ".tmp").toFile();
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+                output.writeInt(MAGIC_NUMBER);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(key);
+                output.writeLong(rateCard.getFetchTime());
+                output.writeUTF(rateCard.getEtag() == null ? "" : rateCard.getEtag());
+                output.writeInt(rateCard.getMetersRates().size());
+                for (Map.Entry<String, MeterRates> meterRates : rateCard.getMetersRates().entrySet()) {
+                    output.writeUTF(meterRates.getKey());
+                    double[] thresholds = meterRates.getValue().getThresholds();
+                    double[] rates = meterRates.getValue().getRates();
+                    output.writeInt(thresholds.length);
+                    for (double threshold : thresholds) {
+                        output.writeDouble(threshold);
+                    }
+                    for (double rate : rates) {
+                        output.writeDouble(rate);
+                    }
+                }
+            }
+            try {
+                Files.move(temporaryFile.toPath(),
+                           file.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.debug("AzureRateCardCache stored the rate card " + key + " in " + file);
+        } catch (IOException e) {
+            LOGGER.warn("AzureRateCardCache cannot store the rate card " + key + " in " + file, e);
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return whether the rate card was fetched less than the time to live ago
+     */
+    public boolean isFresh(CachedRateCard rateCard) {
+        return System.currentTimeMillis() - rateCard.getFetchTime() < timeToLive;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, "rate-card-" + key.replaceAll("[^A-Za-z0-9._-]", "_") + ".bin");
+    }
+
+    /**
+     * Rates of a rate card, with the time it was fetched and its ETag.
+     */
+    public static class CachedRateCard {
+
+        private final Map<String, MeterRates> metersRates;
+
+        private final long fetchTime;
+
+        private final String etag;
+
+        public CachedRateCard(Map<String, MeterRates> metersRates, long fetchTime, String etag) {
+            this.metersRates = metersRates;
+            this.fetchTime = fetchTime;
+            this.etag = etag;
+        }
+
+        public Map<String, MeterRates> getMetersRates() {
+            return metersRates;
+        }
+
+        public long getFetchTime() {
+            return fetchTime;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+}
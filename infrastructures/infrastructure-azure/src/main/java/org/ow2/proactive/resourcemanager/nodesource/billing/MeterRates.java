@@ -0,0 +1,134 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Immutable tiered rates of an Azure meter, parsed once from the rate card.
+ *
+ * The rate card gives, for each meter, the rate applying from each quantity
+ * threshold: the quantity between two thresholds costs the rate of the lower
+ * one, the quantity above the highest threshold costs its rate, and the quantity
+ * below the lowest threshold is free. The thresholds are sorted, and the cost of
+ * the quantity below each of them is precomputed, so that the cost of a quantity
+ * is computed with a binary search over the thresholds.
+ */
+public final class MeterRates {
+
+    private final double[] thresholds;
+
+    private final double[] rates;
+
+    // cumulativeCosts[i] is the cost of the quantity thresholds[i]
+    private final double[] cumulativeCosts;
+
+    private MeterRates(double[] thresholds, double[] rates) {
+        this.thresholds = thresholds;
+        this.rates = rates;
+        this.cumulativeCosts = new double[thresholds.length];
+        for (int i = 1; i < thresholds.length; i++) {
+            cumulativeCosts[i] = cumulativeCosts[i - 1] + (thresholds[i] - thresholds[i - 1]) * rates[i - 1];
+        }
+    }
+
+    /**
+     * @param meterRates the rates of the meter, by quantity threshold, as given by the rate card
+     * @return the parsed rates of the meter
+     * @throws NumberFormatException if a threshold is not a number
+     */
+    public static MeterRates of(Map<String, ? extends Number> meterRates) {
+        List<double[]> tiers = new ArrayList<>(meterRates.size());
+        for (Map.Entry<String, ? extends Number> meterRatesEntry : meterRates.entrySet()) {
+            tiers.add(new double[] { Double.parseDouble(meterRatesEntry.getKey()),
+                                     meterRatesEntry.getValue().doubleValue() });
+        }
+        tiers.sort(Comparator.comparingDouble(tier -> tier[0]));
+
+        double[] thresholds = new double[tiers.size()];
+        double[] rates = new double[tiers.size()];
+        for (int i = 0; i < tiers.size(); i++) {
+            thresholds[i] = tiers.get(i)[0];
+            rates[i] = tiers.get(i)[1];
+        }
+        return new MeterRates(thresholds, rates);
+    }
+
+    /**
+     * @param thresholds the quantity thresholds of the meter, in ascending order
+     * @param rates the rate applying from each threshold
+     * @return the rates of the meter
+     * @throws IllegalArgumentException if the thresholds are not sorted or do not match the rates
+     */
+    static MeterRates of(double[] thresholds, double[] rates) {
+        if (thresholds.length != rates.length) {
+            throw new IllegalArgumentException("Expected " + thresholds.length + " rates but got " + rates.length);
+        }
+        for (int i = 1; i < thresholds.length; i++) {
+            if (thresholds[i] < thresholds[i - 1]) {
+                throw new IllegalArgumentException("Thresholds are not sorted: " + Arrays.toString(thresholds));
+            }
+        }
+        return new MeterRates(thresholds.clone(), rates.clone());
+    }
+
+    /**
+     * @param quantity the consumed quantity of the meter
+     * @return the cost of the quantity
+     */
+    public double getCost(double quantity) {
+        int index = Arrays.binarySearch(thresholds, quantity);
+        // index of the highest threshold strictly lower than the quantity
+        int tier = (index >= 0 ? index : -index - 1) - 1;
+        if (tier < 0) {
+            return 0;
+        }
+        return cumulativeCosts[tier] + (quantity - thresholds[tier]) * rates[tier];
+    }
+
+    public int getNbTiers() {
+        return thresholds.length;
+    }
+
+    double[] getThresholds() {
+        return thresholds.clone();
+    }
+
+    double[] getRates() {
+        return rates.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "MeterRates{thresholds=" + Arrays.toString(thresholds) + ", rates=" + Arrays.toString(rates) + "}";
+    }
+
+}
@@ -28,6 +28,7 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 import static org.ow2.proactive.resourcemanager.core.properties.PAResourceManagerProperties.RM_CLOUD_INFRASTRUCTURES_DESTROY_INSTANCES_ON_SHUTDOWN;
 import static org.ow2.proactive.resourcemanager.nodesource.infrastructure.AdditionalInformationKeys.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyException;
 import java.time.LocalDateTime;
@@ -37,21 +38,24 @@ import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.node.Node;
+import org.ow2.proactive.resourcemanager.core.properties.PAResourceManagerProperties;
 import org.ow2.proactive.resourcemanager.exception.RMException;
 import org.ow2.proactive.resourcemanager.nodesource.billing.AzureBillingCredentials;
 import org.ow2.proactive.resourcemanager.nodesource.billing.AzureBillingException;
 import org.ow2.proactive.resourcemanager.nodesource.billing.AzureBillingRateCard;
 import org.ow2.proactive.resourcemanager.nodesource.billing.AzureBillingResourceUsage;
+import org.ow2.proactive.resourcemanager.nodesource.billing.AzureRateCardCache;
+import org.ow2.proactive.resourcemanager.nodesource.billing.MeterRates;
 import org.ow2.proactive.resourcemanager.nodesource.common.Configurable;
 import org.ow2.proactive.resourcemanager.nodesource.infrastructure.model.NodeConfiguration;
 import org.ow2.proactive.resourcemanager.nodesource.infrastructure.model.VmCredentials;
 import org.ow2.proactive.resourcemanager.nodesource.infrastructure.util.InitScriptGenerator;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.util.NSProperties;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import lombok.Getter;
@@ -66,12 +70,26 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
 
     private static final String ADDITIONAL_INFORMATION_NOT_AVAILABLE_YET = "not available yet";
 
+    // Progress of the resource usage accounting (cost and continuation of the history being accounted), persisted
+    // as a single value so that the accounted cost and the continuation link are never restored out of step
+    private static final String CLOUD_COST_RESOURCE_USAGE_PROGRESS_KEY = "cloudCostResourceUsageProgress";
+
+    private static final String PROGRESS_REPORTED_AT = "reportedAt";
+
+    private static final String PROGRESS_REPORTED_UNTIL = "reportedUntil";
+
+    private static final String PROGRESS_GLOBAL_COST = "globalCost";
+
+    private static final String PROGRESS_BUDGET_PERCENTAGE = "budgetPercentage";
+
+    private static final String PROGRESS_NEXT_LINK = "nextLink";
+
+    private static final String PROGRESS_NEXT_LINK_UNTIL = "nextLinkUntil";
+
     public static final String WINDOWS = "windows";
 
     public static final String LINUX = "linux";
 
-    private final transient Lock acquireLock = new ReentrantLock();
-
     @Getter
     private final String instanceIdNodeProperty = "instanceId";
 
@@ -79,6 +97,8 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
 
     private static final String DEFAULT_ADDITIONAL_PROPERTIES = "-Dproactive.useIPaddress=true -Dproactive.pnp.port=64738";
 
+    private static final long DEFAULT_RATE_CARD_CACHE_TTL = 24 * 60 * 60 * 1000;// 1 day
+
     private ScheduledExecutorService periodicallyResourceUsageGetter = null;
 
     private ScheduledExecutorService periodicallyRateCardGetter = null;
@@ -312,9 +332,50 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
                 this.azureBillingResourceUsage.setGlobalCost(Double.parseDouble(additionalInformation.get(CLOUD_COST_GLOBAL_COST_KEY)));
                 this.azureBillingResourceUsage.setBudgetPercentage(Double.parseDouble(additionalInformation.get(CLOUD_COST_GLOBAL_COST_IN_MAX_BUDGET_PERCENTAGE_KEY)));
             }
+
+        }
+
+        // The progress, when persisted, supersedes the information displayed above
+        if (additionalInformation != null && additionalInformation.get(CLOUD_COST_RESOURCE_USAGE_PROGRESS_KEY) != null) {
+            restoreResourceUsageProgress(additionalInformation.get(CLOUD_COST_RESOURCE_USAGE_PROGRESS_KEY));
+        }
+    }
+
+    private void restoreResourceUsageProgress(String persistedProgress) {
+        Map<String, String> progress;
+        try {
+            progress = new ObjectMapper().readValue(persistedProgress, new TypeReference<Map<String, String>>() {
+            });
+        } catch (IOException e) {
+            LOGGER.warn("AzureInfrastructure restoreResourceUsageProgress cannot read the persisted progress " +
+                        persistedProgress, e);
+            return;
+        }
+
+        this.azureBillingResourceUsage.setResourceUsageReportedStartDateTime(LocalDateTime.parse(progress.get(PROGRESS_REPORTED_AT),
+                                                                                                 formatter));
+        this.azureBillingResourceUsage.setResourceUsageReportedEndDateTime(progress.get(PROGRESS_REPORTED_UNTIL) == null ? null
+                                                                                                                         : LocalDateTime.parse(progress.get(PROGRESS_REPORTED_UNTIL),
+                                                                                                                                               formatter));
+        this.azureBillingResourceUsage.setGlobalCost(Double.parseDouble(progress.get(PROGRESS_GLOBAL_COST)));
+        this.azureBillingResourceUsage.setBudgetPercentage(Double.parseDouble(progress.get(PROGRESS_BUDGET_PERCENTAGE)));
+        if (progress.get(PROGRESS_NEXT_LINK) != null && progress.get(PROGRESS_NEXT_LINK_UNTIL) != null) {
+            this.azureBillingResourceUsage.setResourceUsageNextLink(progress.get(PROGRESS_NEXT_LINK));
+            this.azureBillingResourceUsage.setResourceUsageNextLinkEndDateTime(LocalDateTime.parse(progress.get(PROGRESS_NEXT_LINK_UNTIL),
+                                                                                                   formatter));
         }
     }
 
+    private static File getRateCardCacheDirectory() {
+        String rateCardCacheDirectory = NSProperties.getStringProperty(NSProperties.AZURE_RATE_CARD_CACHE_DIR, "");
+        if (!rateCardCacheDirectory.trim().isEmpty()) {
+            return new File(rateCardCacheDirectory.trim());
+        }
+        String rmHome = PAResourceManagerProperties.RM_HOME.isSet() ? PAResourceManagerProperties.RM_HOME.getValueAsString()
+                                                                    : System.getProperty("java.io.tmpdir");
+        return new File(rmHome, "data" + File.separator + "azure-rate-cards");
+    }
+
     private void initBilling() {
 
         if (!this.initBillingIsDone) {
@@ -343,11 +404,20 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
                                                                  this.offerId,
                                                                  this.currency,
                                                                  this.locale,
-                                                                 this.regionInfo);
+                                                                 this.regionInfo,
+                                                                 new AzureRateCardCache(getRateCardCacheDirectory(),
+                                                                                        NSProperties.getLongProperty(NSProperties.AZURE_RATE_CARD_CACHE_TTL,
+                                                                                                                     DEFAULT_RATE_CARD_CACHE_TTL)));
+
+            // Use the cached rates, if any, until the rate card is updated
+            boolean cachedRatesLoaded = this.azureBillingRateCard.loadCachedMetersRates();
 
             // Restore infos if possible
             restoreBillingInformation();
 
+            // Persist the progress of the resource usage histories accounted page by page
+            this.azureBillingResourceUsage.setResourceUsagePageListener(this::persistBillingInformation);
+
             // Start a new thread to periodically call getAndStoreRate
             // In case of already having a running tread, i.e. which was not shut down, no need create a new thread
             if (this.periodicallyRateCardGetter == null) {
@@ -360,12 +430,12 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
 
             // Start a new thread to periodically retrieve resource usage
             // Start it after periodicallyRateCardGetter (cf initial delay param) since rates are required
-            // to compute the global cost
+            // to compute the global cost, unless cached rates are already loaded
             if (this.periodicallyResourceUsageGetter == null) {
                 this.periodicallyResourceUsageGetter = Executors.newSingleThreadScheduledExecutor();
             }
             this.periodicallyResourceUsageGetter.scheduleAtFixedRate(this::updateResourceUsage,
-                                                                     2,
+                                                                     cachedRatesLoaded ? 0 : 2,
                                                                      this.resourceUsageRefreshFreqInMin,
                                                                      TimeUnit.MINUTES);
 
@@ -407,37 +477,41 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
     }
 
     @Override
-    public synchronized void acquireNodes(final int numberOfNodes, final long startTimeout,
-            final Map<String, ?> nodeConfiguration) {
+    protected boolean recreateInstances(int nbInstances) {
         nodeSource.executeInParallel(() -> {
-            try {
-                if (acquireLock.tryLock(startTimeout, TimeUnit.MILLISECONDS)) {
-                    LOGGER.info(String.format("Acquiring %d nodes with the configuration: %s.",
-                                              numberOfNodes,
-                                              nodeConfiguration));
-                    try {
-                        AzureCustomizableParameter deployParams = getNodeSpecificParameters(nodeConfiguration);
-                        int nbInstancesToDeploy = calNumberOfInstancesToDeploy(numberOfNodes,
-                                                                               nodeConfiguration,
-                                                                               numberOfInstances,
-                                                                               numberOfNodesPerInstance);
-                        if (nbInstancesToDeploy <= 0) {
-                            LOGGER.info("No need to deploy new instances, acquireNodes skipped.");
-                            return;
-                        }
-                        deployInstancesWithNodes(nbInstancesToDeploy, false, deployParams);
-                    } catch (Exception e) {
-                        LOGGER.error("Error during node acquisition", e);
-                    } finally {
-                        acquireLock.unlock();
-                    }
-                } else {
-                    LOGGER.info("Infrastructure is busy, acquireNodes skipped.");
-                }
-            } catch (InterruptedException e) {
-                LOGGER.info("acquireNodes skipped because of InterruptedException:", e);
-            }
+            deployInstancesWithNodes(nbInstances, false);
         });
+        return true;
+    }
+
+    @Override
+    protected boolean redeployNodesOnInstancesWithoutNodes(Set<String> instanceIds) {
+        // once the infrastructure is created, the acquisition of a node
+        // redeploys the nodes on the instances without nodes
+        if (!isInfrastructureCreated()) {
+            return false;
+        }
+        acquireNode();
+        return true;
+    }
+
+    @Override
+    public void acquireNodes(final int numberOfNodes, final long startTimeout, final Map<String, ?> nodeConfiguration) {
+        requestNodesAcquisition(numberOfNodes, startTimeout, nodeConfiguration);
+    }
+
+    @Override
+    protected void deployRequestedNodes(int numberOfNodes, Map<String, ?> nodeConfiguration) {
+        AzureCustomizableParameter deployParams = getNodeSpecificParameters(nodeConfiguration);
+        int nbInstancesToDeploy = calNumberOfInstancesToDeploy(numberOfNodes,
+                                                               nodeConfiguration,
+                                                               numberOfInstances,
+                                                               numberOfNodesPerInstance);
+        if (nbInstancesToDeploy <= 0) {
+            LOGGER.info("No need to deploy new instances, acquireNodes skipped.");
+            return;
+        }
+        deployInstancesWithNodes(nbInstancesToDeploy, false, deployParams);
     }
 
     // get the node deployment parameters based on the specific node configurations which can
@@ -556,6 +630,9 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
                                                                         params.getPrivateNetworkCIDR(),
                                                                         params.getStaticPublicIP());
             LOGGER.info("Instances ids created or retrieved : " + instancesIds);
+            // no node is declared deploying while the scripts run, the
+            // instances are known by the state until their nodes register
+            registerDeployingInstances(instancesIds);
         } else {
             // if the infrastructure was already created, then wee need to
             // look at the free instances, if any (the ones on which no node
@@ -595,18 +672,21 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
                                                                                                                     numberOfNodesPerInstance,
                                                                                                                     getCredentials());
 
-                connectorIaasController.executeScript(getInfrastructureId(), currentInstanceId, scripts);
+                ScriptExecution scriptExecution = () -> connectorIaasController.executeScript(getInfrastructureId(),
+                                                                                              currentInstanceId,
+                                                                                              scripts);
+                try {
+                    scriptExecution.execute();
+                } catch (ScriptNotExecutedException exception) {
+                    // only this instance is recovered, the deployment goes on
+                    // with the other instances
+                    handleScriptNotExecutedException(existPersistedInstanceIds,
+                                                     currentInstanceId,
+                                                     exception,
+                                                     scriptExecution);
+                }
             } catch (KeyException e) {
                 LOGGER.error("A problem occurred while acquiring user credentials path. The node startup script will be not executed.");
-            } catch (ScriptNotExecutedException exception) {
-                boolean acquireNodeTriggered = handleScriptNotExecutedException(existPersistedInstanceIds,
-                                                                                currentInstanceId,
-                                                                                exception);
-                if (acquireNodeTriggered) {
-                    // in this case we re-attempted a deployment, so we need
-                    // to stop looping
-                    break;
-                }
             } finally {
                 // in all cases, we must remove the instance from the free
                 // instance map as we tried everything to deploy nodes on it
@@ -680,9 +760,7 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
 
         try {
 
-            HashMap<String, LinkedHashMap<String, Double>> metersRates = azureBillingRateCard.updateOrGetMetersRates(null,
-                                                                                                                     null,
-                                                                                                                     false);
+            Map<String, MeterRates> metersRates = azureBillingRateCard.getMetersRates();
 
             // Retrieve new resource usage cost infos
             if (this.azureBillingResourceUsage.updateResourceUsageOrGetMetersIds(this.azureBillingCredentials,
@@ -697,10 +775,43 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
             return;
         }
 
+        persistBillingInformation();
+    }
+
+    private void persistBillingInformation() {
+
         LocalDateTime resourceUsageReportedStartDateTime = this.azureBillingResourceUsage.getResourceUsageReportedStartDateTime();
         LocalDateTime resourceUsageReportedEndDateTime = this.azureBillingResourceUsage.getResourceUsageReportedEndDateTime();
         double globalCost = this.azureBillingResourceUsage.getGlobalCost();
         double budgetPercentage = this.azureBillingResourceUsage.getBudgetPercentage();
+        String resourceUsageNextLink = this.azureBillingResourceUsage.getResourceUsageNextLink();
+        LocalDateTime resourceUsageNextLinkEndDateTime = this.azureBillingResourceUsage.getResourceUsageNextLinkEndDateTime();
+
+        // The accounted cost and the continuation link are persisted in a single update, otherwise a restart
+        // between two updates would resume the history from a link not matching the restored cost
+        Map<String, String> progress = new HashMap<>();
+        progress.put(PROGRESS_REPORTED_AT, formatter.format(resourceUsageReportedStartDateTime));
+        if (resourceUsageReportedEndDateTime != null) {
+            progress.put(PROGRESS_REPORTED_UNTIL, formatter.format(resourceUsageReportedEndDateTime));
+        }
+        progress.put(PROGRESS_GLOBAL_COST, globalCost + "");
+        progress.put(PROGRESS_BUDGET_PERCENTAGE, budgetPercentage + "");
+        if (resourceUsageNextLink != null && resourceUsageNextLinkEndDateTime != null) {
+            progress.put(PROGRESS_NEXT_LINK, resourceUsageNextLink);
+            progress.put(PROGRESS_NEXT_LINK_UNTIL, formatter.format(resourceUsageNextLinkEndDateTime));
+        }
+        try {
+            this.nodeSource.putAndPersistAdditionalInformation(CLOUD_COST_RESOURCE_USAGE_PROGRESS_KEY,
+                                                               new ObjectMapper().writeValueAsString(progress));
+        } catch (IOException e) {
+            LOGGER.error("AzureInfrastructure persistBillingInformation cannot persist the resource usage progress", e);
+            return;
+        }
+
+        // Until the first history is entirely accounted, the usage is reported until its start
+        if (resourceUsageReportedEndDateTime == null) {
+            resourceUsageReportedEndDateTime = resourceUsageReportedStartDateTime;
+        }
 
         LOGGER.info("AzureInfrastructure updateResourceUsage resourceUsageReportedStartDateTime " +
                     resourceUsageReportedStartDateTime + " resourceUsageReportedEndDateTime " +
@@ -738,7 +849,7 @@ public class AzureInfrastructure extends AbstractAddonInfrastructure {
                                                                                                             false);
 
             // Retrieve new rates
-            this.azureBillingRateCard.updateOrGetMetersRates(this.azureBillingCredentials, metersIdsSet, true);
+            this.azureBillingRateCard.updateMetersRates(this.azureBillingCredentials, metersIdsSet);
         } catch (IOException | AzureBillingException e) {
             LOGGER.error(e.getMessage());
             // No need to keep getter threads alive
@@ -0,0 +1,261 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+
+public class AzureBillingResourceUsageTest {
+
+    private static final String RESOURCE_URI_PREFIX = "/subscriptions/subscription/resourceGroups/RG/providers/Microsoft.Compute/virtualMachines/";
+
+    private static final String NEXT_LINK = "https://management.azure.com/subscriptions/subscription/providers/Microsoft.Commerce/UsageAggregates?continuationToken=token";
+
+    private static final LocalDateTime NEXT_LINK_END_DATE_TIME = LocalDateTime.of(2020, 1, 1, 12, 0);
+
+    private AzureBillingResourceUsage azureBillingResourceUsage;
+
+    private StubbedResourceUsage stubbedResourceUsage;
+
+    private AzureBillingCredentials azureBillingCredentials;
+
+    private final Map<String, MeterRates> metersRates = new HashMap<>();
+
+    @Before
+    public void init() throws IOException {
+        azureBillingResourceUsage = new AzureBillingResourceUsage("subscription", "rg", "nodesource", "EUR", 100);
+        stubbedResourceUsage = new StubbedResourceUsage();
+        azureBillingCredentials = mock(AzureBillingCredentials.class);
+        when(azureBillingCredentials.renewOrOnlyGetAccessToken(false)).thenReturn("token");
+        metersRates.put("meter1", MeterRates.of(ImmutableMap.of("0", 2.0)));
+    }
+
+    @Test
+    public void testCostOfMatchingResourcesAccumulated() throws IOException {
+        String response = "{\"value\":[" + resourceUsage("nodesource1", "meter1", 1.5) + "," +
+                          resourceUsage("othersource1", "meter1", 10) + "," +
+                          resourceUsage("nodesource2", "meter2", 3) + "," + resourceUsage("nodesource3", "meter1", 2) +
+                          "],\"nextLink\":null}";
+
+        AzureBillingResourceUsage.ResourceUsageHistory history = azureBillingResourceUsage.readResourceUsageHistory(new StringReader(response),
+                                                                                                                     metersRates);
+
+        assertThat(history.isRetrieved(), is(true));
+        assertThat(history.getNbResourceUsages(), is(4));
+        // the resource of another node source is ignored, and the one without rates is not priced
+        assertThat(history.getCost(), is(7.0));
+        assertThat(history.getMetersIds(), is(ImmutableSet.of("meter1", "meter2")));
+        assertThat(history.getNextLink(), is(nullValue()));
+    }
+
+    @Test
+    public void testResourceUriMatchedIgnoringCase() throws IOException {
+        String response = "{\"value\":[" + resourceUsage("NodeSource1-disk", "meter1", 1) + "]}";
+        response = response.replace("resourceGroups", "resourcegroups");
+
+        AzureBillingResourceUsage.ResourceUsageHistory history = azureBillingResourceUsage.readResourceUsageHistory(new StringReader(response),
+                                                                                                                     metersRates);
+
+        assertThat(history.getCost(), is(2.0));
+    }
+
+    @Test
+    public void testNextLinkRead() throws IOException {
+        String nextLink = "https://management.azure.com/subscriptions/subscription/providers/Microsoft.Commerce/UsageAggregates?continuationToken=token";
+        String response = "{\"nextLink\":\"" + nextLink + "\",\"value\":[" +
+                          resourceUsage("nodesource1", "meter1", 1) + "]}";
+
+        AzureBillingResourceUsage.ResourceUsageHistory history = azureBillingResourceUsage.readResourceUsageHistory(new StringReader(response),
+                                                                                                                     metersRates);
+
+        assertThat(history.isRetrieved(), is(true));
+        assertThat(history.getCost(), is(2.0));
+        assertThat(history.getNextLink(), is(nextLink));
+    }
+
+    @Test
+    public void testErrorRead() throws IOException {
+        String response = "{\"error\":{\"code\":\"ProcessingNotCompleted\",\"message\":\"Processing not completed.\"}}";
+
+        AzureBillingResourceUsage.ResourceUsageHistory history = azureBillingResourceUsage.readResourceUsageHistory(new StringReader(response),
+                                                                                                                     metersRates);
+
+        assertThat(history.isRetrieved(), is(false));
+        assertThat(history.toString().contains("ProcessingNotCompleted"), is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedHistoryRejected() throws IOException {
+        azureBillingResourceUsage.readResourceUsageHistory(new StringReader("[\"not an history\"]"), metersRates);
+    }
+
+    @Test
+    public void testResourceUsageHistoryAccountedPageByPage() throws Exception {
+        LocalDateTime nowTruncatedLastHour = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS);
+        stubbedResourceUsage.setResourceUsageReportedStartDateTime(nowTruncatedLastHour.minusHours(3));
+        stubbedResourceUsage.responses.add("{\"nextLink\":\"" + NEXT_LINK + "\",\"value\":[" +
+                                           resourceUsage("nodesource1", "meter1", 1.5) + "]}");
+        stubbedResourceUsage.responses.add("{\"nextLink\":null,\"value\":[" +
+                                           resourceUsage("nodesource1", "meter1", 2) + "]}");
+        List<String> persistedProgress = new ArrayList<>();
+        stubbedResourceUsage.setResourceUsagePageListener(() -> persistedProgress.add(stubbedResourceUsage.getGlobalCost() +
+                                                                                      " " +
+                                                                                      stubbedResourceUsage.getResourceUsageNextLink()));
+
+        stubbedResourceUsage.updateResourceUsageOrGetMetersIds(azureBillingCredentials, metersRates, true);
+
+        assertThat(stubbedResourceUsage.queriedEndpoints.size(), is(2));
+        assertThat(stubbedResourceUsage.queriedEndpoints.get(1), is(NEXT_LINK));
+        // the progress is persisted once the first page is accounted, with the link to the second one
+        assertThat(persistedProgress, is(ImmutableList.of("3.0 " + NEXT_LINK)));
+        assertThat(stubbedResourceUsage.getGlobalCost(), is(7.0));
+        assertThat(stubbedResourceUsage.getBudgetPercentage(), is(7.0));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLink(), is(nullValue()));
+        assertThat(stubbedResourceUsage.getResourceUsageReportedEndDateTime(), is(nowTruncatedLastHour));
+    }
+
+    @Test
+    public void testInterruptedResourceUsageHistoryResumed() throws Exception {
+        restoreInterruptedHistory(3.0);
+        stubbedResourceUsage.responses.add("{\"nextLink\":null,\"value\":[" +
+                                           resourceUsage("nodesource1", "meter1", 2) + "]}");
+
+        stubbedResourceUsage.updateResourceUsageOrGetMetersIds(azureBillingCredentials, metersRates, true);
+
+        // the history is resumed from its persisted link, not queried again from its beginning
+        assertThat(stubbedResourceUsage.queriedEndpoints, is(ImmutableList.of(NEXT_LINK)));
+        assertThat(stubbedResourceUsage.getGlobalCost(), is(7.0));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLink(), is(nullValue()));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLinkEndDateTime(), is(nullValue()));
+        assertThat(stubbedResourceUsage.getResourceUsageReportedEndDateTime(), is(NEXT_LINK_END_DATE_TIME));
+    }
+
+    @Test
+    public void testUnretrievablePageAbandoned() throws Exception {
+        restoreInterruptedHistory(3.0);
+        stubbedResourceUsage.responses.add("{\"error\":{\"code\":\"InternalServerError\",\"message\":\"Internal error.\"}}");
+
+        stubbedResourceUsage.updateResourceUsageOrGetMetersIds(azureBillingCredentials, metersRates, true);
+
+        // the rest of the history is abandoned without querying it again, and without changing the cost
+        assertThat(stubbedResourceUsage.queriedEndpoints, is(ImmutableList.of(NEXT_LINK)));
+        assertThat(stubbedResourceUsage.getGlobalCost(), is(3.0));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLink(), is(nullValue()));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLinkEndDateTime(), is(nullValue()));
+        assertThat(stubbedResourceUsage.getResourceUsageReportedEndDateTime(), is(NEXT_LINK_END_DATE_TIME));
+    }
+
+    @Test
+    public void testTokenRenewedOnceForNextPage() throws Exception {
+        restoreInterruptedHistory(3.0);
+        String expiredToken = "{\"error\":{\"code\":\"ExpiredAuthenticationToken\",\"message\":\"Expired token.\"}}";
+        stubbedResourceUsage.responses.add(expiredToken);
+        stubbedResourceUsage.responses.add("{\"nextLink\":null,\"value\":[" +
+                                           resourceUsage("nodesource1", "meter1", 2) + "]}");
+
+        stubbedResourceUsage.updateResourceUsageOrGetMetersIds(azureBillingCredentials, metersRates, true);
+
+        assertThat(stubbedResourceUsage.queriedEndpoints, is(ImmutableList.of(NEXT_LINK, NEXT_LINK)));
+        verify(azureBillingCredentials, times(1)).renewOrOnlyGetAccessToken(true);
+        assertThat(stubbedResourceUsage.getGlobalCost(), is(7.0));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLink(), is(nullValue()));
+
+        // a token still expired once renewed abandons the rest of the history
+        restoreInterruptedHistory(7.0);
+        stubbedResourceUsage.queriedEndpoints.clear();
+        stubbedResourceUsage.responses.add(expiredToken);
+        stubbedResourceUsage.responses.add(expiredToken);
+
+        stubbedResourceUsage.updateResourceUsageOrGetMetersIds(azureBillingCredentials, metersRates, true);
+
+        assertThat(stubbedResourceUsage.queriedEndpoints, is(ImmutableList.of(NEXT_LINK, NEXT_LINK)));
+        verify(azureBillingCredentials, times(2)).renewOrOnlyGetAccessToken(true);
+        assertThat(stubbedResourceUsage.getGlobalCost(), is(7.0));
+        assertThat(stubbedResourceUsage.getResourceUsageNextLink(), is(nullValue()));
+    }
+
+    private void restoreInterruptedHistory(double globalCost) {
+        stubbedResourceUsage.setResourceUsageReportedStartDateTime(NEXT_LINK_END_DATE_TIME.minusHours(6));
+        stubbedResourceUsage.setResourceUsageReportedEndDateTime(NEXT_LINK_END_DATE_TIME.minusHours(3));
+        stubbedResourceUsage.setGlobalCost(globalCost);
+        stubbedResourceUsage.setResourceUsageNextLink(NEXT_LINK);
+        stubbedResourceUsage.setResourceUsageNextLinkEndDateTime(NEXT_LINK_END_DATE_TIME);
+    }
+
+    private static String resourceUsage(String resourceName, String meterId, double quantity) {
+        String instanceData = "{\\\"Microsoft.Resources\\\":{\\\"resourceUri\\\":\\\"" + RESOURCE_URI_PREFIX +
+                              resourceName + "\\\",\\\"location\\\":\\\"westeurope\\\"}}";
+        return "{\"id\":\"usage\",\"properties\":{\"usageStartTime\":\"2020-01-01T00:00:00+00:00\"," +
+               "\"usageEndTime\":\"2020-01-01T01:00:00+00:00\",\"meterId\":\"" + meterId + "\",\"quantity\":" +
+               quantity + ",\"instanceData\":\"" + instanceData + "\"}}";
+    }
+
+    /**
+     * Resource usage whose queries are answered by the given responses, in order.
+     */
+    private class StubbedResourceUsage extends AzureBillingResourceUsage {
+
+        private final Queue<String> responses = new LinkedList<>();
+
+        private final List<String> queriedEndpoints = new ArrayList<>();
+
+        StubbedResourceUsage() {
+            super("subscription", "rg", "nodesource", "EUR", 100);
+        }
+
+        @Override
+        ResourceUsageHistory queryResourceUsage(String endpoint, String accessToken,
+                Map<String, MeterRates> metersRates) throws IOException {
+            queriedEndpoints.add(endpoint);
+            return readResourceUsageHistory(new StringReader(responses.remove()), metersRates);
+        }
+    }
+
+}
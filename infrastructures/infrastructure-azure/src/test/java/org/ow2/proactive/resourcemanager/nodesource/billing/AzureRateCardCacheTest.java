@@ -0,0 +1,183 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+
+public class AzureRateCardCacheTest {
+
+    private static final String KEY = "MS-AZR-0003P_EUR_en-US_FR";
+
+    private File directory;
+
+    private AzureRateCardCache rateCardCache;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("rate-cards").toFile();
+        rateCardCache = new AzureRateCardCache(new File(directory, "cache"), 60000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testRateCardStoredAndLoaded() {
+        long fetchTime = System.currentTimeMillis();
+        rateCardCache.store(KEY,
+                            new AzureRateCardCache.CachedRateCard(ImmutableMap.of("meter1",
+                                                                                  MeterRates.of(ImmutableMap.of("0",
+                                                                                                                2.0,
+                                                                                                                "10",
+                                                                                                                1.0)),
+                                                                                  "meter2",
+                                                                                  MeterRates.of(ImmutableMap.of())),
+                                                                  fetchTime,
+                                                                  "etag"));
+
+        AzureRateCardCache.CachedRateCard rateCard = rateCardCache.load(KEY);
+
+        assertThat(rateCard.getFetchTime(), is(fetchTime));
+        assertThat(rateCard.getEtag(), is("etag"));
+        assertThat(rateCard.getMetersRates().size(), is(2));
+        assertEquals(30, rateCard.getMetersRates().get("meter1").getCost(20), 1e-9);
+        assertThat(rateCard.getMetersRates().get("meter2").getNbTiers(), is(0));
+        assertThat(rateCardCache.isFresh(rateCard), is(true));
+    }
+
+    @Test
+    public void testMissingOrCorruptedRateCardIgnored() throws IOException {
+        assertThat(rateCardCache.load(KEY), is(nullValue()));
+
+        rateCardCache.store(KEY, new AzureRateCardCache.CachedRateCard(ImmutableMap.of(), 0, null));
+        File[] files = new File(directory, "cache").listFiles();
+        assertThat(files.length, is(1));
+        Files.write(files[0].toPath(), new byte[] { 1, 2, 3 });
+
+        assertThat(rateCardCache.load(KEY), is(nullValue()));
+    }
+
+    @Test
+    public void testConcurrentStoresOfSameRateCard() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> stores = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                long fetchTime = i;
+                stores.add(executor.submit(() -> rateCardCache.store(KEY,
+                                                                     new AzureRateCardCache.CachedRateCard(ImmutableMap.of("meter1",
+                                                                                                                           MeterRates.of(ImmutableMap.of("0",
+                                                                                                                                                         1.0))),
+                                                                                                           fetchTime,
+                                                                                                           "etag"))));
+            }
+            for (Future<?> store : stores) {
+                store.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(new File(directory, "cache").listFiles().length, is(1));
+        assertThat(rateCardCache.load(KEY).getMetersRates().size(), is(1));
+    }
+
+    @Test
+    public void testEtagKeptWhenNotModifiedResponseOmitsIt() throws Exception {
+        rateCardCache.store(KEY,
+                            new AzureRateCardCache.CachedRateCard(ImmutableMap.of("meter1",
+                                                                                  MeterRates.of(ImmutableMap.of("0",
+                                                                                                                2.0))),
+                                                                  0,
+                                                                  "etag"));
+        List<String> requestedEtags = new ArrayList<>();
+        AzureBillingRateCard rateCard = new AzureBillingRateCard("subscription",
+                                                                 "MS-AZR-0003P",
+                                                                 "EUR",
+                                                                 "en-US",
+                                                                 "FR",
+                                                                 rateCardCache) {
+            @Override
+            RateCardResponse getRateCard(AzureBillingCredentials azureBillingCredentials, String etag) {
+                requestedEtags.add(etag);
+                RateCardResponse response = new RateCardResponse();
+                response.notModified = true;
+                return response;
+            }
+        };
+
+        rateCard.updateMetersRates(null, null);
+        // the cached rate card is revalidated again once expired
+        rateCardCache.store(KEY,
+                            new AzureRateCardCache.CachedRateCard(rateCardCache.load(KEY).getMetersRates(),
+                                                                  0,
+                                                                  rateCardCache.load(KEY).getEtag()));
+        rateCard.updateMetersRates(null, null);
+
+        assertThat(requestedEtags, is(Arrays.asList("etag", "etag")));
+        assertThat(rateCardCache.load(KEY).getEtag(), is("etag"));
+        assertThat(rateCard.getMetersRates().size(), is(1));
+    }
+
+    @Test
+    public void testExpiredRateCardNotFresh() {
+        rateCardCache.store(KEY, new AzureRateCardCache.CachedRateCard(ImmutableMap.of(), 0, null));
+
+        AzureRateCardCache.CachedRateCard rateCard = rateCardCache.load(KEY);
+
+        assertThat(rateCard.getEtag(), is(nullValue()));
+        assertThat(rateCardCache.isFresh(rateCard), is(false));
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Compares the throughput of the cost computation with the pre-parsed {@link MeterRates}
+ * and with the previous computation, which parsed the string thresholds of the rate card
+ * at each call. It is run as a plain main on the test classpath:
+ * {@code java org.ow2.proactive.resourcemanager.nodesource.billing.MeterRatesBenchmark [nbMeters] [nbTiers] [nbRecords]}
+ */
+public class MeterRatesBenchmark {
+
+    private static final int NB_ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int nbMeters = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int nbTiers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int nbRecords = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+        Random random = new Random(42);
+        Map<String, LinkedHashMap<String, Double>> rateCard = new HashMap<>();
+        Map<String, MeterRates> metersRates = new HashMap<>();
+        for (int meter = 0; meter < nbMeters; meter++) {
+            LinkedHashMap<String, Double> meterRates = randomMeterRates(random, nbTiers);
+            rateCard.put("meter" + meter, meterRates);
+            metersRates.put("meter" + meter, MeterRates.of(meterRates));
+        }
+        List<String> recordMeters = new ArrayList<>(nbRecords);
+        double[] recordQuantities = new double[nbRecords];
+        for (int record = 0; record < nbRecords; record++) {
+            recordMeters.add("meter" + random.nextInt(nbMeters));
+            recordQuantities[record] = random.nextDouble() * nbTiers * 100;
+        }
+
+        System.out.println(String.format("%d meters of %d tiers, %d usage records", nbMeters, nbTiers, nbRecords));
+        for (int round = 0; round < NB_ROUNDS; round++) {
+            long start = System.nanoTime();
+            double legacyTotal = 0;
+            for (int record = 0; record < nbRecords; record++) {
+                legacyTotal += legacyCost(recordQuantities[record], rateCard.get(recordMeters.get(record)));
+            }
+            long legacyDuration = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double total = 0;
+            for (int record = 0; record < nbRecords; record++) {
+                total += metersRates.get(recordMeters.get(record)).getCost(recordQuantities[record]);
+            }
+            long duration = System.nanoTime() - start;
+
+            System.out.println(String.format("round %d: string thresholds %.0f records/s, pre-parsed thresholds %.0f records/s (total costs %.2f / %.2f)",
+                                             round,
+                                             nbRecords * 1e9 / legacyDuration,
+                                             nbRecords * 1e9 / duration,
+                                             legacyTotal,
+                                             total));
+        }
+    }
+
+    static LinkedHashMap<String, Double> randomMeterRates(Random random, int nbTiers) {
+        LinkedHashMap<String, Double> meterRates = new LinkedHashMap<>();
+        double threshold = 0;
+        for (int tier = 0; tier < nbTiers; tier++) {
+            meterRates.put(Double.toString(threshold), random.nextDouble());
+            threshold += 1 + random.nextInt(200);
+        }
+        return meterRates;
+    }
+
+    /**
+     * The cost computation previously made for each usage record, on the rates
+     * of the rate card ordered by ascending threshold.
+     */
+    static double legacyCost(double resourceQuantityInThatHour, LinkedHashMap<String, Double> meterRates) {
+
+        if (meterRates == null || meterRates.isEmpty()) {
+            return 0;
+        }
+
+        double resourceCostInThatHour = 0;
+        double quantityToPriceInThisStep;
+        double lowerStepQuantity = -1;
+        double lowerStepRate = -1;
+        double upperStepQuantity;
+        double upperStepRate;
+
+        for (Map.Entry<String, Double> meterRatesEntry : meterRates.entrySet()) {
+            upperStepQuantity = Double.parseDouble(meterRatesEntry.getKey());
+            upperStepRate = meterRatesEntry.getValue();
+
+            if (lowerStepQuantity != -1) {
+                if (resourceQuantityInThatHour >= upperStepQuantity) {
+                    quantityToPriceInThisStep = upperStepQuantity - lowerStepQuantity;
+                } else if (resourceQuantityInThatHour > lowerStepQuantity) {
+                    quantityToPriceInThisStep = resourceQuantityInThatHour - lowerStepQuantity;
+                } else {
+                    break;
+                }
+                resourceCostInThatHour += quantityToPriceInThisStep * lowerStepRate;
+            }
+
+            lowerStepQuantity = upperStepQuantity;
+            lowerStepRate = upperStepRate;
+        }
+
+        if (resourceQuantityInThatHour > lowerStepQuantity) {
+            quantityToPriceInThisStep = resourceQuantityInThatHour - lowerStepQuantity;
+            resourceCostInThatHour += quantityToPriceInThisStep * lowerStepRate;
+        }
+
+        return resourceCostInThatHour;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.billing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+
+public class MeterRatesTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testTieredCost() {
+        MeterRates meterRates = MeterRates.of(ImmutableMap.of("0", 2.0, "10", 1.0, "100", 0.5));
+
+        assertThat(meterRates.getCost(0), is(0.0));
+        assertEquals(10, meterRates.getCost(5), DELTA);
+        assertEquals(20, meterRates.getCost(10), DELTA);
+        assertEquals(60, meterRates.getCost(50), DELTA);
+        assertEquals(110, meterRates.getCost(100), DELTA);
+        assertEquals(160, meterRates.getCost(200), DELTA);
+    }
+
+    @Test
+    public void testQuantityBelowLowestThresholdIsFree() {
+        MeterRates meterRates = MeterRates.of(ImmutableMap.of("5", 2.0));
+
+        assertThat(meterRates.getCost(5), is(0.0));
+        assertEquals(4, meterRates.getCost(7), DELTA);
+        assertThat(MeterRates.of(ImmutableMap.of()).getCost(7), is(0.0));
+    }
+
+    @Test
+    public void testThresholdsSorted() {
+        MeterRates meterRates = MeterRates.of(ImmutableMap.of("100", 0.5, "0", 2.0, "10", 1.0));
+
+        assertEquals(160, meterRates.getCost(200), DELTA);
+    }
+
+    @Test
+    public void testSameCostAsStringThresholds() {
+        Random random = new Random(1);
+        for (int meter = 0; meter < 100; meter++) {
+            LinkedHashMap<String, Double> rateCardRates = MeterRatesBenchmark.randomMeterRates(random,
+                                                                                                1 + random.nextInt(10));
+            MeterRates meterRates = MeterRates.of(rateCardRates);
+            for (int record = 0; record < 100; record++) {
+                double quantity = random.nextDouble() * 2000;
+                assertEquals(MeterRatesBenchmark.legacyCost(quantity, rateCardRates),
+                             meterRates.getCost(quantity),
+                             DELTA);
+            }
+        }
+    }
+
+}
@@ -393,7 +393,7 @@ public class AzureInfrastructureTest {
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstance("node_source_name", "123");
+        verify(connectorIaasController, timeout(10000)).terminateInstance("node_source_name", "123");
 
         assertThat(azureInfrastructure.getNodesPerInstancesMap().isEmpty(), is(true));
 
@@ -452,4 +452,86 @@ public class AzureInfrastructureTest {
         assertThat(azureInfrastructure.getNodesPerInstancesMapCopy().get("123").size(), is(1));
         assertThat(azureInfrastructure.getNodesPerInstancesMapCopy().get("123").contains("nodename"), is(true));
     }
+
+    @Test
+    public void testScriptFailureOnNewInstanceNotRecovered() throws ScriptNotExecutedException {
+        AzureInfrastructure infrastructure = spyInfrastructure();
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+
+        infrastructure.handleScriptNotExecutedException(false,
+                                                        "123",
+                                                        new ScriptNotExecutedException(new Exception("script failed")),
+                                                        scriptExecution);
+
+        verify(infrastructure, never()).listExistingInstances();
+        verify(infrastructure, never()).recreateInstances(anyInt());
+        verify(scriptExecution, never()).execute();
+    }
+
+    @Test
+    public void testMissingSavedInstanceRemovedAndRecreated() throws ScriptNotExecutedException {
+        AzureInfrastructure infrastructure = spyInfrastructure();
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        infrastructure.getNodesPerInstancesMap().put("123", Sets.newHashSet("nodename"));
+        doReturn(Sets.newHashSet()).when(infrastructure).listExistingInstances();
+
+        infrastructure.handleScriptNotExecutedException(true,
+                                                        "123",
+                                                        new ScriptNotExecutedException(new Exception("script failed")),
+                                                        scriptExecution);
+
+        assertThat(infrastructure.getNodesPerInstancesMapCopy().containsKey("123"), is(false));
+        verify(infrastructure).recreateInstances(1);
+        verify(nodeSource).executeInParallel(any(Runnable.class));
+        verify(scriptExecution, never()).execute();
+    }
+
+    @Test
+    public void testScriptRetriedOnExistingSavedInstance() throws ScriptNotExecutedException, InterruptedException {
+        AzureInfrastructure infrastructure = spyInfrastructure();
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        doThrow(new ScriptNotExecutedException(new Exception("script failed"))).doNothing()
+                                                                               .when(scriptExecution)
+                                                                               .execute();
+        infrastructure.getNodesPerInstancesMap().put("123", Sets.newHashSet("nodename"));
+        doReturn(Sets.newHashSet("123")).when(infrastructure).listExistingInstances();
+        doReturn(new RetryPolicy(4, 10, 10, 10000)).when(infrastructure).getInstanceRecoveryRetryPolicy();
+
+        infrastructure.handleScriptNotExecutedException(true,
+                                                        "123",
+                                                        new ScriptNotExecutedException(new Exception("script failed")),
+                                                        scriptExecution);
+
+        // the instance is kept, and the script is executed again until it succeeds
+        verify(scriptExecution, timeout(10000).times(2)).execute();
+        Thread.sleep(200);
+        verify(scriptExecution, times(2)).execute();
+        assertThat(infrastructure.getNodesPerInstancesMapCopy().containsKey("123"), is(true));
+        verify(infrastructure, never()).recreateInstances(anyInt());
+    }
+
+    @Test
+    public void testScriptRetriesGivenUpAfterMaxAttempts() throws ScriptNotExecutedException, InterruptedException {
+        AzureInfrastructure infrastructure = spyInfrastructure();
+        AbstractAddonInfrastructure.ScriptExecution scriptExecution = mock(AbstractAddonInfrastructure.ScriptExecution.class);
+        doThrow(new ScriptNotExecutedException(new Exception("script failed"))).when(scriptExecution).execute();
+        doReturn(Sets.newHashSet("123")).when(infrastructure).listExistingInstances();
+        doReturn(new RetryPolicy(4, 10, 10, 10000)).when(infrastructure).getInstanceRecoveryRetryPolicy();
+
+        infrastructure.handleScriptNotExecutedException(true,
+                                                        "123",
+                                                        new ScriptNotExecutedException(new Exception("script failed")),
+                                                        scriptExecution);
+
+        // the failed deployment is the first of the 4 attempts
+        verify(scriptExecution, timeout(10000).times(3)).execute();
+        Thread.sleep(200);
+        verify(scriptExecution, times(3)).execute();
+    }
+
+    private AzureInfrastructure spyInfrastructure() {
+        when(nodeSource.getName()).thenReturn("Node source Name");
+        azureInfrastructure.nodeSource = nodeSource;
+        return spy(azureInfrastructure);
+    }
 }
@@ -27,11 +27,18 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import static org.ow2.proactive.resourcemanager.utils.RMNodeStarter.NODE_TAGS_PROP_NAME;
 
+import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.KeyException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -41,8 +48,12 @@ import org.objectweb.proactive.core.node.Node;
 import org.ow2.proactive.authentication.crypto.Credentials;
 import org.ow2.proactive.resourcemanager.exception.RMException;
 import org.ow2.proactive.resourcemanager.nodesource.infrastructure.model.Port;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.util.NSProperties;
 
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -89,6 +100,13 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      */
     private static final String NB_ACQUIRED_NODES_KEY = "nbAcquiredNodes";
 
+    /**
+     * Key to retrieve the instances which have been created and on which no
+     * node has registered yet, with the time (in milliseconds) at which they
+     * have been created.
+     */
+    private static final String DEPLOYING_INSTANCES_KEY = "deployingInstances";
+
     /**
      * Dynamic policy parameters key
      **/
@@ -96,6 +114,56 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
 
     protected static final String MAX_NODES_KEY = "MAX_NODES";
 
+    private static final int NB_INSTANCE_LOCK_STRIPES = 64;
+
+    /**
+     * The identifiers of the instances are referenced by several maps and
+     * by the nodes index, they are interned to be held only once.
+     */
+    private static final Interner<String> INSTANCE_IDS = Interners.newWeakInterner();
+
+    private static final int DEFAULT_EXECUTOR_THREADS = 20;
+
+    private static final int DEFAULT_EXECUTOR_QUEUE_CAPACITY = 1000;
+
+    private static final int DEFAULT_DEPLOYMENT_MAX_PARALLEL_INSTANCES = 20;
+
+    private static final int DEFAULT_INSTANCE_TERMINATION_MAX_ATTEMPTS = 3;
+
+    private static final long DEFAULT_INSTANCE_TERMINATION_RETRY_INITIAL_DELAY = 5000;
+
+    private static final long DEFAULT_INSTANCE_TERMINATION_RETRY_MAX_DELAY = 60000;
+
+    private static final long DEFAULT_INSTANCE_RECONCILIATION_PERIOD = 600000;
+
+    private static final long DEFAULT_INSTANCE_RECONCILIATION_MIN_INTERVAL = 60000;
+
+    private static final int DEFAULT_INSTANCE_RECONCILIATION_MAX_TERMINATIONS = 10;
+
+    private static final long DEFAULT_INSTANCE_DEPLOYMENT_TIMEOUT = 1800000;
+
+    private static final int DEFAULT_INSTANCE_RECOVERY_MAX_ATTEMPTS = 3;
+
+    private static final long DEFAULT_INSTANCE_RECOVERY_RETRY_INITIAL_DELAY = 10000;
+
+    private static final long DEFAULT_INSTANCE_RECOVERY_RETRY_MAX_DELAY = 60000;
+
+    private static final int DEFAULT_ACQUISITION_MAX_PARALLEL_DEPLOYMENTS = 4;
+
+    private static final int DEFAULT_ACQUISITION_MAX_PENDING_REQUESTS = 100;
+
+    private static final InstanceCountPlanner DEFAULT_INSTANCE_COUNT_PLANNER = new DefaultInstanceCountPlanner();
+
+    /**
+     * Schedules the retries of the scripts deploying the nodes on the saved
+     * instances, shared by all the infrastructures: the retries are run by
+     * the executor of the infrastructure once they are due, so that no thread
+     * of this executor waits for them.
+     */
+    private static final ScheduledExecutorService SCRIPT_RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("script-retry-%d")
+                                                                                                                                              .setDaemon(true)
+                                                                                                                                              .build());
+
     // The ports which should always be open on the instance. For example, the port 22 always needs to be open to be able to execute initial script.
     protected static final List<Integer> ALWAYS_OPEN_PORTS = Arrays.asList(22);
 
@@ -111,8 +179,76 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      */
     protected transient Map<String, Set<String>> nodesPerInstance;
 
+    /**
+     * Reverse index of the nodesPerInstance map, which maps the name of the
+     * nodes to the identifier of their instance. It is not persisted: it is
+     * rebuilt from the persisted map the first time it is needed, and then
+     * maintained by the updates of the persisted variables. It can be read
+     * without lock.
+     */
+    private final transient Map<String, String> instanceIdPerNode = new ConcurrentHashMap<>();
+
+    /**
+     * The persisted nodesPerInstance map from which the reverse index has
+     * been built, or null if it has not been built yet.
+     */
+    private transient volatile Map<String, Set<String>> indexedNodesPerInstance = null;
+
     protected AtomicInteger nbOfAcquiredNodes = new AtomicInteger(0);
 
+    /**
+     * Signaled each time the number of acquired nodes changes, to wake up
+     * the deployments waiting for their nodes to be up.
+     */
+    protected final transient NodesReadinessTracker nodesReadinessTracker = new NodesReadinessTracker();
+
+    /**
+     * Runs the background work of the infrastructure. It is created on
+     * first use and shut down with the infrastructure.
+     */
+    private transient InfrastructureExecutor infrastructureExecutor = null;
+
+    private final transient Object infrastructureExecutorLock = new Object();
+
+    /**
+     * Terminates the instances which are no longer used, outside of the
+     * lock of the persisted variables. It is created on first use and shut
+     * down with the infrastructure.
+     */
+    private transient InstanceTerminator instanceTerminator = null;
+
+    /**
+     * Periodically reconciles the persisted instances with the instances
+     * existing in the cloud. It is created on first use and stopped with
+     * the infrastructure.
+     */
+    private transient InstanceReconciler instanceReconciler = null;
+
+    /**
+     * Queue of the node acquisitions requested by the policy. It is created
+     * on first use.
+     */
+    private transient NodeAcquisitionQueue nodeAcquisitionQueue = null;
+
+    /**
+     * Coalesces the updates of the persisted variables made by concurrent
+     * node events into a single persistence operation.
+     */
+    private final transient PersistedInfraVariablesBatcher persistedInfraVariablesBatcher = new PersistedInfraVariablesBatcher();
+
+    /**
+     * Serializes the updates of the state of a same instance, the updates
+     * of different instances running concurrently.
+     */
+    private final transient StripedLocks instanceLocks = new StripedLocks(NB_INSTANCE_LOCK_STRIPES);
+
+    /**
+     * Whether the state of the infrastructure has been recovered after a
+     * restart of the resource manager. The recovery is made once, on the
+     * first down node notified without node object.
+     */
+    private transient volatile boolean stateRecovered = false;
+
     protected AtomicInteger instancesIndex = new AtomicInteger(0);
 
     /**
@@ -161,10 +297,7 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
     }
 
     private void incrementNumberOfAcquiredNodesWithLockAndPersist() {
-        setPersistedInfraVariable(() -> {
-            this.persistedInfraVariables.put(NB_ACQUIRED_NODES_KEY, nbOfAcquiredNodes.incrementAndGet());
-            return nbOfAcquiredNodes.get();
-        });
+        updatePersistedInfraVariables(this::incrementNumberOfAcquiredNodes);
     }
 
     protected int getNumberOfAcquiredNodesWithLock() {
@@ -172,12 +305,165 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
     }
 
     protected void decrementNumberOfAcquiredNodesWithLockAndPersist() {
+        updatePersistedInfraVariables(this::decrementNumberOfAcquiredNodes);
+    }
+
+    /**
+     * Increments the number of acquired nodes. This method must be called
+     * within an update of the persisted variables or of an instance state,
+     * the persisted number being refreshed when the variables are saved.
+     */
+    private int incrementNumberOfAcquiredNodes() {
+        int nbAcquiredNodes = nbOfAcquiredNodes.incrementAndGet();
+        nodesReadinessTracker.update(nbAcquiredNodes);
+        return nbAcquiredNodes;
+    }
+
+    /**
+     * Decrements the number of acquired nodes. This method must be called
+     * within an update of the persisted variables or of an instance state,
+     * the persisted number being refreshed when the variables are saved.
+     */
+    protected int decrementNumberOfAcquiredNodes() {
+        int nbAcquiredNodes = nbOfAcquiredNodes.decrementAndGet();
+        nodesReadinessTracker.update(nbAcquiredNodes);
+        return nbAcquiredNodes;
+    }
+
+    /**
+     * Updates the persisted variables within the write lock exposed by the
+     * super class, and saves them in database. The updates made concurrently
+     * by several node events are saved together, with a single persistence
+     * operation. The persisted maps are modified in place by the updates,
+     * they are not copied. The update must not call
+     * {@link InfrastructureManager#setPersistedInfraVariable} itself.
+     * @param update the modifications to make to the persisted variables
+     * @return the value returned by the update
+     */
+    protected <T> T updatePersistedInfraVariables(Supplier<T> update) {
+        return persistedInfraVariablesBatcher.update(update, this::commitPersistedInfraVariables);
+    }
+
+    private void commitPersistedInfraVariables(Runnable updates) {
         setPersistedInfraVariable(() -> {
-            this.persistedInfraVariables.put(NB_ACQUIRED_NODES_KEY, nbOfAcquiredNodes.decrementAndGet());
-            return nbOfAcquiredNodes.get();
+            updates.run();
+            persistedInfraVariables.put(NB_ACQUIRED_NODES_KEY, nbOfAcquiredNodes.get());
+            return null;
         });
     }
 
+    /**
+     * Updates the state of an instance (its nodes, its removed nodes and
+     * whether it is without nodes) in the persisted variables, and saves
+     * them in database. The update holds the read lock exposed by the super
+     * class and the lock of the instance: the updates of different
+     * instances run concurrently, whereas the persistence, made within the
+     * write lock, always saves a consistent state. The update must only
+     * modify the entries of the given instance, and must not call
+     * {@link InfrastructureManager#setPersistedInfraVariable} nor
+     * {@link AbstractAddonInfrastructure#updatePersistedInfraVariables}.
+     * @param instanceId the identifier of the instance
+     * @param update the modifications to make to the state of the instance
+     * @return the value returned by the update
+     */
+    protected <T> T updateInstanceState(String instanceId, Supplier<T> update) {
+        if (!getPersistedInfraVariable(this::isInstanceStateConcurrent)) {
+            updatePersistedInfraVariables(() -> {
+                makeInstanceStateConcurrent();
+                return null;
+            });
+        }
+        T result = getPersistedInfraVariable(() -> instanceLocks.withLock(instanceId, update));
+        // the updates of the instances made meanwhile are saved together
+        updatePersistedInfraVariables(() -> null);
+        return result;
+    }
+
+    private boolean isInstanceStateConcurrent() {
+        return persistedInfraVariables.get(NODES_PER_INSTANCES_KEY) instanceof ConcurrentHashMap &&
+               persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY) instanceof ConcurrentHashMap &&
+               persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY) instanceof ConcurrentHashMap;
+    }
+
+    /**
+     * Replaces the maps holding the state of the instances by concurrent
+     * ones, typically when they have been restored from a previous version.
+     * This method must be called within the write lock.
+     */
+    @SuppressWarnings("unchecked")
+    private void makeInstanceStateConcurrent() {
+        if (isInstanceStateConcurrent()) {
+            return;
+        }
+        persistedInfraVariables.put(NODES_PER_INSTANCES_KEY,
+                                    newConcurrentNodesPerInstance((Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY)));
+        persistedInfraVariables.put(NB_REMOVED_NODES_PER_INSTANCE_KEY,
+                                    new ConcurrentHashMap<>((Map<String, Integer>) persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY)));
+        persistedInfraVariables.put(INSTANCES_WITHOUT_NODES_MAP_KEY,
+                                    new ConcurrentHashMap<>((Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY)));
+    }
+
+    private static ConcurrentHashMap<String, Set<String>> newConcurrentNodesPerInstance(Map<String, Set<String>> source) {
+        ConcurrentHashMap<String, Set<String>> concurrentNodesPerInstance = new ConcurrentHashMap<>();
+        source.forEach((instanceId, nodeNames) -> concurrentNodesPerInstance.put(INSTANCE_IDS.intern(instanceId),
+                                                                                 ImmutableSet.copyOf(nodeNames)));
+        return concurrentNodesPerInstance;
+    }
+
+    /**
+     * The node names of an instance are held in an immutable set, which is
+     * replaced on each change of the instance. An instance usually runs a
+     * few nodes, for which an immutable set is much smaller than a hash set
+     * (a single node is held without any array), and the readers of the
+     * map always see a consistent set without lock.
+     * @return the node names of the given set, with the given node name
+     */
+    static Set<String> withNodeName(Set<String> nodeNames, String nodeName) {
+        if (nodeNames == null) {
+            return ImmutableSet.of(nodeName);
+        }
+        if (nodeNames.contains(nodeName)) {
+            return nodeNames;
+        }
+        return ImmutableSet.<String> builder().addAll(nodeNames).add(nodeName).build();
+    }
+
+    /**
+     * @return the node names of the given set, without the given node name
+     */
+    static Set<String> withoutNodeName(Set<String> nodeNames, String nodeName) {
+        if (!nodeNames.contains(nodeName)) {
+            return nodeNames;
+        }
+        ImmutableSet.Builder<String> remainingNodeNames = ImmutableSet.builder();
+        nodeNames.stream().filter(name -> !name.equals(nodeName)).forEach(remainingNodeNames::add);
+        return remainingNodeNames.build();
+    }
+
+    /**
+     * Waits until the infrastructure has acquired the given total number of
+     * nodes. The wait ends as soon as the last expected node is acquired.
+     * @param totalNodes the number of acquired nodes to wait for
+     * @param timeoutMillis the maximum time to wait (in milliseconds)
+     * @return whether all the nodes are acquired before the timeout
+     */
+    protected boolean waitForAcquiredNodes(int totalNodes, long timeoutMillis) {
+        // the counter may have been restored without going through the tracker
+        nodesReadinessTracker.update(nbOfAcquiredNodes.get());
+        logger.info("Waiting for " + (totalNodes - nbOfAcquiredNodes.get()) + " nodes to be up");
+        try {
+            if (nodesReadinessTracker.awaitAcquiredNodes(totalNodes, timeoutMillis)) {
+                return true;
+            }
+            logger.error("Only " + nbOfAcquiredNodes.get() + " out of " + totalNodes + " nodes are up after " +
+                         timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for " + totalNodes + " nodes to be up", e);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
     @Override
     public void notifyDownNode(String nodeName, String nodeUrl, Node node) throws RMException {
         // if the node object is null, it means that we are in a recovery of
@@ -186,6 +472,7 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
         if (node != null) {
             instanceId = getInstanceIdProperty(node);
         } else {
+            recoverStateIfNeeded();
             instanceId = tryToFindInstanceIdOfNode(nodeName);
         }
         if (instanceId != null) {
@@ -212,18 +499,453 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
 
     @Override
     public void shutDown() {
+        shutDownInfrastructureExecutor();
+        closeConnectorIaasController();
         expectInstancesAlreadyCreated(true, false);
     }
 
+    /**
+     * Releases the connector-iaas resources of the infrastructure, such as
+     * the background probes of the endpoint. The controller can still send
+     * the requests made while shutting down.
+     */
+    protected void closeConnectorIaasController() {
+        if (connectorIaasController != null) {
+            connectorIaasController.close();
+        }
+    }
+
+    /**
+     * @return the executor running the background work of this
+     * infrastructure, shared by all its deployments
+     */
+    protected InfrastructureExecutor getInfrastructureExecutor() {
+        synchronized (infrastructureExecutorLock) {
+            if (infrastructureExecutor == null) {
+                infrastructureExecutor = new InfrastructureExecutor(getInfrastructureId() + "-executor",
+                                                                    NSProperties.getIntProperty(NSProperties.INFRASTRUCTURE_EXECUTOR_THREADS,
+                                                                                                DEFAULT_EXECUTOR_THREADS),
+                                                                    NSProperties.getIntProperty(NSProperties.INFRASTRUCTURE_EXECUTOR_QUEUE_CAPACITY,
+                                                                                                DEFAULT_EXECUTOR_QUEUE_CAPACITY));
+            }
+            return infrastructureExecutor;
+        }
+    }
+
+    /**
+     * @return the maximum number of instances on which nodes are deployed in
+     * parallel, the deployments being run by batches of this size
+     */
+    protected int getDeploymentMaxParallelInstances() {
+        return Math.max(1,
+                        NSProperties.getIntProperty(NSProperties.DEPLOYMENT_MAX_PARALLEL_INSTANCES,
+                                                    DEFAULT_DEPLOYMENT_MAX_PARALLEL_INSTANCES));
+    }
+
+    /**
+     * @return the terminator of the instances of this infrastructure
+     */
+    protected InstanceTerminator getInstanceTerminator() {
+        synchronized (infrastructureExecutorLock) {
+            if (instanceTerminator == null) {
+                int maxAttempts = NSProperties.getIntProperty(NSProperties.INSTANCE_TERMINATION_MAX_ATTEMPTS,
+                                                              DEFAULT_INSTANCE_TERMINATION_MAX_ATTEMPTS);
+                long maxDelay = NSProperties.getLongProperty(NSProperties.INSTANCE_TERMINATION_RETRY_MAX_DELAY,
+                                                             DEFAULT_INSTANCE_TERMINATION_RETRY_MAX_DELAY);
+                RetryPolicy retryPolicy = new RetryPolicy(maxAttempts,
+                                                          NSProperties.getLongProperty(NSProperties.INSTANCE_TERMINATION_RETRY_INITIAL_DELAY,
+                                                                                       DEFAULT_INSTANCE_TERMINATION_RETRY_INITIAL_DELAY),
+                                                          maxDelay,
+                                                          maxAttempts * maxDelay);
+                instanceTerminator = new InstanceTerminator(getInfrastructureId(),
+                                                            this::terminateInstance,
+                                                            getInfrastructureExecutor(),
+                                                            retryPolicy);
+            }
+            return instanceTerminator;
+        }
+    }
+
+    /**
+     * Requests the termination of an instance which is no longer used. The
+     * termination is made in the background, so this method can be called
+     * right after the instance is removed from the persisted variables,
+     * without waiting for the cloud provider.
+     * @param instanceId the identifier of the instance to terminate
+     * @return a future completed once the instance is terminated
+     */
+    protected CompletableFuture<Void> requestInstanceTermination(String instanceId) {
+        return getInstanceTerminator().terminate(instanceId);
+    }
+
+    /**
+     * @return the reconciler of the instances of this infrastructure
+     */
+    protected InstanceReconciler getInstanceReconciler() {
+        synchronized (infrastructureExecutorLock) {
+            if (instanceReconciler == null) {
+                long period = NSProperties.getLongProperty(NSProperties.INSTANCE_RECONCILIATION_PERIOD,
+                                                           DEFAULT_INSTANCE_RECONCILIATION_PERIOD);
+                instanceReconciler = new InstanceReconciler(getInfrastructureId(),
+                                                            new PersistedInstancesInventory(),
+                                                            getInfrastructureExecutor(),
+                                                            period,
+                                                            NSProperties.getLongProperty(NSProperties.INSTANCE_RECONCILIATION_MIN_INTERVAL,
+                                                                                         DEFAULT_INSTANCE_RECONCILIATION_MIN_INTERVAL),
+                                                            NSProperties.getIntProperty(NSProperties.INSTANCE_RECONCILIATION_MAX_TERMINATIONS,
+                                                                                        DEFAULT_INSTANCE_RECONCILIATION_MAX_TERMINATIONS),
+                                                            NSProperties.getLongProperty(NSProperties.INSTANCE_RECONCILIATION_ORPHAN_MIN_AGE,
+                                                                                         2 * period));
+            }
+            return instanceReconciler;
+        }
+    }
+
+    /**
+     * @return the queue of the node acquisitions of this infrastructure
+     */
+    protected NodeAcquisitionQueue getNodeAcquisitionQueue() {
+        synchronized (infrastructureExecutorLock) {
+            if (nodeAcquisitionQueue == null) {
+                nodeAcquisitionQueue = new NodeAcquisitionQueue(getInfrastructureId(),
+                                                                this::deployRequestedNodes,
+                                                                task -> nodeSource.executeInParallel(task),
+                                                                NSProperties.getIntProperty(NSProperties.ACQUISITION_MAX_PARALLEL_DEPLOYMENTS,
+                                                                                            DEFAULT_ACQUISITION_MAX_PARALLEL_DEPLOYMENTS),
+                                                                NSProperties.getIntProperty(NSProperties.ACQUISITION_MAX_PENDING_REQUESTS,
+                                                                                            DEFAULT_ACQUISITION_MAX_PENDING_REQUESTS));
+            }
+            return nodeAcquisitionQueue;
+        }
+    }
+
+    /**
+     * Queues the acquisition of nodes requested by the policy. The requests
+     * with the same node configuration are coalesced into a single deployment,
+     * made by {@link #deployRequestedNodes(int, Map)}.
+     * @param numberOfNodes the number of nodes requested
+     * @param startTimeout the maximum time (in milliseconds) the request can
+     *                     wait before its deployment starts, or 0 to wait
+     *                     without limit
+     * @param nodeConfiguration the node configuration of the request
+     * @return a future completed once the nodes are deployed, or completed
+     * exceptionally if the request is rejected or the deployment fails
+     */
+    protected CompletableFuture<Void> requestNodesAcquisition(int numberOfNodes, long startTimeout,
+            Map<String, ?> nodeConfiguration) {
+        return getNodeAcquisitionQueue().submit(numberOfNodes, startTimeout, nodeConfiguration);
+    }
+
+    /**
+     * Deploys the nodes of an acquisition requested through
+     * {@link #requestNodesAcquisition(int, long, Map)}. It must be overridden
+     * by the infrastructures queuing their node acquisitions.
+     * @param numberOfNodes the number of nodes requested
+     * @param nodeConfiguration the node configuration of the latest request
+     */
+    protected void deployRequestedNodes(int numberOfNodes, Map<String, ?> nodeConfiguration) throws Exception {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not queue its node acquisitions");
+    }
+
+    /**
+     * Redeploys the nodes on the given instances, which still exist but on
+     * which no node runs anymore. It is called by the instance reconciler,
+     * and should be overridden by the infrastructures which redeploy their
+     * nodes on the instances without nodes.
+     * @param instanceIds the identifiers of the instances without nodes
+     * @return whether the redeployment has been triggered
+     */
+    protected boolean redeployNodesOnInstancesWithoutNodes(Set<String> instanceIds) {
+        return false;
+    }
+
+    /**
+     * @return whether the instances of the infrastructure have already been
+     * created
+     */
+    protected boolean isInfrastructureCreated() {
+        return getPersistedInfraVariable(() -> Boolean.TRUE.equals(persistedInfraVariables.get(INFRASTRUCTURE_CREATED_FLAG_KEY)));
+    }
+
+    /**
+     * Terminates an instance on the cloud provider. It is called in the
+     * background by the instance terminator, and should be overridden by
+     * the infrastructures which identify their instances differently.
+     * @param instanceId the identifier of the instance to terminate
+     */
+    protected void terminateInstance(String instanceId) {
+        connectorIaasController.terminateInstance(getInfrastructureId(), instanceId);
+    }
+
+    protected void shutDownInfrastructureExecutor() {
+        synchronized (infrastructureExecutorLock) {
+            if (instanceReconciler != null) {
+                instanceReconciler.stop();
+                instanceReconciler = null;
+            }
+            if (instanceTerminator != null) {
+                instanceTerminator.cancelPendingTerminations();
+                instanceTerminator = null;
+            }
+            if (infrastructureExecutor != null) {
+                infrastructureExecutor.shutdown();
+                infrastructureExecutor = null;
+            }
+        }
+    }
+
     @Override
     protected void initializePersistedInfraVariables() {
-        persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-        persistedInfraVariables.put(NB_REMOVED_NODES_PER_INSTANCE_KEY, Maps.newHashMap(nbRemovedNodesPerInstance));
-        persistedInfraVariables.put(INSTANCES_WITHOUT_NODES_MAP_KEY, Maps.newHashMap(instancesWithoutNodesMap));
+        persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, newConcurrentNodesPerInstance(nodesPerInstance));
+        persistedInfraVariables.put(NB_REMOVED_NODES_PER_INSTANCE_KEY, new ConcurrentHashMap<>(nbRemovedNodesPerInstance));
+        persistedInfraVariables.put(INSTANCES_WITHOUT_NODES_MAP_KEY, new ConcurrentHashMap<>(instancesWithoutNodesMap));
         persistedInfraVariables.put(INFRASTRUCTURE_CREATED_FLAG_KEY, false);
         persistedInfraVariables.put(NB_ACQUIRED_NODES_KEY, nbOfAcquiredNodes);
     }
 
+    /**
+     * Takes a snapshot of the state of the infrastructure, in a single pass
+     * over the persisted variables. The snapshot is taken within the write
+     * lock, so that no instance state is being updated meanwhile.
+     * @return the snapshot of the state of the infrastructure
+     */
+    @SuppressWarnings("unchecked")
+    protected InfrastructureStateSnapshot takeStateSnapshot() {
+        return updatePersistedInfraVariables(() -> {
+            Map<String, Serializable> infrastructureVariables = new HashMap<>(persistedInfraVariables);
+            Map<String, Set<String>> nodesPerInstanceVariable = (Map<String, Set<String>>) infrastructureVariables.remove(NODES_PER_INSTANCES_KEY);
+            Map<String, Integer> nbRemovedNodesVariable = (Map<String, Integer>) infrastructureVariables.remove(NB_REMOVED_NODES_PER_INSTANCE_KEY);
+            Map<String, Integer> instancesWithoutNodesVariable = (Map<String, Integer>) infrastructureVariables.remove(INSTANCES_WITHOUT_NODES_MAP_KEY);
+            Object nbAcquiredNodesVariable = infrastructureVariables.remove(NB_ACQUIRED_NODES_KEY);
+            Object infrastructureCreatedVariable = infrastructureVariables.remove(INFRASTRUCTURE_CREATED_FLAG_KEY);
+            return new InfrastructureStateSnapshot(InfrastructureStateSnapshot.CURRENT_VERSION,
+                                                   nodesPerInstanceVariable == null ? Collections.emptyMap()
+                                                                                    : nodesPerInstanceVariable,
+                                                   nbRemovedNodesVariable == null ? Collections.emptyMap()
+                                                                                  : nbRemovedNodesVariable,
+                                                   instancesWithoutNodesVariable == null ? Collections.emptyMap()
+                                                                                         : instancesWithoutNodesVariable,
+                                                   nbAcquiredNodesVariable instanceof Number ? ((Number) nbAcquiredNodesVariable).intValue()
+                                                                                             : nbOfAcquiredNodes.get(),
+                                                   Boolean.TRUE.equals(infrastructureCreatedVariable),
+                                                   infrastructureVariables);
+        });
+    }
+
+    /**
+     * @return whether the instances of this infrastructure are identified
+     * by their tag rather than by the identifier given by the cloud
+     * provider
+     */
+    protected boolean identifiesInstancesByTag() {
+        return false;
+    }
+
+    /**
+     * Lists the instances of the infrastructure which exist in the cloud,
+     * with a single request to connector-iaas.
+     * @return the identifiers (or the tags, see
+     * {@link AbstractAddonInfrastructure#identifiesInstancesByTag()}) of the
+     * existing instances, or {@code null} if they cannot be listed
+     */
+    protected Set<String> listExistingInstances() {
+        Map<String, Set<String>> instanceIdsByTag = listInstanceIdsByTag();
+        return instanceIdsByTag == null ? null : toInstances(instanceIdsByTag);
+    }
+
+    /**
+     * Lists the instances of the infrastructure which exist in the cloud and
+     * have been created by this infrastructure, according to their tag.
+     * @return the identifiers (or the tags) of the instances, or
+     * {@code null} if they cannot be listed
+     */
+    protected Set<String> listOwnInstances() {
+        Map<String, Set<String>> instanceIdsByTag = listInstanceIdsByTag();
+        if (instanceIdsByTag == null) {
+            return null;
+        }
+        instanceIdsByTag.keySet().removeIf(instanceTag -> !isOwnInstanceTag(instanceTag));
+        return toInstances(instanceIdsByTag);
+    }
+
+    /**
+     * The listing of connector-iaas covers the whole account or region, so
+     * the tag must match exactly what this infrastructure gives to its
+     * instances: by default the tag is the infrastructure id. It should be
+     * overridden by the infrastructures which derive the tag of an instance
+     * from their id.
+     * @return whether an instance having the given tag has been created by
+     * this infrastructure
+     */
+    protected boolean isOwnInstanceTag(String instanceTag) {
+        return instanceTag.equals(getInfrastructureId());
+    }
+
+    /**
+     * @return the identifiers of the instances listed by connector-iaas,
+     * indexed by tag, or {@code null} if they cannot be listed
+     */
+    protected Map<String, Set<String>> listInstanceIdsByTag() {
+        if (connectorIaasController == null) {
+            return null;
+        }
+        try {
+            return new HashMap<>(connectorIaasController.getInstanceIdsByTag(getInfrastructureId()));
+        } catch (RuntimeException e) {
+            logger.warn("Cannot list the instances of infrastructure " + getInfrastructureId(), e);
+            return null;
+        }
+    }
+
+    private Set<String> toInstances(Map<String, Set<String>> instanceIdsByTag) {
+        if (identifiesInstancesByTag()) {
+            return new HashSet<>(instanceIdsByTag.keySet());
+        }
+        return instanceIdsByTag.values().stream().flatMap(Set::stream).collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the instances known by the persisted state: the instances
+     * having nodes, the instances having removed nodes, the instances
+     * without nodes and the instances being deployed. They are read within
+     * the write lock, so that no instance is seen moving from a map to
+     * another. The instances which have been deploying for longer than the
+     * deployment timeout are forgotten.
+     */
+    @SuppressWarnings("unchecked")
+    protected Set<String> getKnownInstances() {
+        long deploymentTimeout = NSProperties.getLongProperty(NSProperties.INSTANCE_DEPLOYMENT_TIMEOUT,
+                                                              DEFAULT_INSTANCE_DEPLOYMENT_TIMEOUT);
+        long oldestDeploymentTime = System.currentTimeMillis() - deploymentTimeout;
+        return updatePersistedInfraVariables(() -> {
+            Set<String> knownInstances = new HashSet<>();
+            knownInstances.addAll(((Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY)).keySet());
+            knownInstances.addAll(((Map<String, Integer>) persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY)).keySet());
+            knownInstances.addAll(((Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY)).keySet());
+            Map<String, Long> deployingInstances = getDeployingInstances();
+            deployingInstances.values().removeIf(creationTime -> creationTime < oldestDeploymentTime);
+            knownInstances.addAll(deployingInstances.keySet());
+            return knownInstances;
+        });
+    }
+
+    /**
+     * Records the instances which have just been created, before the nodes
+     * are deployed on them: they are known by the persisted state until
+     * their first node registers, so that they are not mistaken for orphan
+     * instances meanwhile.
+     * @param instanceIds the identifiers of the instances created
+     */
+    protected void registerDeployingInstances(Collection<String> instanceIds) {
+        long creationTime = System.currentTimeMillis();
+        updatePersistedInfraVariables(() -> {
+            Map<String, Long> deployingInstances = getDeployingInstances();
+            instanceIds.forEach(instanceId -> deployingInstances.put(INSTANCE_IDS.intern(instanceId), creationTime));
+            return null;
+        });
+    }
+
+    /**
+     * @return the persisted map of the instances being deployed, created if
+     * needed. This method must be called within the write lock.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> getDeployingInstances() {
+        Map<String, Long> deployingInstances = (Map<String, Long>) persistedInfraVariables.get(DEPLOYING_INSTANCES_KEY);
+        if (deployingInstances == null) {
+            deployingInstances = new ConcurrentHashMap<>();
+            persistedInfraVariables.put(DEPLOYING_INSTANCES_KEY, (Serializable) deployingInstances);
+        }
+        return deployingInstances;
+    }
+
+    /**
+     * Removes an instance from the instances being deployed. This method
+     * must be called within an update of the persisted variables or of the
+     * state of the instance.
+     */
+    @SuppressWarnings("unchecked")
+    private void unregisterDeployingInstance(String instanceId) {
+        Map<String, Long> deployingInstances = (Map<String, Long>) persistedInfraVariables.get(DEPLOYING_INSTANCES_KEY);
+        if (deployingInstances != null) {
+            deployingInstances.remove(instanceId);
+        }
+    }
+
+    /**
+     * Removes the given instances and their nodes from the persisted state,
+     * in a single update, typically because they do not exist anymore.
+     * @param instanceIds the identifiers of the instances to remove
+     */
+    @SuppressWarnings("unchecked")
+    protected void removeInstancesFromState(Set<String> instanceIds) {
+        updatePersistedInfraVariables(() -> {
+            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
+            nbRemovedNodesPerInstance = (Map<String, Integer>) persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY);
+            instancesWithoutNodesMap = (Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY);
+            for (String instanceId : instanceIds) {
+                Set<String> nodeNames = nodesPerInstance.remove(instanceId);
+                if (nodeNames != null) {
+                    nodeNames.forEach(nodeName -> {
+                        unindexNode(nodeName);
+                        decrementNumberOfAcquiredNodes();
+                    });
+                }
+                nbRemovedNodesPerInstance.remove(instanceId);
+                instancesWithoutNodesMap.remove(instanceId);
+                unregisterDeployingInstance(instanceId);
+            }
+            logDataStructureContent("Instances " + instanceIds + " removed");
+            return null;
+        });
+    }
+
+    /**
+     * Recovers the state of the infrastructure after a restart of the
+     * resource manager: the persisted state is read in one pass, validated
+     * against a single listing of the instances, and the instances which do
+     * not exist anymore are removed in bulk, with their nodes.
+     * @return the instances removed from the state
+     */
+    protected Set<String> recoverState() {
+        InfrastructureStateSnapshot snapshot = takeStateSnapshot();
+        try {
+            snapshot.validate();
+        } catch (IllegalStateException e) {
+            logger.error("Cannot recover the state of infrastructure " + getInfrastructureId(), e);
+            return Collections.emptySet();
+        }
+        Set<String> existingInstances = listExistingInstances();
+        if (existingInstances == null ||
+            (existingInstances.isEmpty() && !snapshot.getNodesPerInstance().isEmpty())) {
+            // an empty listing is not trusted to remove all the instances
+            logger.warn("Recovered the state of infrastructure " + getInfrastructureId() +
+                        " without checking its instances: " + snapshot);
+            return Collections.emptySet();
+        }
+        Set<String> missingInstances = snapshot.getMissingInstances(existingInstances);
+        if (!missingInstances.isEmpty()) {
+            removeInstancesFromState(missingInstances);
+            logger.warn("Instances " + missingInstances + " of infrastructure " + getInfrastructureId() +
+                        " do not exist anymore, they are removed with their nodes");
+        }
+        logger.info("Recovered the state of infrastructure " + getInfrastructureId() + ": " + takeStateSnapshot());
+        return missingInstances;
+    }
+
+    private void recoverStateIfNeeded() {
+        if (stateRecovered) {
+            return;
+        }
+        synchronized (this) {
+            if (!stateRecovered) {
+                recoverState();
+                stateRecovered = true;
+                getInstanceReconciler().start();
+            }
+        }
+    }
+
     /**
      * Implementations of this method should return the identifier of the
      * instance where this node is hosted. This is specific to the
@@ -274,74 +996,91 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
 
     /**
      * This method puts a new node name entry for the given instance. It does
-     * that within a write lock acquired, that is exposed by the super class.
-     * At the end of this method ensures, the nodesPerInstance map is saved in
-     * database.
-     * @param instanceId the identifier of the instance
+     * that within the lock of the instance state. At the end of this method
+     * ensures, the nodesPerInstance map is saved in database.
+     * @param nodeInstanceId the identifier of the instance
      * @param nodeName the name of the new node that belongs to this instance
      */
     @SuppressWarnings("unchecked")
-    protected void addNewNodeForInstance(final String instanceId, final String nodeName) {
-        setPersistedInfraVariable(() -> {
+    protected void addNewNodeForInstance(final String nodeInstanceId, final String nodeName) {
+        final String instanceId = INSTANCE_IDS.intern(nodeInstanceId);
+        updateInstanceState(instanceId, () -> {
 
             // first read from the runtime variables map
             nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
 
             // make modifications to the nodesPerInstance map
-            if (!nodesPerInstance.containsKey(instanceId)) {
-                nodesPerInstance.put(instanceId, new HashSet<String>());
-            }
-            nodesPerInstance.get(instanceId).add(nodeName);
+            nodesPerInstance.put(instanceId, withNodeName(nodesPerInstance.get(instanceId), nodeName));
+            indexNode(nodeName, instanceId);
+            unregisterDeployingInstance(instanceId);
             logger.info("Node registered: " + nodeName);
 
-            // finally write to the runtime variable map
-            incrementNumberOfAcquiredNodesWithLockAndPersist();
-            persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
+            incrementNumberOfAcquiredNodes();
 
             return null;
         });
+        // the instances are reconciled once the infrastructure has nodes
+        getInstanceReconciler().start();
     }
 
     /**
      * This method removes a node name entry for the given instance, and call
      * the instance termination mechanism if there no more nodes attached to
-     * this instance and if the terminate instance flag is set. It does all
-     * that within a write lock acquired, that is exposed by the super class.
-     * At the end of the method, the nodesPerInstance map is saved in database.
+     * this instance and if the terminate instance flag is set. The removal is
+     * made within the lock of the instance state, and the nodesPerInstance
+     * map is saved in database. The termination is
+     * requested once the lock is released, and made in the background.
      * @param instanceId the identifier of the instance
      * @param nodeName the name of the new node that belongs to this instance
      * @param infrastructureId the identifier of the infrastructure
      * @param terminateInstanceIfEmpty whether the instance termination will 
      *                                 be requested to the cloud provider
      */
-    @SuppressWarnings("unchecked")
     protected void unregisterNodeAndRemoveInstanceIfNeeded(final String instanceId, final String nodeName,
             final String infrastructureId, final boolean terminateInstanceIfEmpty) {
-        setPersistedInfraVariable(() -> {
-            // first read from the runtime variables map
-            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
-            // make modifications to the nodesPerInstance map
-            if (nodesPerInstance.get(instanceId) != null) {
-                nodesPerInstance.get(instanceId).remove(nodeName);
-                logger.info("Removed node: " + nodeName);
-                if (nodesPerInstance.get(instanceId).isEmpty()) {
-                    if (terminateInstanceIfEmpty) {
-                        connectorIaasController.terminateInstance(infrastructureId, instanceId);
-                        logger.info("Instance terminated: " + instanceId);
-                    }
-                    nodesPerInstance.remove(instanceId);
-                    logger.info("Removed instance : " + instanceId);
-                }
-                // finally write to the runtime variable map
-
-                persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
+        boolean instanceRemoved = updateInstanceState(instanceId, () -> removeNodeFromInstance(instanceId,
+                                                                                               nodeName,
+                                                                                               false));
+        if (instanceRemoved && terminateInstanceIfEmpty) {
+            requestInstanceTermination(instanceId);
+        }
+    }
 
-            } else {
-                logger.error("Cannot remove node " + nodeName + " because instance " + instanceId +
-                             " is not registered");
-            }
-            return null;
-        });
+    /**
+     * Removes a node name entry for the given instance, and removes the
+     * instance if there no more nodes attached to it. This method must be
+     * called within an update of the state of the instance, and must not
+     * request the termination of the instance itself.
+     * @param instanceId the identifier of the instance
+     * @param nodeName the name of the node to remove
+     * @param decrementAcquiredNodes whether the number of acquired nodes is
+     *                               decremented when the node is removed
+     * @return whether the instance has no more nodes and has been removed
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean removeNodeFromInstance(final String instanceId, final String nodeName,
+            final boolean decrementAcquiredNodes) {
+        // first read from the runtime variables map
+        nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
+        // make modifications to the nodesPerInstance map
+        Set<String> nodeNames = nodesPerInstance.get(instanceId);
+        if (nodeNames == null) {
+            logger.error("Cannot remove node " + nodeName + " because instance " + instanceId + " is not registered");
+            return false;
+        }
+        Set<String> remainingNodeNames = withoutNodeName(nodeNames, nodeName);
+        unindexNode(nodeName);
+        logger.info("Removed node: " + nodeName);
+        if (decrementAcquiredNodes) {
+            decrementNumberOfAcquiredNodes();
+        }
+        if (remainingNodeNames.isEmpty()) {
+            nodesPerInstance.remove(instanceId);
+            logger.info("Removed instance: " + instanceId);
+            return true;
+        }
+        nodesPerInstance.put(instanceId, remainingNodeNames);
+        return false;
     }
 
     /**
@@ -356,7 +1095,7 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      * the infrastructureCreatedFlag was updated
      */
     protected boolean expectInstancesAlreadyCreated(final boolean expected, final boolean updated) {
-        return setPersistedInfraVariable(() -> {
+        return updatePersistedInfraVariables(() -> {
             boolean infraCreated = (boolean) persistedInfraVariables.get(INFRASTRUCTURE_CREATED_FLAG_KEY);
             if (infraCreated == expected) {
                 persistedInfraVariables.put(INFRASTRUCTURE_CREATED_FLAG_KEY, updated);
@@ -385,7 +1124,7 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      */
     @SuppressWarnings("unchecked")
     protected void clearInstancesWithoutNodesMap() {
-        setPersistedInfraVariable(() -> {
+        updatePersistedInfraVariables(() -> {
             ((Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY)).clear();
             return null;
         });
@@ -398,30 +1137,111 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      */
     @SuppressWarnings("unchecked")
     protected void removeFromInstancesWithoutNodesMap(final String instanceId) {
-        setPersistedInfraVariable(() -> {
+        updateInstanceState(instanceId, () -> {
             ((Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY)).remove(instanceId);
             return null;
         });
     }
 
-    protected boolean handleScriptNotExecutedException(boolean existPersistedInstanceIds, String currentInstanceId,
-            ScriptNotExecutedException exception) {
-        boolean acquireNodeTriggered = false;
-        // if we cannot execute the script although the infrastructure
-        // was already deployed, then it means that the Azure
-        // instances are probably dead, so we will attempt a
-        // redeployment from scratch
-        if (existPersistedInstanceIds) {
-            logger.info("Saved instance: " + currentInstanceId + " does not exist anymore. Recreating all instances.");
-            clearInstancesWithoutNodesMap();
-            expectInstancesAlreadyCreated(true, false);
-            acquireNode();
-            acquireNodeTriggered = true;
-        } else {
+    /**
+     * Handles the failure of the script deploying the nodes on an instance.
+     * When the instance has been saved by a previous deployment, only this
+     * instance is recovered: if it does not exist anymore, it is removed
+     * from the persisted state and a single instance is created instead,
+     * otherwise the script is executed again on this instance, in the
+     * background.
+     * @param existPersistedInstanceIds whether the instance has been saved by
+     *                                  a previous deployment
+     * @param currentInstanceId the identifier of the instance
+     * @param exception the failure of the script
+     * @param scriptExecution executes the script on the instance again
+     */
+    protected void handleScriptNotExecutedException(boolean existPersistedInstanceIds, String currentInstanceId,
+            ScriptNotExecutedException exception, ScriptExecution scriptExecution) {
+        if (!existPersistedInstanceIds) {
             logger.error("Script execution failed and cannot be handled, abandoning instance " + currentInstanceId,
                          exception);
+            return;
+        }
+        Set<String> existingInstances = listExistingInstances();
+        if (existingInstances != null && !existingInstances.contains(currentInstanceId)) {
+            logger.info("Saved instance: " + currentInstanceId + " does not exist anymore. Recreating it.");
+            removeInstancesFromState(Collections.singleton(currentInstanceId));
+            if (!recreateInstances(1)) {
+                logger.warn("Instance " + currentInstanceId + " cannot be recreated by infrastructure " +
+                            getInfrastructureId());
+            }
+        } else {
+            logger.info("Script execution failed on saved instance: " + currentInstanceId +
+                        ". Retrying on this instance.");
+            RetryPolicy.Execution execution = getInstanceRecoveryRetryPolicy().newExecution();
+            // the first attempt is the failed deployment
+            execution.attemptSent();
+            scheduleScriptExecutionRetry(currentInstanceId, scriptExecution, execution, getInfrastructureExecutor());
+        }
+    }
+
+    /**
+     * @return the policy of the executions of the script deploying the nodes
+     * on a saved instance, the failed deployment being the first attempt
+     */
+    protected RetryPolicy getInstanceRecoveryRetryPolicy() {
+        int maxAttempts = NSProperties.getIntProperty(NSProperties.INSTANCE_RECOVERY_MAX_ATTEMPTS,
+                                                      DEFAULT_INSTANCE_RECOVERY_MAX_ATTEMPTS);
+        long maxDelay = NSProperties.getLongProperty(NSProperties.INSTANCE_RECOVERY_RETRY_MAX_DELAY,
+                                                     DEFAULT_INSTANCE_RECOVERY_RETRY_MAX_DELAY);
+        return new RetryPolicy(maxAttempts,
+                               NSProperties.getLongProperty(NSProperties.INSTANCE_RECOVERY_RETRY_INITIAL_DELAY,
+                                                            DEFAULT_INSTANCE_RECOVERY_RETRY_INITIAL_DELAY),
+                               maxDelay,
+                               maxAttempts * maxDelay);
+    }
+
+    /**
+     * Creates new instances with their nodes, instead of saved instances
+     * which do not exist anymore. It should be overridden by the
+     * infrastructures which redeploy the nodes of their saved instances.
+     * @param nbInstances the number of instances to create
+     * @return whether the creation has been triggered
+     */
+    protected boolean recreateInstances(int nbInstances) {
+        return false;
+    }
+
+    /**
+     * Schedules the next execution of the script on the instance, unless all
+     * the attempts have been made. The execution is run by the executor of
+     * the infrastructure once it is due, and is abandoned if the executor has
+     * been shut down meanwhile.
+     */
+    private void scheduleScriptExecutionRetry(String instanceId, ScriptExecution scriptExecution,
+            RetryPolicy.Execution execution, InfrastructureExecutor executor) {
+        if (!execution.canRetry()) {
+            logger.error("Script execution failed on instance " + instanceId + " after " + execution.getAttempts() +
+                         " attempts, abandoning it");
+            return;
+        }
+        SCRIPT_RETRY_SCHEDULER.schedule(() -> {
+            if (executor.isShutdown()) {
+                logger.info("Infrastructure " + getInfrastructureId() +
+                            " is shut down, abandoning the script execution on instance " + instanceId);
+                return;
+            }
+            executor.submit(() -> retryScriptExecution(instanceId, scriptExecution, execution, executor));
+        }, execution.nextDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private void retryScriptExecution(String instanceId, ScriptExecution scriptExecution,
+            RetryPolicy.Execution execution, InfrastructureExecutor executor) {
+        execution.attemptSent();
+        try {
+            scriptExecution.execute();
+            logger.info("Script executed on instance " + instanceId + " (attempt " + execution.getAttempts() + ")");
+        } catch (ScriptNotExecutedException e) {
+            logger.warn("Script execution failed on instance " + instanceId + " (attempt " + execution.getAttempts() +
+                        ")", e);
+            scheduleScriptExecutionRetry(instanceId, scriptExecution, execution, executor);
         }
-        return acquireNodeTriggered;
     }
 
     /**
@@ -434,65 +1254,64 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
      */
     protected int calNumberOfInstancesToDeploy(final int numberOfNodesRequested, Map<String, ?> nodeParameters,
             int maxNumberOfInstances, int numberOfNodesPerInstance) {
-        // when the node parameters don't specify the TOTAL_NUMBER_OF_NODES, we just directly deploy the number of nodes specified in numberOfNodesRequested
-        if (!nodeParameters.containsKey(TOTAL_NUMBER_OF_NODES_KEY)) {
-            int numInstance = numberOfNodesRequested / numberOfNodesPerInstance;
-            if (numberOfNodesRequested % numberOfNodesPerInstance != 0)
-                numInstance++;
-            return numInstance;
-        }
-        // when the node parameters specify the TOTAL_NUMBER_OF_NODES, it is request by a dynamic policy, the number of nodes to deploy should satisfy MAX_NODES requirement
-        if (!nodeParameters.containsKey(MAX_NODES_KEY)) {
-            throw new IllegalArgumentException("The dynamic policy parameters should include the maximal number of nodes");
-        }
-
-        final int nbMaxNodes = (Integer) nodeParameters.get(MAX_NODES_KEY);
-        final int nbTotalNodes = (Integer) nodeParameters.get(TOTAL_NUMBER_OF_NODES_KEY);
-
-        final int nbExistingNodes = nodeSource.getNodesCount();
-
-        if ((nbExistingNodes + numberOfNodesRequested) > nbMaxNodes) {
-            throw new IllegalArgumentException(String.format("The sum of existing nodes (%d) and required new nodes (%d) should not be greater than the maximal number of nodes (%d) allowed by the dynamic policy.",
-                                                             nbExistingNodes,
-                                                             numberOfNodesRequested,
-                                                             nbMaxNodes));
-        }
-        if (nbExistingNodes + numberOfNodesRequested != nbTotalNodes) {
-            throw new IllegalArgumentException(String.format("The sum of existing nodes (%d) and required new nodes (%d) should be equal to the total number of nodes (%d).",
-                                                             nbExistingNodes,
-                                                             numberOfNodesRequested,
-                                                             nbTotalNodes));
-        }
-
-        int nbInstancesToDeploy = numberOfNodesRequested / numberOfNodesPerInstance +
-                                  ((numberOfNodesRequested % numberOfNodesPerInstance == 0) ? 0 : 1);
-
-        final int nbExistingInstances = getExistingInstancesNumber();
+        return planDeployment(numberOfNodesRequested,
+                              nodeParameters,
+                              maxNumberOfInstances,
+                              numberOfNodesPerInstance).getNbInstancesToCreate();
+    }
 
-        if (nbExistingInstances + nbInstancesToDeploy > maxNumberOfInstances) {
-            logger.info(String.format("The sum of existing instances (%d) and required instances (%d) is greater than the maximal number of instance (%d), so the number of instances to deploy is reduced to %d.",
-                                      nbExistingInstances,
-                                      nbInstancesToDeploy,
-                                      maxNumberOfInstances,
-                                      maxNumberOfInstances - nbExistingInstances));
-            nbInstancesToDeploy = maxNumberOfInstances - nbExistingInstances;
-        }
+    /**
+     * Plans the deployment of the requested nodes with the planner of the
+     * infrastructure, given the nodes and the instances it already has.
+     * @param numberOfNodesRequested the number of nodes requested
+     * @param nodeParameters the parameters of the request
+     * @param maxNumberOfInstances the maximum number of instances
+     * @param numberOfNodesPerInstance the number of nodes an instance runs
+     * @return the deployment plan of the requested nodes
+     */
+    @SuppressWarnings("unchecked")
+    protected DeploymentPlan planDeployment(final int numberOfNodesRequested, Map<String, ?> nodeParameters,
+            int maxNumberOfInstances, int numberOfNodesPerInstance) {
+        Map<String, Integer> nbNodesPerExistingInstance = getPersistedInfraVariable(() -> {
+            Map<String, Integer> nbNodesPerInstance = new HashMap<>();
+            ((Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY)).forEach((instanceId,
+                    nodeNames) -> nbNodesPerInstance.put(instanceId, nodeNames.size()));
+            return nbNodesPerInstance;
+        });
+        DeploymentRequest request = new DeploymentRequest(numberOfNodesRequested,
+                                                          nodeParameters,
+                                                          nodeSource.getNodesCount(),
+                                                          getNbDeployingNodes(),
+                                                          nbNodesPerExistingInstance,
+                                                          maxNumberOfInstances,
+                                                          numberOfNodesPerInstance,
+                                                          canDeployNodesOnExistingInstances());
+        DeploymentPlan plan = getInstanceCountPlanner().plan(request);
+        logger.info("Deployment of " + request + " planned: " + plan);
+        return plan;
+    }
 
-        if ((nbExistingInstances + nbInstancesToDeploy) * numberOfNodesPerInstance > nbMaxNodes) {
-            logger.info(String.format("The sum of existing instances (%d) and required instances (%d) will start number of nodes (%d) more than maximal number of nodes (%d), so the number of instances to deploy is reduced to %d.",
-                                      nbExistingInstances,
-                                      nbInstancesToDeploy,
-                                      (nbExistingInstances + nbInstancesToDeploy) * numberOfNodesPerInstance,
-                                      nbMaxNodes,
-                                      nbMaxNodes / numberOfNodesPerInstance - nbExistingInstances));
-            nbInstancesToDeploy = nbMaxNodes / numberOfNodesPerInstance - nbExistingInstances;
-        }
+    /**
+     * @return the planner of the deployments of this infrastructure. It can
+     * be overridden to plan the deployments differently.
+     */
+    protected InstanceCountPlanner getInstanceCountPlanner() {
+        return DEFAULT_INSTANCE_COUNT_PLANNER;
+    }
 
-        return nbInstancesToDeploy;
+    /**
+     * @return whether the infrastructure can deploy new nodes on the free
+     * slots of its existing instances
+     */
+    protected boolean canDeployNodesOnExistingInstances() {
+        return false;
     }
 
-    private int getExistingInstancesNumber() {
-        return getNodesPerInstancesMapCopy().size();
+    /**
+     * @return the number of nodes being deployed, the lost ones excluded
+     */
+    protected int getNbDeployingNodes() {
+        return (int) getDeployingAndLostNodes().stream().filter(node -> !node.isLost()).count();
     }
 
     protected boolean existRegisteredNodesOnInstance(String instanceTag) {
@@ -503,25 +1322,21 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
     /**
      * Take into account a node in the tracked removed nodes and mark the
      * given instance as free if all the nodes are marked as removed for this
-     * instance. This method executes in write lock acquired and persist in
-     * database the changed runtime variables at the end.
+     * instance. This method executes in the lock of the instance state and
+     * persist in database the changed runtime variables at the end.
      */
     @SuppressWarnings("unchecked")
     private void incrementRemovedNodesAndSetInstanceWithoutNodesIfNeeded(final String nodeName,
-            final String instanceId) {
-        setPersistedInfraVariable(() -> {
+            final String nodeInstanceId) {
+        final String instanceId = INSTANCE_IDS.intern(nodeInstanceId);
+        updateInstanceState(instanceId, () -> {
             // first read from the runtime variables map
             nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
             nbRemovedNodesPerInstance = (Map<String, Integer>) persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY);
             instancesWithoutNodesMap = (Map<String, Integer>) persistedInfraVariables.get(INSTANCES_WITHOUT_NODES_MAP_KEY);
 
             // make modifications to the internal data structures
-            if (!nbRemovedNodesPerInstance.containsKey(instanceId)) {
-                nbRemovedNodesPerInstance.put(instanceId, 1);
-            } else {
-                int updatedNbRemovedNodes = nbRemovedNodesPerInstance.get(instanceId) + 1;
-                nbRemovedNodesPerInstance.put(instanceId, updatedNbRemovedNodes);
-            }
+            nbRemovedNodesPerInstance.merge(instanceId, 1, Integer::sum);
             // after the remove, if the instance pointed to by instanceId
             // has no node left, then the nodesPerInstance map should not
             // contain this instanceId entry anymore
@@ -537,23 +1352,18 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
                 instancesWithoutNodesMap.put(instanceId, nbNodesForInstance);
             }
             logDataStructureContent("Node " + nodeName + " added to the removed nodes set");
-
-            // finally write to the runtime variable map
-            persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-            persistedInfraVariables.put(NB_REMOVED_NODES_PER_INSTANCE_KEY, Maps.newHashMap(nbRemovedNodesPerInstance));
-            persistedInfraVariables.put(INSTANCES_WITHOUT_NODES_MAP_KEY, Maps.newHashMap(instancesWithoutNodesMap));
             return null;
         });
     }
 
     /**
      * Decrement the number of removed nodes and put back the node in the
-     * nodesPerInstance map. This method executes in write lock acquired and
-     * persist in database the changed runtime variables at the end.
+     * nodesPerInstance map. This method executes in the lock of the instance
+     * state and persist in database the changed runtime variables at the end.
      */
     @SuppressWarnings("unchecked")
     private void decrementNbRemovedNodesAndRegisterNode(final String nodeName, final String instanceId) {
-        setPersistedInfraVariable(() -> {
+        updateInstanceState(instanceId, () -> {
             // first read from the runtime variables map
             nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
             nbRemovedNodesPerInstance = (Map<String, Integer>) persistedInfraVariables.get(NB_REMOVED_NODES_PER_INSTANCE_KEY);
@@ -562,16 +1372,10 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
             // been down and the instance has been removed (see
             // unregisterNodeAndRemoveInstanceIfNeeded)
             if (nodesPerInstance.containsKey(instanceId)) {
-                if (nbRemovedNodesPerInstance.containsKey(instanceId)) {
-                    int updatedNbRemovedNodes = nbRemovedNodesPerInstance.get(instanceId) - 1;
-                    nbRemovedNodesPerInstance.put(instanceId, updatedNbRemovedNodes);
-                    nodesPerInstance.get(instanceId).add(nodeName);
+                if (nbRemovedNodesPerInstance.computeIfPresent(instanceId, (id, nbRemovedNodes) -> nbRemovedNodes - 1) != null) {
+                    nodesPerInstance.put(instanceId, withNodeName(nodesPerInstance.get(instanceId), nodeName));
+                    indexNode(nodeName, instanceId);
                     logDataStructureContent("Node " + nodeName + " removed from the removed nodes set");
-
-                    // finally write to the runtime variable map
-                    persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-                    persistedInfraVariables.put(NB_REMOVED_NODES_PER_INSTANCE_KEY,
-                                                Maps.newHashMap(nbRemovedNodesPerInstance));
                 }
             } else {
                 logger.warn("Down node " + nodeName + " is trying to reconnect, but the instance " + instanceId +
@@ -583,28 +1387,65 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
 
     /**
      * Attempt to retrieve the instance identifier for a given node name. It
-     * looks into the {@link AbstractAddonInfrastructure#nodesPerInstance} map
+     * looks into the reverse index of the
+     * {@link AbstractAddonInfrastructure#nodesPerInstance} map, without
+     * lock when the node is found.
      * @param nodeName
      * @return the instance id under which the node is registered, or
      * {@code null} if the node could not be found
      */
-    @SuppressWarnings("unchecked")
-
-    private String tryToFindInstanceIdOfNode(final String nodeName) {
+    String tryToFindInstanceIdOfNode(final String nodeName) {
+        String instanceId = instanceIdPerNode.get(nodeName);
+        if (instanceId != null) {
+            return instanceId;
+        }
+        // the index may not be built yet, or the persisted variables may
+        // have been restored (typically after a recovery)
         return getPersistedInfraVariable(() -> {
-            // first read from the runtime variables map
-            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
-            // we do not have the map key for this value, need to go
-            // through the map entries to find the key of this node
-            // break as soon as possible because we are holding a lock
-            for (Map.Entry<String, Set<String>> entry : nodesPerInstance.entrySet()) {
-                if (entry.getValue().contains(nodeName))
-                    return entry.getKey();
-            }
-            return null;
+            rebuildInstanceIdPerNodeIfNeeded();
+            return instanceIdPerNode.get(nodeName);
         });
     }
 
+    /**
+     * Registers a node in the reverse index. This method must be called
+     * within an update of the persisted variables.
+     */
+    private void indexNode(final String nodeName, final String instanceId) {
+        rebuildInstanceIdPerNodeIfNeeded();
+        instanceIdPerNode.put(nodeName, instanceId);
+    }
+
+    /**
+     * Removes a node from the reverse index. This method must be called
+     * within an update of the persisted variables.
+     */
+    private void unindexNode(final String nodeName) {
+        rebuildInstanceIdPerNodeIfNeeded();
+        instanceIdPerNode.remove(nodeName);
+    }
+
+    /**
+     * Rebuilds the reverse index if it has not been built from the current
+     * persisted nodesPerInstance map, for example when the persisted
+     * variables have been restored. This method must be called within a
+     * lock of the persisted variables.
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuildInstanceIdPerNodeIfNeeded() {
+        Map<String, Set<String>> currentNodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
+        synchronized (instanceIdPerNode) {
+            if (currentNodesPerInstance == null || currentNodesPerInstance == indexedNodesPerInstance) {
+                return;
+            }
+            instanceIdPerNode.clear();
+            currentNodesPerInstance.forEach((instanceId,
+                    nodeNames) -> nodeNames.forEach(nodeName -> instanceIdPerNode.put(nodeName, instanceId)));
+            indexedNodesPerInstance = currentNodesPerInstance;
+            logger.debug("Index of the instances of " + instanceIdPerNode.size() + " nodes built");
+        }
+    }
+
     private void logDataStructureContent(String action) {
         logger.info(action + " - node sets are now: nodes per instance=" + nodesPerInstance +
                     ", number of removed nodes per instance=" + nbRemovedNodesPerInstance + ", free instances map=" +
@@ -747,4 +1588,57 @@ public abstract class AbstractAddonInfrastructure extends InfrastructureManager
         }
         return portsToOpen;
     }
+    /**
+     * Execution of the script deploying the nodes on an instance.
+     */
+    @FunctionalInterface
+    protected interface ScriptExecution {
+
+        void execute() throws ScriptNotExecutedException;
+
+    }
+
+    /**
+     * The instances of this infrastructure, as seen by the instance
+     * reconciler.
+     */
+    private class PersistedInstancesInventory implements InstanceReconciler.Inventory {
+
+        @Override
+        public Set<String> listExistingInstances() {
+            return listOwnInstances();
+        }
+
+        @Override
+        public Set<String> getKnownInstances() {
+            return AbstractAddonInfrastructure.this.getKnownInstances();
+        }
+
+        @Override
+        public Set<String> getInstancesWithoutNodes() {
+            return getInstancesWithoutNodesMapCopy().keySet();
+        }
+
+        @Override
+        public boolean isDeploying() {
+            return getNbDeployingNodes() > 0;
+        }
+
+        @Override
+        public void terminateOrphanInstance(String instanceId) {
+            requestInstanceTermination(instanceId);
+        }
+
+        @Override
+        public void removeMissingInstances(Set<String> instanceIds) {
+            removeInstancesFromState(instanceIds);
+        }
+
+        @Override
+        public boolean redeployNodes(Set<String> instanceIds) {
+            return redeployNodesOnInstancesWithoutNodes(instanceIds);
+        }
+
+    }
+
 }
@@ -0,0 +1,164 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Circuit breaker of a connector-iaas endpoint, shared by all the infrastructures using
+ * this endpoint.
+ *
+ * After a number of consecutive failures the circuit opens and requests are rejected
+ * without being sent. Once the open duration has elapsed, a single probe request is let
+ * through: its success closes the circuit and wakes up all the callers waiting for the
+ * endpoint to recover, its failure opens the circuit again.
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int failureThreshold;
+
+    private final long openDuration;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures = 0;
+
+    private long openedAt;
+
+    private boolean probeInFlight = false;
+
+    /**
+     * @param name name of the endpoint, used in logs
+     * @param failureThreshold number of consecutive failures opening the circuit
+     * @param openDuration time (in milliseconds) during which requests are rejected before
+     *                     a probe is let through
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openDuration) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if a request can be sent now. In half-open state, only the first caller
+     * gets the permission, and sends the probe request.
+     */
+    public synchronized boolean tryAcquirePermission() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openDuration) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                logger.info("Circuit breaker of " + name + " is half-open, probing the endpoint");
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("Circuit breaker of " + name + " is closed, the endpoint is available again");
+            state = State.CLOSED;
+        }
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        notifyAll();
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            logger.warn("Circuit breaker of " + name + " is open after " + consecutiveFailures +
+                        " consecutive failures, requests are rejected for " + openDuration + " ms");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases the permission acquired by a request whose failure says nothing about the
+     * endpoint (typically a programming error), without counting it as a success nor as a
+     * failure.
+     */
+    public synchronized void releasePermission() {
+        probeInFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the circuit is closed, or a probe request can be sent, or the given delay
+     * has elapsed, whichever comes first.
+     */
+    public synchronized void awaitRecovery(long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (state != State.CLOSED) {
+            long now = System.currentTimeMillis();
+            long remaining = deadline - now;
+            if (state == State.OPEN) {
+                remaining = Math.min(remaining, openedAt + openDuration - now);
+            }
+            if (remaining <= 0) {
+                return;
+            }
+            wait(remaining);
+        }
+    }
+
+    /**
+     * @return the time (in milliseconds) before a probe request can be sent, 0 if the
+     * circuit is not open
+     */
+    public synchronized long getRemainingOpenTime() {
+        return state == State.OPEN ? Math.max(0, openedAt + openDuration - System.currentTimeMillis()) : 0;
+    }
+
+}
@@ -25,13 +25,25 @@
  */
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.io.InputStream;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.http.pool.PoolStats;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.util.NSProperties;
 
 import com.google.common.collect.Sets;
 
@@ -44,46 +56,149 @@ public class ConnectorIaasClient {
 
     private static final int SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR = 10000;
 
+    private static final int DEFAULT_RETRY_INITIAL_DELAY = 100;
+
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 1000;
+
+    private static final int DEFAULT_HEALTH_TTL = 30000;
+
+    private static final int DEFAULT_INSTANCES_CACHE_TTL = 10000;
+
+    /**
+     * Policy of the requests retried until connector-iaas answers: the delay between two
+     * attempts grows from the initial delay up to SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR, and
+     * the requests are given up after the time the former fixed-delay retries used to take
+     * (MAX_RETRIES_IN_CASE_OF_ERROR * SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR), whatever the
+     * number of attempts made meanwhile.
+     */
+    private static final RetryPolicy RETRY_POLICY = createRetryPolicy();
+
+    /**
+     * One client (and thus one connection pool) per connector-iaas URL, shared by all the
+     * node sources pointing to it.
+     */
+    private static final ConcurrentMap<String, RestClient> REST_CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * One circuit breaker per rest client, that is to say per connector-iaas endpoint.
+     */
+    private static final Map<RestClient, CircuitBreaker> CIRCUIT_BREAKERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * One health monitor per rest client, that is to say per connector-iaas endpoint. A
+     * monitor is removed, and its probes stopped, once the last client using it is closed.
+     */
+    private static final ConcurrentMap<RestClient, ConnectorIaasHealthMonitor> HEALTH_MONITORS = new ConcurrentHashMap<>();
+
     private final RestClient restClient;
 
+    private final CircuitBreaker circuitBreaker;
+
+    private final ConnectorIaasHealthMonitor healthMonitor;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final InstancesCache instancesCache = new InstancesCache(NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_INSTANCES_CACHE_TTL,
+                                                                                                  DEFAULT_INSTANCES_CACHE_TTL));
+
     public static RestClient generateRestClient(String connectorIaasURL) {
-        return new RestClient(connectorIaasURL);
+        return REST_CLIENTS.computeIfAbsent(connectorIaasURL, RestClient::new);
+    }
+
+    /**
+     * @return the statistics of the connection pool used to reach the given connector-iaas URL,
+     * or null if no client has been created for this URL
+     */
+    public static PoolStats getConnectionPoolStats(String connectorIaasURL) {
+        RestClient restClient = REST_CLIENTS.get(connectorIaasURL);
+        return restClient != null ? restClient.getConnectionPoolStats() : null;
     }
 
     public ConnectorIaasClient(RestClient restClient) {
         this.restClient = restClient;
+        this.circuitBreaker = CIRCUIT_BREAKERS.computeIfAbsent(restClient, client -> createCircuitBreaker());
+        this.healthMonitor = HEALTH_MONITORS.compute(restClient, (client, monitor) -> {
+            ConnectorIaasHealthMonitor clientMonitor = monitor != null ? monitor : createHealthMonitor(client);
+            clientMonitor.retain();
+            return clientMonitor;
+        });
+    }
+
+    /**
+     * Releases the health monitor of the endpoint: its background probes are stopped once
+     * the last client of the endpoint is closed.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            HEALTH_MONITORS.computeIfPresent(restClient,
+                                             (client, monitor) -> monitor.release() > 0 ? monitor : null);
+        }
     }
 
+    public CircuitBreaker.State getCircuitBreakerState() {
+        return circuitBreaker.getState();
+    }
+
+    /**
+     * Returns immediately if connector-iaas was seen available recently, otherwise waits
+     * until it answers a lightweight availability check.
+     */
     public void waitForConnectorIaasToBeUP() {
-        int count = 0;
-        while (true) {
-            try {
-                restClient.getInfrastructures();
-                return;
-            } catch (Exception e) {
-                if (++count == MAX_RETRIES_IN_CASE_OF_ERROR) {
-                    logger.error(e);
-                    throw e;
-                } else {
-                    sleepFor(SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
-                }
-            }
+        healthMonitor.start();
+        if (!healthMonitor.isHealthy()) {
+            execute(this::checkAvailability, RETRY_POLICY);
         }
+    }
 
+    public boolean isConnectorIaasHealthy() {
+        return healthMonitor.isHealthy();
     }
 
     public Set<JSONObject> getAllJsonInstancesByInfrastructureId(String infrastructureId) {
-        Set<JSONObject> existingInstances = Sets.newHashSet();
+        return parseJsonInstances(execute(() -> restClient.getInstancesByInfrastructure(infrastructureId),
+                                          RetryPolicy.NO_RETRY));
+    }
 
-        JSONArray instancesJSONObjects = new JSONArray(restClient.getInstancesByInfrastructure(infrastructureId));
+    /**
+     * @return the ids of the instances of the infrastructure, indexed by instance tag. The
+     * instances list is parsed as it is received, only ids and tags are kept in memory.
+     */
+    public Map<String, Set<String>> getInstanceIdsByTag(String infrastructureId) {
+        return execute(() -> restClient.getInstancesByInfrastructure(infrastructureId,
+                                                                     ConnectorIaasInstancesParser::parseInstanceIdsByTag),
+                       RetryPolicy.NO_RETRY);
+    }
 
-        Iterator<Object> instancesJSONObjectsIterator = instancesJSONObjects.iterator();
+    /**
+     * @return the ids of the instances of the infrastructure having the given tag, indexed by
+     * tag (the map is empty if there is no such instance). They are taken from the cached
+     * listing of the infrastructure if it is enabled, otherwise from a tag-filtered listing.
+     */
+    public Map<String, Set<String>> getInstanceIdsByTag(String infrastructureId, String instanceTag) {
+        Set<String> instanceIds;
+        if (instancesCache.isEnabled()) {
+            instanceIds = instancesCache.getInstanceIds(infrastructureId,
+                                                        instanceTag,
+                                                        () -> getInstanceIdsByTag(infrastructureId));
+        } else {
+            instanceIds = listInstanceIdsWithTag(infrastructureId, instanceTag);
+        }
 
-        while (instancesJSONObjectsIterator.hasNext()) {
-            existingInstances.add(((JSONObject) instancesJSONObjectsIterator.next()));
+        Map<String, Set<String>> instanceIdsByTag = new HashMap<>();
+        if (instanceIds != null && !instanceIds.isEmpty()) {
+            instanceIdsByTag.put(instanceTag, instanceIds);
         }
+        return instanceIdsByTag;
+    }
 
-        return existingInstances;
+    private Set<String> listInstanceIdsWithTag(String infrastructureId, String instanceTag) {
+        // the instances are also filtered while parsing, in case the filter is not supported
+        Function<InputStream, Map<String, Set<String>>> reader = instancesJson -> ConnectorIaasInstancesParser.parseInstanceIdsByTag(instancesJson,
+                                                                                                                                       instanceTag);
+        return execute(() -> restClient.getInstancesByInfrastructureAndTag(infrastructureId, instanceTag, reader),
+                       RetryPolicy.NO_RETRY).get(instanceTag);
     }
 
     public String createInfrastructure(String infrastructureId, String infrastructureJson) {
@@ -92,7 +207,8 @@ public class ConnectorIaasClient {
         } catch (RuntimeException re) {
             logger.error("Infrastructure termination runtime exception: ", re);
         }
-        return restClient.postInfrastructures(infrastructureJson);
+        instancesCache.invalidate(infrastructureId);
+        return execute(() -> restClient.postInfrastructures(infrastructureJson), RetryPolicy.NO_RETRY);
     }
 
     public Set<String> createInstancesIfNotExist(String infrastructureId, String instanceTag, String instanceJson,
@@ -100,7 +216,21 @@ public class ConnectorIaasClient {
         Set<String> instancesIds = getExistingInstanceIds(instanceTag, existingInstances);
 
         if (instancesIds.isEmpty()) {
-            instancesIds = createInstances(infrastructureId, instanceJson);
+            instancesIds = createInstances(infrastructureId, instanceTag, instanceJson);
+        } else {
+            logger.info("Existing instances have been found when trying to create instances. Reusing instance ids: " +
+                        instancesIds);
+        }
+
+        return instancesIds;
+    }
+
+    public Set<String> createInstancesIfNotExist(String infrastructureId, String instanceTag, String instanceJson,
+            Map<String, Set<String>> existingInstanceIdsByTag) {
+        Set<String> instancesIds = existingInstanceIdsByTag.get(instanceTag);
+
+        if (instancesIds == null || instancesIds.isEmpty()) {
+            instancesIds = createInstances(infrastructureId, instanceTag, instanceJson);
         } else {
             logger.info("Existing instances have been found when trying to create instances. Reusing instance ids: " +
                         instancesIds);
@@ -121,24 +251,16 @@ public class ConnectorIaasClient {
         return instancesIds;
     }
 
-    private Set<String> createInstances(String infrastructureId, String instanceJson) {
-        String response = restClient.postInstances(infrastructureId, instanceJson);
-
-        JSONArray instancesJSONObjects = new JSONArray(response);
-
-        Set<String> instancesIds = Sets.newHashSet();
-
-        Iterator<Object> instancesJSONObjectsIterator = instancesJSONObjects.iterator();
-
-        while (instancesJSONObjectsIterator.hasNext()) {
-            instancesIds.add(((JSONObject) instancesJSONObjectsIterator.next()).getString("id"));
-        }
-
+    private Set<String> createInstances(String infrastructureId, String instanceTag, String instanceJson) {
+        Set<String> instancesIds = parseInstancesIds(execute(() -> restClient.postInstances(infrastructureId,
+                                                                                            instanceJson),
+                                                             RetryPolicy.NO_RETRY));
+        instancesCache.addInstances(infrastructureId, instanceTag, instancesIds);
         return instancesIds;
     }
 
     public SimpleImmutableEntry<String, String> createAwsEc2KeyPair(String infrastructureId, String instanceJson) {
-        String response = restClient.postKeyPairs(infrastructureId, instanceJson);
+        String response = execute(() -> restClient.postKeyPairs(infrastructureId, instanceJson), RetryPolicy.NO_RETRY);
 
         JSONObject keyPairInfoJson = new JSONObject(response);
 
@@ -152,44 +274,203 @@ public class ConnectorIaasClient {
     }
 
     public void deleteKeyPair(String infrastructureId, String keyPairName, String region) {
-        restClient.deleteKeyPair(infrastructureId, keyPairName, region);
+        execute(() -> restClient.deleteKeyPair(infrastructureId, keyPairName, region), RetryPolicy.NO_RETRY);
     }
 
     public void terminateInfrastructure(String infrastructureId, boolean deleteInstances) {
-        restClient.deleteInfrastructure(infrastructureId, deleteInstances);
+        execute(() -> {
+            restClient.deleteInfrastructure(infrastructureId, deleteInstances);
+            return null;
+        }, RetryPolicy.NO_RETRY);
+        instancesCache.invalidate(infrastructureId);
     }
 
     public void terminateInstance(String infrastructureId, String instanceId) {
-        restClient.deleteInstance(infrastructureId, "instanceId", instanceId);
+        execute(() -> {
+            restClient.deleteInstance(infrastructureId, "instanceId", instanceId);
+            return null;
+        }, RetryPolicy.NO_RETRY);
+        instancesCache.removeInstance(infrastructureId, instanceId);
     }
 
     public void terminateInstanceByTag(String infrastructureId, String instanceTag) {
-        restClient.deleteInstance(infrastructureId, "instanceTag", instanceTag);
+        execute(() -> {
+            restClient.deleteInstance(infrastructureId, "instanceTag", instanceTag);
+            return null;
+        }, RetryPolicy.NO_RETRY);
+        instancesCache.removeTag(infrastructureId, instanceTag);
     }
 
     public String runScriptOnInstance(String infrastructureId, String instanceId, String instanceScriptJson) {
-        int count = 0;
+        return execute(() -> restClient.postScript(infrastructureId, "instanceId", instanceId, instanceScriptJson),
+                       RETRY_POLICY);
+    }
+
+    private Void checkAvailability() {
+        restClient.checkAvailability();
+        return null;
+    }
+
+    private Set<JSONObject> parseJsonInstances(String response) {
+        Set<JSONObject> existingInstances = Sets.newHashSet();
+
+        JSONArray instancesJSONObjects = new JSONArray(response);
+
+        Iterator<Object> instancesJSONObjectsIterator = instancesJSONObjects.iterator();
+
+        while (instancesJSONObjectsIterator.hasNext()) {
+            existingInstances.add(((JSONObject) instancesJSONObjectsIterator.next()));
+        }
+
+        return existingInstances;
+    }
+
+    private Set<String> parseInstancesIds(String response) {
+        JSONArray instancesJSONObjects = new JSONArray(response);
+
+        Set<String> instancesIds = Sets.newHashSet();
+
+        Iterator<Object> instancesJSONObjectsIterator = instancesJSONObjects.iterator();
+
+        while (instancesJSONObjectsIterator.hasNext()) {
+            instancesIds.add(((JSONObject) instancesJSONObjectsIterator.next()).getString("id"));
+        }
+
+        return instancesIds;
+    }
+
+    /**
+     * Sends a request through the circuit breaker of the endpoint, and retries it according
+     * to the given policy. Errors which are not retryable are thrown at once.
+     */
+    private <T> T execute(Supplier<T> request, RetryPolicy retryPolicy) {
+        RetryPolicy.Execution execution = retryPolicy.newExecution();
         while (true) {
-            try {
-                return restClient.postScript(infrastructureId, "instanceId", instanceId, instanceScriptJson);
-            } catch (Exception e) {
-                if (++count == MAX_RETRIES_IN_CASE_OF_ERROR) {
-                    logger.error(e);
-                    throw e;
-                } else {
-                    sleepFor(SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
+            RuntimeException failure;
+            if (circuitBreaker.tryAcquirePermission()) {
+                execution.attemptSent();
+                try {
+                    T response = request.get();
+                    recordEndpointSuccess();
+                    return response;
+                } catch (RuntimeException e) {
+                    if (!RetryPolicy.isRetryable(e)) {
+                        recordNonRetryableFailure(e);
+                        throw e;
+                    }
+                    recordRetryableFailure(e);
+                    failure = e;
                 }
+            } else {
+                failure = new CircuitBreakerOpenException("Request to connector-iaas rejected, the endpoint is unavailable");
             }
+            if (!execution.canRetry()) {
+                if (retryPolicy.getMaxAttempts() > 1) {
+                    logger.error(failure);
+                }
+                throw failure;
+            }
+            waitBeforeRetry(execution.nextDelay(), failure);
         }
-
     }
 
-    private void sleepFor(long millisecondsToSleep) {
+    private void waitBeforeRetry(long delay, RuntimeException failure) {
         try {
-            Thread.sleep(millisecondsToSleep);
+            if (failure instanceof CircuitBreakerOpenException) {
+                // woken up as soon as the endpoint is back
+                circuitBreaker.awaitRecovery(delay);
+            } else {
+                Thread.sleep(delay);
+            }
         } catch (InterruptedException e) {
-            logger.warn("Failed to sleep", e);
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    private void recordEndpointSuccess() {
+        circuitBreaker.recordSuccess();
+        healthMonitor.markHealthy();
+    }
+
+    private void recordEndpointFailure() {
+        circuitBreaker.recordFailure();
+        healthMonitor.markUnhealthy();
+    }
+
+    /**
+     * Only the transport errors are failures of the endpoint: a server error answered by
+     * connector-iaas (typically a script that could not be run yet on a starting instance)
+     * is retried, but does not open the circuit breaker of the endpoint.
+     */
+    private void recordRetryableFailure(Throwable failure) {
+        if (RetryPolicy.isAnsweredByEndpoint(failure)) {
+            recordEndpointSuccess();
+        } else {
+            recordEndpointFailure();
+        }
+    }
+
+    private void recordNonRetryableFailure(Throwable failure) {
+        if (RetryPolicy.isAnsweredByEndpoint(failure)) {
+            // connector-iaas answered, the endpoint itself is fine
+            recordEndpointSuccess();
+        } else {
+            // the request failed before reaching connector-iaas
+            circuitBreaker.releasePermission();
+        }
+    }
+
+    private static ConnectorIaasHealthMonitor createHealthMonitor(RestClient client) {
+        return new ConnectorIaasHealthMonitor(client,
+                                              ConnectorIaasClient::probeAvailability,
+                                              NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_HEALTH_TTL,
+                                                                           DEFAULT_HEALTH_TTL));
+    }
+
+    /**
+     * Probe of the health monitor of an endpoint. It goes through the circuit breaker of the
+     * endpoint, and does not reference any client, so that the monitor does not keep the
+     * infrastructures reachable.
+     */
+    private static void probeAvailability(RestClient client) {
+        CircuitBreaker circuitBreaker = CIRCUIT_BREAKERS.computeIfAbsent(client, c -> createCircuitBreaker());
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw new CircuitBreakerOpenException("Probe of connector-iaas rejected, the endpoint is unavailable");
         }
+        try {
+            client.checkAvailability();
+            circuitBreaker.recordSuccess();
+        } catch (RuntimeException e) {
+            if (RetryPolicy.isRetryable(e)) {
+                circuitBreaker.recordFailure();
+            } else if (RetryPolicy.isAnsweredByEndpoint(e)) {
+                // connector-iaas answered, the endpoint itself is fine
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.releasePermission();
+            }
+            throw e;
+        }
+    }
+
+    private static RetryPolicy createRetryPolicy() {
+        long initialDelay = NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_RETRY_INITIAL_DELAY,
+                                                         DEFAULT_RETRY_INITIAL_DELAY);
+        long maxDelay = NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_RETRY_MAX_DELAY,
+                                                     SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
+        return new RetryPolicy(Integer.MAX_VALUE,
+                               initialDelay,
+                               maxDelay,
+                               (long) MAX_RETRIES_IN_CASE_OF_ERROR * SLEEP_TIME_RETRIES_IN_CASE_OF_ERROR);
+    }
+
+    private static CircuitBreaker createCircuitBreaker() {
+        int failureThreshold = NSProperties.getIntProperty(NSProperties.CONNECTOR_IAAS_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                                                           DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+        long openDuration = NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_CIRCUIT_BREAKER_OPEN_DURATION,
+                                                         DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+        return new CircuitBreaker("connector-iaas", failureThreshold, openDuration);
     }
 
 }
@@ -27,10 +27,10 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.json.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 
@@ -58,6 +58,14 @@ public class ConnectorIaasController {
         connectorIaasClient.waitForConnectorIaasToBeUP();
     }
 
+    /**
+     * Releases the resources shared with the other controllers of the same connector-iaas
+     * endpoint. It is called when the infrastructure is shut down.
+     */
+    public void close() {
+        connectorIaasClient.close();
+    }
+
     public String createInfrastructure(String infrastructureId, String username, String password, String endPoint,
             boolean destroyOnShutdown) {
 
@@ -376,18 +384,27 @@ public class ConnectorIaasController {
         connectorIaasClient.terminateInstanceByTag(infrastructureId, instanceTag);
     }
 
+    /**
+     * @return the ids of all the instances of the infrastructure, indexed by tag, given by a
+     * single listing of the infrastructure
+     */
+    public Map<String, Set<String>> getInstanceIdsByTag(String infrastructureId) {
+        return connectorIaasClient.getInstanceIdsByTag(infrastructureId);
+    }
+
     private Set<String> createInstance(String infrastructureId, String instanceTag, String instanceJson)
             throws InstanceNotCreatedException {
         try {
-            Set<JSONObject> existingInstancesByInfrastructureId = connectorIaasClient.getAllJsonInstancesByInfrastructureId(infrastructureId);
+            Map<String, Set<String>> existingInstanceIdsByTag = connectorIaasClient.getInstanceIdsByTag(infrastructureId,
+                                                                                                       instanceTag);
 
-            logger.info("Total existing Instances By Infrastructure Id : " +
-                        existingInstancesByInfrastructureId.size());
+            logger.info("Total existing Instances with tag " + instanceTag + " : " +
+                        existingInstanceIdsByTag.values().stream().mapToInt(Set::size).sum());
 
             Set<String> instancesIds = connectorIaasClient.createInstancesIfNotExist(infrastructureId,
                                                                                      instanceTag,
                                                                                      instanceJson,
-                                                                                     existingInstancesByInfrastructureId);
+                                                                                     existingInstanceIdsByTag);
 
             logger.info("Instances ids created : " + instancesIds);
 
@@ -0,0 +1,165 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Cached availability state of a connector-iaas endpoint, shared by all the infrastructures
+ * using this endpoint.
+ *
+ * The endpoint is considered healthy during a TTL after any successful request. Once
+ * started, the monitor also probes the endpoint in the background when no request has
+ * succeeded recently, so that deployments usually find a fresh state and do not need to
+ * check the availability of connector-iaas themselves. The probe only references the rest
+ * client of the endpoint, and the probes are stopped once the last user of the monitor
+ * releases it.
+ */
+public class ConnectorIaasHealthMonitor {
+
+    private static final Logger logger = Logger.getLogger(ConnectorIaasHealthMonitor.class);
+
+    private static final ScheduledExecutorService PROBE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("connector-iaas-health-%d")
+                                                                                                                                         .setDaemon(true)
+                                                                                                                                         .build());
+
+    private final RestClient restClient;
+
+    private final Consumer<RestClient> probe;
+
+    private final long ttl;
+
+    private ScheduledFuture<?> scheduledProbes = null;
+
+    private boolean stopped = false;
+
+    private int nbUsers = 0;
+
+    private volatile long lastSeenHealthy = 0;
+
+    private volatile long lastSeenUnhealthy = 0;
+
+    /**
+     * @param restClient client of the monitored endpoint
+     * @param probe lightweight request to the endpoint, throwing an exception if it fails
+     * @param ttl time (in milliseconds) during which a successful request proves that the
+     *            endpoint is available
+     */
+    public ConnectorIaasHealthMonitor(RestClient restClient, Consumer<RestClient> probe, long ttl) {
+        this.restClient = restClient;
+        this.probe = probe;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Starts the background probes, if not already started and if the monitor has not been
+     * stopped.
+     */
+    public synchronized void start() {
+        if (scheduledProbes == null && !stopped) {
+            long period = Math.max(1, ttl / 2);
+            scheduledProbes = PROBE_SCHEDULER.scheduleWithFixedDelay(this::probeIfNeeded,
+                                                                     period,
+                                                                     period,
+                                                                     TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background probes for good. A probe already running is not interrupted.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduledProbes != null) {
+            scheduledProbes.cancel(false);
+            scheduledProbes = null;
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return scheduledProbes != null;
+    }
+
+    /**
+     * Registers a new user of the monitor.
+     */
+    public synchronized void retain() {
+        nbUsers++;
+    }
+
+    /**
+     * Unregisters a user of the monitor, and stops the probes when it was the last one.
+     *
+     * @return the number of remaining users
+     */
+    public synchronized int release() {
+        nbUsers = Math.max(0, nbUsers - 1);
+        if (nbUsers == 0) {
+            stop();
+        }
+        return nbUsers;
+    }
+
+    /**
+     * @return true if a request succeeded during the TTL, and no request failed since
+     */
+    public boolean isHealthy() {
+        long lastHealthy = lastSeenHealthy;
+        return System.currentTimeMillis() - lastHealthy < ttl && lastSeenUnhealthy <= lastHealthy;
+    }
+
+    public void markHealthy() {
+        lastSeenHealthy = System.currentTimeMillis();
+    }
+
+    public void markUnhealthy() {
+        lastSeenUnhealthy = System.currentTimeMillis();
+    }
+
+    private void probeIfNeeded() {
+        if (System.currentTimeMillis() - lastSeenHealthy < ttl / 2) {
+            // recent requests already prove that the endpoint is available
+            return;
+        }
+        try {
+            probe.accept(restClient);
+            markHealthy();
+        } catch (RuntimeException e) {
+            markUnhealthy();
+            logger.debug("Connector-iaas availability probe failed", e);
+        }
+    }
+
+}
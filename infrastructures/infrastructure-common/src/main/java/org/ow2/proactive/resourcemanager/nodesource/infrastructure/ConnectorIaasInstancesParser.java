@@ -0,0 +1,112 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+
+/**
+ * Streaming parser of the instances listed by connector-iaas.
+ *
+ * Only the id and the tag of each instance are read, the other fields are skipped
+ * without being materialized, so the memory used does not depend on the size of the
+ * instances descriptions.
+ */
+public class ConnectorIaasInstancesParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String ID_FIELD = "id";
+
+    private static final String TAG_FIELD = "tag";
+
+    private ConnectorIaasInstancesParser() {
+    }
+
+    /**
+     * @param instancesJson JSON array of instances, as returned by connector-iaas
+     * @return the ids of the instances, indexed by instance tag. Instances without tag are
+     * ignored.
+     */
+    public static Map<String, Set<String>> parseInstanceIdsByTag(InputStream instancesJson) {
+        return parseInstanceIdsByTag(instancesJson, null);
+    }
+
+    /**
+     * @param instancesJson JSON array of instances, as returned by connector-iaas
+     * @param tagFilter if not null, only the instances having this tag are kept
+     * @return the ids of the instances, indexed by instance tag. Instances without tag are
+     * ignored.
+     */
+    public static Map<String, Set<String>> parseInstanceIdsByTag(InputStream instancesJson, String tagFilter) {
+        Map<String, Set<String>> instanceIdsByTag = new HashMap<>();
+
+        try (JsonParser parser = JSON_FACTORY.createParser(instancesJson)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JSONException("Expected a JSON array of instances");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String id = null;
+                String tag = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (ID_FIELD.equals(fieldName) && value.isScalarValue()) {
+                        id = parser.getValueAsString();
+                    } else if (TAG_FIELD.equals(fieldName) && value.isScalarValue()) {
+                        tag = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (id != null && tag != null && (tagFilter == null || tagFilter.equals(tag))) {
+                    instanceIdsByTag.computeIfAbsent(tag, key -> new HashSet<>(2)).add(id);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // malformed or truncated listing: connector-iaas answered, sending the request again will not help
+            throw new JSONException("Failed to parse the instances returned by connector-iaas", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the instances returned by connector-iaas", e);
+        }
+
+        return instanceIdsByTag;
+    }
+
+}
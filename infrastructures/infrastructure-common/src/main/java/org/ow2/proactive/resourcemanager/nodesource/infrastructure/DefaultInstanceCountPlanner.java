@@ -0,0 +1,149 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.ow2.proactive.resourcemanager.nodesource.infrastructure.AbstractAddonInfrastructure.MAX_NODES_KEY;
+import static org.ow2.proactive.resourcemanager.nodesource.infrastructure.AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Plans the deployment of the requested nodes on instances running a fixed number of nodes.
+ *
+ * When the request comes from a dynamic policy (it gives the total and the maximum number
+ * of nodes), the number of nodes to deploy is bounded by the nodes the policy still
+ * expects, counting the nodes being deployed, and by the maximum number of nodes. A policy
+ * decision made before concurrent deployments completed is thus reduced rather than
+ * rejected. The free slots of the partially used instances are filled first, the fullest
+ * instances first, when the infrastructure can deploy nodes on its existing instances.
+ * The remaining nodes are deployed on new instances, bounded by the maximum number of
+ * instances and of nodes.
+ */
+public class DefaultInstanceCountPlanner implements InstanceCountPlanner {
+
+    private static final Logger logger = Logger.getLogger(DefaultInstanceCountPlanner.class);
+
+    @Override
+    public DeploymentPlan plan(DeploymentRequest request) {
+        int nbNodesPerInstance = request.getNbNodesPerInstance();
+        int nbNodesToDeploy = request.getNbRequestedNodes();
+        Map<String, ?> nodeParameters = request.getNodeParameters();
+        boolean dynamicPolicyRequest = nodeParameters.containsKey(TOTAL_NUMBER_OF_NODES_KEY);
+        int nbMaxNodes = Integer.MAX_VALUE;
+
+        if (dynamicPolicyRequest) {
+            if (!nodeParameters.containsKey(MAX_NODES_KEY)) {
+                throw new IllegalArgumentException("The dynamic policy parameters should include the maximal number of nodes");
+            }
+            nbMaxNodes = ((Number) nodeParameters.get(MAX_NODES_KEY)).intValue();
+            int nbTotalNodes = ((Number) nodeParameters.get(TOTAL_NUMBER_OF_NODES_KEY)).intValue();
+            int nbKnownNodes = request.getNbExistingNodes() + request.getNbDeployingNodes();
+            int nbMissingNodes = Math.max(0, Math.min(nbTotalNodes, nbMaxNodes) - nbKnownNodes);
+            if (nbMissingNodes < nbNodesToDeploy) {
+                logger.info(String.format("The sum of existing nodes (%d), deploying nodes (%d) and required new nodes (%d) exceeds the total number of nodes (%d) or the maximal number of nodes (%d), so the number of nodes to deploy is reduced to %d.",
+                                          request.getNbExistingNodes(),
+                                          request.getNbDeployingNodes(),
+                                          nbNodesToDeploy,
+                                          nbTotalNodes,
+                                          nbMaxNodes,
+                                          nbMissingNodes));
+                nbNodesToDeploy = nbMissingNodes;
+            }
+        }
+
+        Map<String, Integer> nbNodesOnExistingInstances = new LinkedHashMap<>();
+        if (request.isDeployableOnExistingInstances()) {
+            nbNodesToDeploy -= fillExistingInstances(request, nbNodesToDeploy, nbNodesOnExistingInstances);
+        }
+
+        int nbInstancesToCreate = nbNodesToDeploy / nbNodesPerInstance +
+                                  ((nbNodesToDeploy % nbNodesPerInstance == 0) ? 0 : 1);
+        int nbNodesOnLastInstance = nbNodesToDeploy % nbNodesPerInstance == 0 ? nbNodesPerInstance
+                                                                              : nbNodesToDeploy % nbNodesPerInstance;
+
+        if (dynamicPolicyRequest) {
+            int nbExistingInstances = request.getNbNodesPerExistingInstance().size();
+            if (nbExistingInstances + nbInstancesToCreate > request.getMaxNbInstances()) {
+                logger.info(String.format("The sum of existing instances (%d) and required instances (%d) is greater than the maximal number of instance (%d), so the number of instances to deploy is reduced to %d.",
+                                          nbExistingInstances,
+                                          nbInstancesToCreate,
+                                          request.getMaxNbInstances(),
+                                          request.getMaxNbInstances() - nbExistingInstances));
+                nbInstancesToCreate = request.getMaxNbInstances() - nbExistingInstances;
+                nbNodesOnLastInstance = nbNodesPerInstance;
+            }
+            if ((nbExistingInstances + nbInstancesToCreate) * nbNodesPerInstance > nbMaxNodes) {
+                logger.info(String.format("The sum of existing instances (%d) and required instances (%d) will start number of nodes (%d) more than maximal number of nodes (%d), so the number of instances to deploy is reduced to %d.",
+                                          nbExistingInstances,
+                                          nbInstancesToCreate,
+                                          (nbExistingInstances + nbInstancesToCreate) * nbNodesPerInstance,
+                                          nbMaxNodes,
+                                          nbMaxNodes / nbNodesPerInstance - nbExistingInstances));
+                nbInstancesToCreate = nbMaxNodes / nbNodesPerInstance - nbExistingInstances;
+                nbNodesOnLastInstance = nbNodesPerInstance;
+            }
+        }
+
+        return new DeploymentPlan(nbNodesOnExistingInstances,
+                                  Math.max(0, nbInstancesToCreate),
+                                  nbNodesPerInstance,
+                                  nbNodesOnLastInstance);
+    }
+
+    /**
+     * Fills the free slots of the partially used instances, the fullest first.
+     *
+     * @return the number of nodes deployed on existing instances
+     */
+    private int fillExistingInstances(DeploymentRequest request, int nbNodesToDeploy,
+            Map<String, Integer> nbNodesOnExistingInstances) {
+        int nbNodesPerInstance = request.getNbNodesPerInstance();
+        int nbPlacedNodes = 0;
+        List<Map.Entry<String, Integer>> partiallyUsedInstances = request.getNbNodesPerExistingInstance()
+                                                                         .entrySet()
+                                                                         .stream()
+                                                                         .filter(entry -> entry.getValue() < nbNodesPerInstance)
+                                                                         .sorted(Map.Entry.<String, Integer> comparingByValue(Comparator.reverseOrder()))
+                                                                         .collect(Collectors.toList());
+        for (Map.Entry<String, Integer> instance : partiallyUsedInstances) {
+            if (nbPlacedNodes >= nbNodesToDeploy) {
+                break;
+            }
+            int nbNodes = Math.min(nbNodesPerInstance - instance.getValue(), nbNodesToDeploy - nbPlacedNodes);
+            nbNodesOnExistingInstances.put(instance.getKey(), nbNodes);
+            nbPlacedNodes += nbNodes;
+        }
+        return nbPlacedNodes;
+    }
+
+}
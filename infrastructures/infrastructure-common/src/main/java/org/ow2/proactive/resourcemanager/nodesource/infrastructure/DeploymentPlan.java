@@ -0,0 +1,96 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Deployment of requested nodes, as decided by an {@link InstanceCountPlanner}: the nodes
+ * deployed on existing instances, then the new instances to create. Each new instance runs
+ * the given number of nodes, except the last one which may run less.
+ */
+public class DeploymentPlan {
+
+    private final Map<String, Integer> nbNodesOnExistingInstances;
+
+    private final int nbInstancesToCreate;
+
+    private final int nbNodesPerInstance;
+
+    private final int nbNodesOnLastInstance;
+
+    public DeploymentPlan(Map<String, Integer> nbNodesOnExistingInstances, int nbInstancesToCreate,
+            int nbNodesPerInstance, int nbNodesOnLastInstance) {
+        this.nbNodesOnExistingInstances = Collections.unmodifiableMap(new LinkedHashMap<>(nbNodesOnExistingInstances));
+        this.nbInstancesToCreate = nbInstancesToCreate;
+        this.nbNodesPerInstance = nbNodesPerInstance;
+        this.nbNodesOnLastInstance = nbNodesOnLastInstance;
+    }
+
+    /**
+     * @return the number of nodes to deploy on each existing instance, in the order they
+     * should be filled
+     */
+    public Map<String, Integer> getNbNodesOnExistingInstances() {
+        return nbNodesOnExistingInstances;
+    }
+
+    public int getNbInstancesToCreate() {
+        return nbInstancesToCreate;
+    }
+
+    public int getNbNodesPerInstance() {
+        return nbNodesPerInstance;
+    }
+
+    public int getNbNodesOnLastInstance() {
+        return nbNodesOnLastInstance;
+    }
+
+    /**
+     * @return the total number of nodes deployed by this plan
+     */
+    public int getNbNodesToDeploy() {
+        int nbNodesOnNewInstances = nbInstancesToCreate == 0 ? 0
+                                                             : (nbInstancesToCreate - 1) * nbNodesPerInstance +
+                                                               nbNodesOnLastInstance;
+        return nbNodesOnExistingInstances.values().stream().mapToInt(Integer::intValue).sum() +
+               nbNodesOnNewInstances;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DeploymentPlan nodes on existing instances: %s, instances to create: [%d], nodes per instance: [%d], nodes on last instance: [%d]",
+                             nbNodesOnExistingInstances,
+                             nbInstancesToCreate,
+                             nbNodesPerInstance,
+                             nbNodesOnLastInstance);
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Nodes requested to an infrastructure, with the state of the infrastructure needed to
+ * plan their deployment.
+ */
+public class DeploymentRequest {
+
+    private final int nbRequestedNodes;
+
+    private final Map<String, ?> nodeParameters;
+
+    private final int nbExistingNodes;
+
+    private final int nbDeployingNodes;
+
+    private final Map<String, Integer> nbNodesPerExistingInstance;
+
+    private final int maxNbInstances;
+
+    private final int nbNodesPerInstance;
+
+    private final boolean deployableOnExistingInstances;
+
+    /**
+     * @param nbRequestedNodes number of nodes requested
+     * @param nodeParameters parameters of the request (node configuration, and total and
+     *                       maximum number of nodes when requested by a dynamic policy)
+     * @param nbExistingNodes number of nodes of the node source
+     * @param nbDeployingNodes number of nodes being deployed, not counted in the existing
+     *                         nodes
+     * @param nbNodesPerExistingInstance number of nodes running on each existing instance
+     * @param maxNbInstances maximum number of instances of the infrastructure
+     * @param nbNodesPerInstance number of nodes an instance can run
+     * @param deployableOnExistingInstances whether the infrastructure can deploy nodes on
+     *                                      its existing instances
+     */
+    public DeploymentRequest(int nbRequestedNodes, Map<String, ?> nodeParameters, int nbExistingNodes,
+            int nbDeployingNodes, Map<String, Integer> nbNodesPerExistingInstance, int maxNbInstances,
+            int nbNodesPerInstance, boolean deployableOnExistingInstances) {
+        this.nbRequestedNodes = nbRequestedNodes;
+        this.nodeParameters = Collections.unmodifiableMap(new HashMap<>(nodeParameters));
+        this.nbExistingNodes = nbExistingNodes;
+        this.nbDeployingNodes = nbDeployingNodes;
+        this.nbNodesPerExistingInstance = Collections.unmodifiableMap(new HashMap<>(nbNodesPerExistingInstance));
+        this.maxNbInstances = maxNbInstances;
+        this.nbNodesPerInstance = nbNodesPerInstance;
+        this.deployableOnExistingInstances = deployableOnExistingInstances;
+    }
+
+    public int getNbRequestedNodes() {
+        return nbRequestedNodes;
+    }
+
+    public Map<String, ?> getNodeParameters() {
+        return nodeParameters;
+    }
+
+    public int getNbExistingNodes() {
+        return nbExistingNodes;
+    }
+
+    public int getNbDeployingNodes() {
+        return nbDeployingNodes;
+    }
+
+    public Map<String, Integer> getNbNodesPerExistingInstance() {
+        return nbNodesPerExistingInstance;
+    }
+
+    public int getMaxNbInstances() {
+        return maxNbInstances;
+    }
+
+    public int getNbNodesPerInstance() {
+        return nbNodesPerInstance;
+    }
+
+    public boolean isDeployableOnExistingInstances() {
+        return deployableOnExistingInstances;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DeploymentRequest requested nodes: [%d], existing nodes: [%d], deploying nodes: [%d], existing instances: [%d], max instances: [%d], nodes per instance: [%d]",
+                             nbRequestedNodes,
+                             nbExistingNodes,
+                             nbDeployingNodes,
+                             nbNodesPerExistingInstance.size(),
+                             maxNbInstances,
+                             nbNodesPerInstance);
+    }
+
+}
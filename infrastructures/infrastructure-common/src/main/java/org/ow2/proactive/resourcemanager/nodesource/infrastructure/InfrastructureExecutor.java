@@ -0,0 +1,182 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Bounded thread pool running the background work of an infrastructure (instances creation,
+ * nodes deployment, deploying nodes declaration...).
+ *
+ * The number of threads and the number of queued tasks are bounded. When the queue is full,
+ * the task is run by the submitting thread, which slows down the submitter instead of
+ * rejecting the task, unless the task is submitted with {@link #trySubmit(Runnable)}. Idle
+ * threads are released, so an idle infrastructure does not hold any thread. The executor must
+ * be shut down when the infrastructure is shut down.
+ */
+public class InfrastructureExecutor {
+
+    private static final Logger logger = Logger.getLogger(InfrastructureExecutor.class);
+
+    private static final long IDLE_THREAD_TIMEOUT = 60;// seconds
+
+    private final String name;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param name name of the executor, used to name its threads
+     * @param maxThreads maximum number of threads running the tasks
+     * @param queueCapacity maximum number of tasks waiting for a thread
+     */
+    public InfrastructureExecutor(String name, int maxThreads, int queueCapacity) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(maxThreads,
+                                               maxThreads,
+                                               IDLE_THREAD_TIMEOUT,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<>(queueCapacity),
+                                               new ThreadFactoryBuilder().setNameFormat(name + "-%d")
+                                                                         .setDaemon(true)
+                                                                         .build(),
+                                               new CallerRunsUnlessDeferrablePolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Submits a task which must never be run by the submitting thread, typically because the
+     * submitter holds a lock or is a thread of the resource manager.
+     *
+     * @return false if the task has not been accepted, because the queue is full or the
+     * executor is shut down
+     */
+    public boolean trySubmit(Runnable task) {
+        try {
+            executor.execute(new DeferrableTask(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs all the given tasks and waits for their completion.
+     *
+     * @return the futures of the tasks, in the order of the given collection
+     */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        return executor.invokeAll(tasks);
+    }
+
+    /**
+     * @return the number of threads currently running a task
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Interrupts the running tasks and drops the queued ones.
+     */
+    public void shutdown() {
+        List<Runnable> droppedTasks = executor.shutdownNow();
+        logger.info("Executor " + this + " shut down, " + droppedTasks.size() + " queued tasks dropped");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [active threads: %d, pool size: %d, queued tasks: %d, completed tasks: %d]",
+                             name,
+                             executor.getActiveCount(),
+                             executor.getPoolSize(),
+                             executor.getQueue().size(),
+                             executor.getCompletedTaskCount());
+    }
+
+    /**
+     * Task that the submitter prefers to submit again later rather than running itself.
+     */
+    private static class DeferrableTask implements Runnable {
+
+        private final Runnable task;
+
+        private DeferrableTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static class CallerRunsUnlessDeferrablePolicy extends ThreadPoolExecutor.CallerRunsPolicy {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (task instanceof DeferrableTask) {
+                throw new RejectedExecutionException("Executor saturated or shut down");
+            }
+            super.rejectedExecution(task, executor);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Immutable snapshot of the state of an infrastructure: its instances and their nodes, the
+ * removed nodes, the instances without nodes, the counters and the variables specific to
+ * the infrastructure (key pair, billing information...).
+ *
+ * The snapshot is taken in a single pass, and carries the version of its format, so that
+ * a state saved by a newer version is detected instead of being misread.
+ */
+public class InfrastructureStateSnapshot implements Serializable {
+
+    /**
+     * Version of the snapshot format. Version 1 holds the node names of an instance in
+     * an immutable set, and the state of the instances in concurrent maps.
+     */
+    public static final int CURRENT_VERSION = 1;
+
+    private final int version;
+
+    private final Map<String, Set<String>> nodesPerInstance;
+
+    private final Map<String, Integer> nbRemovedNodesPerInstance;
+
+    private final Map<String, Integer> instancesWithoutNodes;
+
+    private final int nbAcquiredNodes;
+
+    private final boolean infrastructureCreated;
+
+    private final Map<String, Serializable> infrastructureVariables;
+
+    public InfrastructureStateSnapshot(int version, Map<String, Set<String>> nodesPerInstance,
+            Map<String, Integer> nbRemovedNodesPerInstance, Map<String, Integer> instancesWithoutNodes,
+            int nbAcquiredNodes, boolean infrastructureCreated, Map<String, Serializable> infrastructureVariables) {
+        this.version = version;
+        this.nodesPerInstance = Collections.unmodifiableMap(new HashMap<>(nodesPerInstance));
+        this.nbRemovedNodesPerInstance = Collections.unmodifiableMap(new HashMap<>(nbRemovedNodesPerInstance));
+        this.instancesWithoutNodes = Collections.unmodifiableMap(new HashMap<>(instancesWithoutNodes));
+        this.nbAcquiredNodes = nbAcquiredNodes;
+        this.infrastructureCreated = infrastructureCreated;
+        this.infrastructureVariables = Collections.unmodifiableMap(new HashMap<>(infrastructureVariables));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Map<String, Set<String>> getNodesPerInstance() {
+        return nodesPerInstance;
+    }
+
+    public Map<String, Integer> getNbRemovedNodesPerInstance() {
+        return nbRemovedNodesPerInstance;
+    }
+
+    public Map<String, Integer> getInstancesWithoutNodes() {
+        return instancesWithoutNodes;
+    }
+
+    public int getNbAcquiredNodes() {
+        return nbAcquiredNodes;
+    }
+
+    public boolean isInfrastructureCreated() {
+        return infrastructureCreated;
+    }
+
+    public Map<String, Serializable> getInfrastructureVariables() {
+        return infrastructureVariables;
+    }
+
+    /**
+     * @return the number of nodes registered on the instances of the snapshot
+     */
+    public int getNbRegisteredNodes() {
+        return nodesPerInstance.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * Checks that the snapshot can be loaded.
+     *
+     * @throws IllegalStateException if the snapshot has a newer format than the current
+     * one, or if it is inconsistent
+     */
+    public void validate() {
+        if (version > CURRENT_VERSION) {
+            throw new IllegalStateException("Infrastructure state of version " + version +
+                                            " cannot be loaded by version " + CURRENT_VERSION);
+        }
+        if (nbAcquiredNodes < 0) {
+            throw new IllegalStateException("Invalid number of acquired nodes in infrastructure state: " +
+                                            nbAcquiredNodes);
+        }
+        nodesPerInstance.forEach((instanceId, nodeNames) -> {
+            if (nodeNames == null) {
+                throw new IllegalStateException("Instance " + instanceId + " has no node set in infrastructure state");
+            }
+        });
+    }
+
+    /**
+     * @param existingInstances the instances which exist in the cloud, given by a single
+     * listing of the instances of the infrastructure
+     * @return the instances of the snapshot which do not exist anymore
+     */
+    public Set<String> getMissingInstances(Set<String> existingInstances) {
+        Set<String> missingInstances = new HashSet<>();
+        nodesPerInstance.keySet()
+                        .stream()
+                        .filter(instanceId -> !existingInstances.contains(instanceId))
+                        .forEach(missingInstances::add);
+        nbRemovedNodesPerInstance.keySet()
+                                 .stream()
+                                 .filter(instanceId -> !existingInstances.contains(instanceId))
+                                 .forEach(missingInstances::add);
+        instancesWithoutNodes.keySet()
+                             .stream()
+                             .filter(instanceId -> !existingInstances.contains(instanceId))
+                             .forEach(missingInstances::add);
+        return missingInstances;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InfrastructureStateSnapshot version: [%d], instances: [%d], nodes: [%d], removed nodes: [%d], instances without nodes: [%d], acquired nodes: [%d]",
+                             version,
+                             nodesPerInstance.size(),
+                             getNbRegisteredNodes(),
+                             nbRemovedNodesPerInstance.values().stream().mapToInt(Integer::intValue).sum(),
+                             instancesWithoutNodes.size(),
+                             nbAcquiredNodes);
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Periodically reconciles the instances known by the persisted state of an infrastructure
+ * with the instances which actually exist in the cloud.
+ *
+ * Each reconciliation lists the instances of the infrastructure once, and detects three
+ * kinds of drift: the orphan instances, which exist but are unknown to the infrastructure,
+ * the missing instances, which are known but do not exist anymore, and the existing
+ * instances which lost their nodes. A drift is only fixed when it is seen by two
+ * consecutive reconciliations, so that the instances being created or deleted meanwhile
+ * are not mistaken for a drift. The orphan instances are terminated once they have been
+ * seen as orphan for a minimum age, at most a given number per reconciliation, the missing
+ * instances are removed from the state, and the nodes are redeployed on the instances
+ * which lost them. Nothing is fixed while nodes are being deployed.
+ *
+ * The reconciliations are triggered by a scheduler shared by all the infrastructures and
+ * run by the executor of the infrastructure. A reconciliation can also be requested, it is
+ * then run unless another one ran recently.
+ */
+public class InstanceReconciler {
+
+    private static final Logger logger = Logger.getLogger(InstanceReconciler.class);
+
+    private static final ScheduledExecutorService RECONCILIATION_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("instance-reconciler-%d")
+                                                                                                                                                 .setDaemon(true)
+                                                                                                                                                 .build());
+
+    /**
+     * The instances of an infrastructure, as seen by the reconciler.
+     */
+    public interface Inventory {
+
+        /**
+         * @return the instances of the infrastructure which exist in the cloud, given by a
+         * single listing, or null if they cannot be listed
+         */
+        Set<String> listExistingInstances();
+
+        /**
+         * @return the instances known by the persisted state of the infrastructure
+         */
+        Set<String> getKnownInstances();
+
+        /**
+         * @return the instances on which no node runs anymore
+         */
+        Set<String> getInstancesWithoutNodes();
+
+        /**
+         * @return whether nodes are being deployed by the infrastructure
+         */
+        boolean isDeploying();
+
+        void terminateOrphanInstance(String instanceId);
+
+        void removeMissingInstances(Set<String> instanceIds);
+
+        /**
+         * @return whether the redeployment of the nodes has been triggered
+         */
+        boolean redeployNodes(Set<String> instanceIds);
+
+    }
+
+    /**
+     * Drift between the persisted state and the cloud found by a reconciliation.
+     */
+    public static class Drift {
+
+        private final Set<String> orphanInstances;
+
+        private final Set<String> missingInstances;
+
+        private final Set<String> instancesWithoutNodes;
+
+        public Drift(Set<String> orphanInstances, Set<String> missingInstances, Set<String> instancesWithoutNodes) {
+            this.orphanInstances = Collections.unmodifiableSet(orphanInstances);
+            this.missingInstances = Collections.unmodifiableSet(missingInstances);
+            this.instancesWithoutNodes = Collections.unmodifiableSet(instancesWithoutNodes);
+        }
+
+        public Set<String> getOrphanInstances() {
+            return orphanInstances;
+        }
+
+        public Set<String> getMissingInstances() {
+            return missingInstances;
+        }
+
+        public Set<String> getInstancesWithoutNodes() {
+            return instancesWithoutNodes;
+        }
+
+        public boolean isEmpty() {
+            return orphanInstances.isEmpty() && missingInstances.isEmpty() && instancesWithoutNodes.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "orphan instances: " + orphanInstances + ", missing instances: " + missingInstances +
+                   ", instances without nodes: " + instancesWithoutNodes;
+        }
+
+    }
+
+    private static final Drift NO_DRIFT = new Drift(Collections.emptySet(),
+                                                    Collections.emptySet(),
+                                                    Collections.emptySet());
+
+    private final String name;
+
+    private final Inventory inventory;
+
+    private final InfrastructureExecutor executor;
+
+    private final long period;
+
+    private final long minInterval;
+
+    private final int maxTerminations;
+
+    private final long orphanMinAge;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private ScheduledFuture<?> scheduledReconciliations = null;
+
+    private volatile long lastReconciliation = 0;
+
+    private Drift suspectedDrift = NO_DRIFT;
+
+    /**
+     * Time at which each orphan instance has been seen as orphan for the first time.
+     */
+    private final Map<String, Long> orphansFirstSeen = new HashMap<>();
+
+    private volatile Drift lastDrift = NO_DRIFT;
+
+    private final AtomicLong nbReconciliations = new AtomicLong(0);
+
+    private final AtomicLong nbFailedListings = new AtomicLong(0);
+
+    private final AtomicLong nbTerminatedOrphans = new AtomicLong(0);
+
+    private final AtomicLong nbRemovedMissingInstances = new AtomicLong(0);
+
+    private final AtomicLong nbRedeployedInstances = new AtomicLong(0);
+
+    /**
+     * @param name name of the infrastructure, used in logs
+     * @param inventory instances of the infrastructure
+     * @param executor executor running the reconciliations
+     * @param period delay (in milliseconds) between two periodic reconciliations
+     * @param minInterval minimum delay (in milliseconds) between two reconciliations
+     * @param maxTerminations maximum number of orphan instances terminated by a
+     *                        reconciliation
+     * @param orphanMinAge minimum delay (in milliseconds) during which an instance must be
+     *                     seen as orphan before being terminated
+     */
+    public InstanceReconciler(String name, Inventory inventory, InfrastructureExecutor executor, long period,
+            long minInterval, int maxTerminations, long orphanMinAge) {
+        this.name = name;
+        this.inventory = inventory;
+        this.executor = executor;
+        this.period = period;
+        this.minInterval = minInterval;
+        this.maxTerminations = maxTerminations;
+        this.orphanMinAge = orphanMinAge;
+    }
+
+    /**
+     * Starts the periodic reconciliations, if not already started.
+     */
+    public synchronized void start() {
+        if (scheduledReconciliations == null && period > 0) {
+            scheduledReconciliations = RECONCILIATION_SCHEDULER.scheduleWithFixedDelay(this::requestReconciliation,
+                                                                                       period,
+                                                                                       period,
+                                                                                       TimeUnit.MILLISECONDS);
+            logger.info("Reconciliation of the instances of " + name + " started, every " + period + " ms");
+        }
+    }
+
+    /**
+     * Stops the periodic reconciliations. A reconciliation already running is not
+     * interrupted.
+     */
+    public synchronized void stop() {
+        if (scheduledReconciliations != null) {
+            scheduledReconciliations.cancel(false);
+            scheduledReconciliations = null;
+            logger.info("Reconciliation of the instances of " + name + " stopped");
+        }
+    }
+
+    /**
+     * Requests a reconciliation in the background. The request is ignored if a
+     * reconciliation is running, or if the last one ran less than the minimum interval ago.
+     *
+     * @return whether a reconciliation has been submitted
+     */
+    public boolean requestReconciliation() {
+        if (System.currentTimeMillis() - lastReconciliation < minInterval || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            executor.submit(() -> {
+                try {
+                    reconcile();
+                } catch (RuntimeException e) {
+                    logger.error("Reconciliation of the instances of " + name + " failed", e);
+                } finally {
+                    running.set(false);
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            running.set(false);
+            logger.warn("Reconciliation of the instances of " + name + " cannot be submitted", e);
+            return false;
+        }
+    }
+
+    /**
+     * Compares the known instances with the existing ones, and fixes the drift seen by the
+     * previous reconciliation as well.
+     *
+     * @return the drift fixed by this reconciliation, or null if the instances cannot be
+     * listed
+     */
+    synchronized Drift reconcile() {
+        lastReconciliation = System.currentTimeMillis();
+        Set<String> existingInstances = inventory.listExistingInstances();
+        if (existingInstances == null) {
+            nbFailedListings.incrementAndGet();
+            logger.warn("Instances of " + name + " cannot be listed, reconciliation skipped");
+            return null;
+        }
+        nbReconciliations.incrementAndGet();
+        Set<String> knownInstances = inventory.getKnownInstances();
+
+        Set<String> missingInstances = new HashSet<>(Sets.difference(knownInstances, existingInstances));
+        if (existingInstances.isEmpty()) {
+            // an empty listing is not trusted to remove all the instances
+            missingInstances.clear();
+        }
+        Drift drift = new Drift(new HashSet<>(Sets.difference(existingInstances, knownInstances)),
+                                missingInstances,
+                                new HashSet<>(Sets.intersection(inventory.getInstancesWithoutNodes(),
+                                                                existingInstances)));
+        lastDrift = drift;
+        if (inventory.isDeploying()) {
+            // the instances being deployed are not known yet
+            suspectedDrift = NO_DRIFT;
+            orphansFirstSeen.clear();
+            logger.debug("Nodes of " + name + " are being deployed, drift not fixed: " + drift);
+            return NO_DRIFT;
+        }
+
+        orphansFirstSeen.keySet().retainAll(drift.getOrphanInstances());
+        drift.getOrphanInstances().forEach(instanceId -> orphansFirstSeen.putIfAbsent(instanceId, lastReconciliation));
+        // the instances which have just been created may not be known yet
+        Set<String> oldOrphanInstances = Sets.intersection(drift.getOrphanInstances(),
+                                                           suspectedDrift.getOrphanInstances())
+                                             .stream()
+                                             .filter(instanceId -> lastReconciliation -
+                                                                   orphansFirstSeen.get(instanceId) >= orphanMinAge)
+                                             .collect(Collectors.toSet());
+        Drift confirmedDrift = new Drift(oldOrphanInstances,
+                                         new HashSet<>(Sets.intersection(drift.getMissingInstances(),
+                                                                         suspectedDrift.getMissingInstances())),
+                                         new HashSet<>(Sets.intersection(drift.getInstancesWithoutNodes(),
+                                                                         suspectedDrift.getInstancesWithoutNodes())));
+        suspectedDrift = drift;
+        if (!drift.isEmpty()) {
+            logger.info("Drift of the instances of " + name + ": " + drift);
+        }
+        fix(confirmedDrift);
+        return confirmedDrift;
+    }
+
+    private void fix(Drift drift) {
+        Set<String> terminatedOrphans = drift.getOrphanInstances()
+                                             .stream()
+                                             .limit(maxTerminations)
+                                             .collect(Collectors.toSet());
+        for (String instanceId : terminatedOrphans) {
+            logger.warn("Orphan instance " + instanceId + " of " + name + " terminated");
+            inventory.terminateOrphanInstance(instanceId);
+        }
+        nbTerminatedOrphans.addAndGet(terminatedOrphans.size());
+
+        if (!drift.getMissingInstances().isEmpty()) {
+            logger.warn("Missing instances " + drift.getMissingInstances() + " of " + name +
+                        " removed with their nodes");
+            inventory.removeMissingInstances(drift.getMissingInstances());
+            nbRemovedMissingInstances.addAndGet(drift.getMissingInstances().size());
+        }
+
+        if (!drift.getInstancesWithoutNodes().isEmpty() && inventory.redeployNodes(drift.getInstancesWithoutNodes())) {
+            logger.info("Nodes of " + name + " redeployed on instances " + drift.getInstancesWithoutNodes());
+            nbRedeployedInstances.addAndGet(drift.getInstancesWithoutNodes().size());
+        }
+    }
+
+    /**
+     * @return the drift found by the last reconciliation, fixed or not
+     */
+    public Drift getLastDrift() {
+        return lastDrift;
+    }
+
+    public long getNbReconciliations() {
+        return nbReconciliations.get();
+    }
+
+    public long getNbFailedListings() {
+        return nbFailedListings.get();
+    }
+
+    public long getNbTerminatedOrphans() {
+        return nbTerminatedOrphans.get();
+    }
+
+    public long getNbRemovedMissingInstances() {
+        return nbRemovedMissingInstances.get();
+    }
+
+    public long getNbRedeployedInstances() {
+        return nbRedeployedInstances.get();
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Terminates the instances of an infrastructure in the background.
+ *
+ * Termination requests are queued and return immediately, so that no network call is made
+ * while the persisted infrastructure variables are locked. A single task, run by the
+ * infrastructure executor, terminates all the queued instances one batch after the other.
+ * This task is never run by the thread requesting a termination: when the executor is
+ * saturated, its submission is retried later.
+ * A failed termination is retried with the given retry policy, and its outcome is reported
+ * through the returned future, in the logs and in the termination counters. Requesting the
+ * termination of an instance already queued does not terminate it twice.
+ */
+public class InstanceTerminator {
+
+    private static final Logger logger = Logger.getLogger(InstanceTerminator.class);
+
+    private static final long SUBMISSION_RETRY_DELAY = 1000;
+
+    private static final ScheduledExecutorService SUBMISSION_RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("instance-termination-submission-%d")
+                                                                                                                                                    .setDaemon(true)
+                                                                                                                                                    .build());
+
+    private final String name;
+
+    private final Consumer<String> termination;
+
+    private final InfrastructureExecutor executor;
+
+    private final RetryPolicy retryPolicy;
+
+    private final Map<String, CompletableFuture<Void>> pendingTerminations = new LinkedHashMap<>();
+
+    private boolean draining = false;
+
+    private final AtomicLong nbTerminated = new AtomicLong(0);
+
+    private final AtomicLong nbFailed = new AtomicLong(0);
+
+    /**
+     * @param name name of the infrastructure, used in logs
+     * @param termination terminates the instance of the given identifier
+     * @param executor executor running the terminations
+     * @param retryPolicy retry policy of a failed termination
+     */
+    public InstanceTerminator(String name, Consumer<String> termination, InfrastructureExecutor executor,
+            RetryPolicy retryPolicy) {
+        this.name = name;
+        this.termination = termination;
+        this.executor = executor;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Queues the termination of the given instance.
+     *
+     * @return a future completed once the instance is terminated, or completed exceptionally
+     * if the termination still fails after the retries
+     */
+    public CompletableFuture<Void> terminate(String instanceId) {
+        CompletableFuture<Void> outcome;
+        boolean startDraining;
+        synchronized (this) {
+            outcome = pendingTerminations.get(instanceId);
+            if (outcome == null) {
+                outcome = new CompletableFuture<>();
+                pendingTerminations.put(instanceId, outcome);
+                logger.info("Termination of instance " + instanceId + " of " + name + " queued");
+            }
+            startDraining = !draining;
+            draining = true;
+        }
+        if (startDraining) {
+            submitDrain();
+        }
+        return outcome;
+    }
+
+    public synchronized int getNbPendingTerminations() {
+        return pendingTerminations.size();
+    }
+
+    public long getNbTerminated() {
+        return nbTerminated.get();
+    }
+
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     * Fails the terminations which are still queued. Used when the infrastructure is shut
+     * down, its deletion terminating all its instances anyway.
+     */
+    public void cancelPendingTerminations() {
+        List<CompletableFuture<Void>> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(pendingTerminations.values());
+            pendingTerminations.clear();
+        }
+        if (!cancelled.isEmpty()) {
+            logger.info(cancelled.size() + " queued instance terminations of " + name + " cancelled");
+        }
+        cancelled.forEach(outcome -> outcome.completeExceptionally(new IllegalStateException("Infrastructure " +
+                                                                                             name + " shut down")));
+    }
+
+    /**
+     * Submits the draining task, which is never run by the requesting thread: if the executor
+     * is saturated, the submission is retried later.
+     */
+    private void submitDrain() {
+        if (executor.trySubmit(this::drain)) {
+            return;
+        }
+        if (executor.isShutdown()) {
+            synchronized (this) {
+                draining = false;
+            }
+            return;
+        }
+        logger.debug("Executor of " + name + " saturated, instance terminations submitted again in " +
+                     SUBMISSION_RETRY_DELAY + " ms");
+        SUBMISSION_RETRY_SCHEDULER.schedule(this::submitDrain, SUBMISSION_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        while (true) {
+            Map<String, CompletableFuture<Void>> batch;
+            synchronized (this) {
+                if (pendingTerminations.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                batch = new LinkedHashMap<>(pendingTerminations);
+            }
+            for (Map.Entry<String, CompletableFuture<Void>> instanceTermination : batch.entrySet()) {
+                terminateWithRetries(instanceTermination.getKey(), instanceTermination.getValue());
+                synchronized (this) {
+                    pendingTerminations.remove(instanceTermination.getKey(), instanceTermination.getValue());
+                }
+            }
+            logger.info(String.format("Instance terminations of %s processed: %d terminated, %d failed in total",
+                                      name,
+                                      nbTerminated.get(),
+                                      nbFailed.get()));
+        }
+    }
+
+    private void terminateWithRetries(String instanceId, CompletableFuture<Void> outcome) {
+        RetryPolicy.Execution execution = retryPolicy.newExecution();
+        while (true) {
+            execution.attemptSent();
+            try {
+                termination.accept(instanceId);
+                nbTerminated.incrementAndGet();
+                logger.info("Instance terminated: " + instanceId);
+                outcome.complete(null);
+                return;
+            } catch (RuntimeException e) {
+                if (!RetryPolicy.isRetryable(e) || !execution.canRetry()) {
+                    nbFailed.incrementAndGet();
+                    logger.error("Instance " + instanceId + " of " + name + " could not be terminated after " +
+                                 execution.getAttempts() + " attempts", e);
+                    outcome.completeExceptionally(e);
+                    return;
+                }
+                logger.warn("Termination of instance " + instanceId + " failed (attempt " + execution.getAttempts() +
+                            "), retrying", e);
+            }
+            try {
+                Thread.sleep(execution.nextDelay());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+
+/**
+ * Short-lived cache of the instances of each infrastructure, indexed by tag.
+ *
+ * The listing of an infrastructure is loaded at most once per TTL, and is kept up to date
+ * meanwhile with the instances created and terminated through the same client. Creating
+ * N instances thus costs a single listing instead of N.
+ */
+public class InstancesCache {
+
+    private final long ttl;
+
+    private final ConcurrentMap<String, FutureTask<CachedListing>> listings = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttl time (in milliseconds) during which a listing is reused, 0 disables the cache
+     */
+    public InstancesCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * @return the ids of the instances of the infrastructure having the given tag, from
+     * the cached listing if it is fresh, otherwise from a new listing given by the loader
+     */
+    public Set<String> getInstanceIds(String infrastructureId, String instanceTag,
+            Supplier<Map<String, Set<String>>> loader) {
+        while (true) {
+            // only the caller registering the listing loads it, outside of the map operation, so
+            // that concurrent creations on the same infrastructure wait for a single listing
+            // without blocking the operations on the other infrastructures
+            FutureTask<CachedListing> newListing = new FutureTask<>(() -> new CachedListing(loader.get()));
+            FutureTask<CachedListing> listing = listings.computeIfAbsent(infrastructureId, id -> newListing);
+            if (listing == newListing) {
+                listing.run();
+            }
+
+            CachedListing loadedListing;
+            try {
+                loadedListing = Uninterruptibles.getUninterruptibly(listing);
+            } catch (ExecutionException e) {
+                // a failed listing is not cached, the next caller loads it again
+                listings.remove(infrastructureId, listing);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+
+            if (listing == newListing || loadedListing.isFresh()) {
+                return loadedListing.getInstanceIds(instanceTag);
+            }
+            listings.remove(infrastructureId, listing);
+        }
+    }
+
+    public void addInstances(String infrastructureId, String instanceTag, Set<String> instanceIds) {
+        CachedListing listing = getLoadedListing(infrastructureId);
+        if (listing != null) {
+            listing.instanceIdsByTag.computeIfAbsent(instanceTag, tag -> ConcurrentHashMap.newKeySet())
+                                    .addAll(instanceIds);
+        }
+    }
+
+    public void removeInstance(String infrastructureId, String instanceId) {
+        CachedListing listing = getLoadedListing(infrastructureId);
+        if (listing != null) {
+            listing.instanceIdsByTag.values().forEach(instanceIds -> instanceIds.remove(instanceId));
+        }
+    }
+
+    public void removeTag(String infrastructureId, String instanceTag) {
+        CachedListing listing = getLoadedListing(infrastructureId);
+        if (listing != null) {
+            listing.instanceIdsByTag.remove(instanceTag);
+        }
+    }
+
+    public void invalidate(String infrastructureId) {
+        listings.remove(infrastructureId);
+    }
+
+    /**
+     * @return the listing of the infrastructure if it is loaded, null if there is no listing
+     * or if it is still being loaded or failed to be loaded
+     */
+    private CachedListing getLoadedListing(String infrastructureId) {
+        FutureTask<CachedListing> listing = listings.get(infrastructureId);
+        if (listing == null || !listing.isDone()) {
+            return null;
+        }
+        try {
+            return listing.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private class CachedListing {
+
+        private final long loadedAt = System.currentTimeMillis();
+
+        private final ConcurrentMap<String, Set<String>> instanceIdsByTag = new ConcurrentHashMap<>();
+
+        private CachedListing(Map<String, Set<String>> instanceIdsByTag) {
+            instanceIdsByTag.forEach((tag, instanceIds) -> {
+                Set<String> cachedInstanceIds = ConcurrentHashMap.newKeySet();
+                cachedInstanceIds.addAll(instanceIds);
+                this.instanceIdsByTag.put(tag, cachedInstanceIds);
+            });
+        }
+
+        private boolean isFresh() {
+            return System.currentTimeMillis() - loadedAt < ttl;
+        }
+
+        private Set<String> getInstanceIds(String instanceTag) {
+            Set<String> instanceIds = instanceIdsByTag.get(instanceTag);
+            return instanceIds != null ? new HashSet<>(instanceIds) : new HashSet<>();
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.ow2.proactive.resourcemanager.nodesource.infrastructure.AbstractAddonInfrastructure.MAX_NODES_KEY;
+import static org.ow2.proactive.resourcemanager.nodesource.infrastructure.AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Queue of the node acquisitions requested to an infrastructure.
+ *
+ * The requests with the same node configuration are coalesced: while a deployment of this
+ * configuration is waiting or running, the new requests are added to a single pending
+ * acquisition, deployed once the previous deployment completes. The policy repeats its
+ * requests while the nodes are missing, so the coalesced requests are not added up: the
+ * largest number of nodes requested is deployed, with the policy parameters (total and
+ * maximum number of nodes) of the latest request, the planning of the deployment bounding
+ * the nodes to deploy. The deployments of different configurations run concurrently, up to a given
+ * number.
+ *
+ * A request is never dropped silently: its outcome is reported through the returned
+ * future and in the logs, including when it is rejected because too many acquisitions are
+ * pending, or because it waited longer than its start timeout.
+ */
+public class NodeAcquisitionQueue {
+
+    private static final Logger logger = Logger.getLogger(NodeAcquisitionQueue.class);
+
+    /**
+     * Deploys the nodes of an acquisition.
+     */
+    @FunctionalInterface
+    public interface Deployment {
+
+        void deploy(int numberOfNodes, Map<String, ?> nodeConfiguration) throws Exception;
+
+    }
+
+    private final String name;
+
+    private final Deployment deployment;
+
+    private final Executor executor;
+
+    private final int maxParallelDeployments;
+
+    private final int maxPendingAcquisitions;
+
+    private final Map<Map<String, ?>, PendingAcquisition> pendingAcquisitions = new LinkedHashMap<>();
+
+    private final Set<Map<String, ?>> runningConfigurations = new HashSet<>();
+
+    private long nbCoalescedRequests = 0;
+
+    private long nbRejectedRequests = 0;
+
+    /**
+     * @param name name of the infrastructure, used in logs
+     * @param deployment deploys the nodes of an acquisition
+     * @param executor executor running the deployments
+     * @param maxParallelDeployments maximum number of deployments running concurrently
+     * @param maxPendingAcquisitions maximum number of acquisitions waiting for a deployment
+     */
+    public NodeAcquisitionQueue(String name, Deployment deployment, Executor executor, int maxParallelDeployments,
+            int maxPendingAcquisitions) {
+        this.name = name;
+        this.deployment = deployment;
+        this.executor = executor;
+        this.maxParallelDeployments = Math.max(1, maxParallelDeployments);
+        this.maxPendingAcquisitions = maxPendingAcquisitions;
+    }
+
+    /**
+     * Queues the acquisition of nodes.
+     *
+     * @param numberOfNodes number of nodes requested
+     * @param startTimeout maximum time (in milliseconds) the request can wait before its
+     *                     deployment starts, or 0 to wait without limit
+     * @param nodeParameters node configuration and policy parameters of the request
+     * @return a future completed once the requested nodes are deployed, or completed
+     * exceptionally if the request is rejected or if the deployment fails
+     */
+    public CompletableFuture<Void> submit(int numberOfNodes, long startTimeout, Map<String, ?> nodeParameters) {
+        CompletableFuture<Void> outcome = new CompletableFuture<>();
+        Map<String, ?> configuration = getNodeConfiguration(nodeParameters);
+        List<PendingAcquisition> startedAcquisitions;
+        synchronized (this) {
+            PendingAcquisition pendingAcquisition = pendingAcquisitions.get(configuration);
+            if (pendingAcquisition != null) {
+                pendingAcquisition.add(numberOfNodes, startTimeout, nodeParameters, outcome);
+                nbCoalescedRequests++;
+                logger.info(String.format("Acquisition of %d nodes by %s coalesced with a pending acquisition of %d nodes",
+                                          numberOfNodes,
+                                          name,
+                                          pendingAcquisition.numberOfNodes));
+            } else if (pendingAcquisitions.size() >= maxPendingAcquisitions) {
+                nbRejectedRequests++;
+                logger.error(String.format("Acquisition of %d nodes by %s rejected: %d acquisitions are already pending",
+                                           numberOfNodes,
+                                           name,
+                                           pendingAcquisitions.size()));
+                outcome.completeExceptionally(new IllegalStateException("Too many pending acquisitions in " + name));
+                return outcome;
+            } else {
+                pendingAcquisition = new PendingAcquisition(configuration);
+                pendingAcquisition.add(numberOfNodes, startTimeout, nodeParameters, outcome);
+                pendingAcquisitions.put(configuration, pendingAcquisition);
+            }
+            startedAcquisitions = startAcquisitions();
+        }
+        startedAcquisitions.forEach(acquisition -> executor.execute(() -> run(acquisition)));
+        return outcome;
+    }
+
+    public synchronized int getNbPendingAcquisitions() {
+        return pendingAcquisitions.size();
+    }
+
+    public synchronized int getNbRunningDeployments() {
+        return runningConfigurations.size();
+    }
+
+    public synchronized long getNbCoalescedRequests() {
+        return nbCoalescedRequests;
+    }
+
+    public synchronized long getNbRejectedRequests() {
+        return nbRejectedRequests;
+    }
+
+    /**
+     * Takes the pending acquisitions which can be deployed now: the ones whose
+     * configuration is not being deployed, up to the maximum number of deployments.
+     */
+    private List<PendingAcquisition> startAcquisitions() {
+        List<PendingAcquisition> startedAcquisitions = new ArrayList<>();
+        Iterator<PendingAcquisition> iterator = pendingAcquisitions.values().iterator();
+        while (iterator.hasNext() && runningConfigurations.size() < maxParallelDeployments) {
+            PendingAcquisition pendingAcquisition = iterator.next();
+            if (runningConfigurations.add(pendingAcquisition.configuration)) {
+                iterator.remove();
+                startedAcquisitions.add(pendingAcquisition);
+            }
+        }
+        return startedAcquisitions;
+    }
+
+    private void run(PendingAcquisition acquisition) {
+        boolean deployed = false;
+        Throwable failure = null;
+        try {
+            if (acquisition.isExpired()) {
+                synchronized (this) {
+                    nbRejectedRequests += acquisition.outcomes.size();
+                }
+                logger.error(String.format("Acquisition of %d nodes by %s rejected: it did not start before its start timeout",
+                                           acquisition.numberOfNodes,
+                                           name));
+                failure = new TimeoutException("Acquisition of " + acquisition.numberOfNodes +
+                                               " nodes did not start before its start timeout");
+                return;
+            }
+            logger.info(String.format("Acquiring %d nodes by %s with the configuration: %s (%d requests)",
+                                      acquisition.numberOfNodes,
+                                      name,
+                                      acquisition.nodeParameters,
+                                      acquisition.outcomes.size()));
+            deployment.deploy(acquisition.numberOfNodes, acquisition.nodeParameters);
+            deployed = true;
+        } catch (Exception e) {
+            logger.error("Error during node acquisition by " + name, e);
+            failure = e;
+        } finally {
+            List<PendingAcquisition> startedAcquisitions;
+            synchronized (this) {
+                runningConfigurations.remove(acquisition.configuration);
+                startedAcquisitions = startAcquisitions();
+            }
+            // the outcomes are completed once the deployment is no longer running
+            if (deployed) {
+                acquisition.complete();
+            } else if (failure != null) {
+                acquisition.completeExceptionally(failure);
+            }
+            startedAcquisitions.forEach(next -> executor.execute(() -> run(next)));
+        }
+    }
+
+    /**
+     * @return the node configuration of the request, without the parameters of the policy
+     */
+    private static Map<String, ?> getNodeConfiguration(Map<String, ?> nodeParameters) {
+        Map<String, Object> configuration = new HashMap<>(nodeParameters);
+        configuration.remove(TOTAL_NUMBER_OF_NODES_KEY);
+        configuration.remove(MAX_NODES_KEY);
+        return configuration;
+    }
+
+    /**
+     * Requests of the same node configuration, waiting for their deployment.
+     */
+    private static class PendingAcquisition {
+
+        private final Map<String, ?> configuration;
+
+        private final List<CompletableFuture<Void>> outcomes = new ArrayList<>();
+
+        private int numberOfNodes = 0;
+
+        private Map<String, ?> nodeParameters;
+
+        private long deadline = 0;
+
+        private PendingAcquisition(Map<String, ?> configuration) {
+            this.configuration = configuration;
+        }
+
+        private void add(int numberOfNodes, long startTimeout, Map<String, ?> nodeParameters,
+                CompletableFuture<Void> outcome) {
+            this.numberOfNodes = Math.max(this.numberOfNodes, numberOfNodes);
+            this.nodeParameters = nodeParameters;
+            this.deadline = startTimeout > 0 ? System.currentTimeMillis() + startTimeout : 0;
+            this.outcomes.add(outcome);
+        }
+
+        /**
+         * @return whether the latest request waited longer than its start timeout
+         */
+        private boolean isExpired() {
+            return deadline > 0 && System.currentTimeMillis() > deadline;
+        }
+
+        private void complete() {
+            outcomes.forEach(outcome -> outcome.complete(null));
+        }
+
+        private void completeExceptionally(Throwable error) {
+            outcomes.forEach(outcome -> outcome.completeExceptionally(error));
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+/**
+ * Tracks the number of nodes acquired by an infrastructure, and lets callers wait until
+ * this number reaches a target.
+ *
+ * The waiting callers are woken up as soon as the number of acquired nodes is updated, so a
+ * deployment completes the moment its last node registers. No thread is dedicated to the
+ * waiters: each caller waits on its own thread, until the target is reached or its timeout
+ * elapses.
+ */
+public class NodesReadinessTracker {
+
+    private int acquiredNodes = 0;
+
+    public synchronized int getAcquiredNodes() {
+        return acquiredNodes;
+    }
+
+    /**
+     * Updates the number of acquired nodes and wakes up the waiting callers.
+     */
+    public synchronized void update(int acquiredNodes) {
+        this.acquiredNodes = acquiredNodes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until at least the expected number of nodes are acquired.
+     *
+     * @param expectedNodes number of acquired nodes to wait for
+     * @param timeoutMillis maximum time to wait (in milliseconds)
+     * @return true if the expected number of nodes is reached, false if the timeout elapsed before
+     */
+    public synchronized boolean awaitAcquiredNodes(int expectedNodes, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (acquiredNodes < expectedNodes) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+}
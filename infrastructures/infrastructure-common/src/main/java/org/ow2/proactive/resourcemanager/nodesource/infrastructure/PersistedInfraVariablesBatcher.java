@@ -0,0 +1,144 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+
+/**
+ * Coalesces the updates of the persisted infrastructure variables made by concurrent node
+ * events into a single persistence operation (group commit).
+ *
+ * An update is queued, then its caller either commits all the queued updates at once, or
+ * waits for the commit in progress and finds its update committed by the next one. When many
+ * nodes register or are removed at the same time, the persisted variables are thus written
+ * once per batch of events instead of once per event. As before, a caller returns once its
+ * update is applied and persisted, and gets the exception thrown by its update, if any.
+ *
+ * The updates must not acquire the persisted variables lock on their own, as the commit
+ * acquires it.
+ */
+public class PersistedInfraVariablesBatcher {
+
+    private final Queue<PendingUpdate<?>> pendingUpdates = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    private final AtomicLong nbCommits = new AtomicLong(0);
+
+    private final AtomicLong nbUpdates = new AtomicLong(0);
+
+    /**
+     * Applies the given update to the persisted variables and waits for its persistence.
+     *
+     * @param update the modifications to make to the persisted variables
+     * @param committer runs a batch of updates while holding the persisted variables lock, then
+     *                  persists the variables. It is used if the caller commits the batch.
+     * @return the value returned by the update
+     */
+    public <T> T update(Supplier<T> update, Consumer<Runnable> committer) {
+        PendingUpdate<T> pendingUpdate = new PendingUpdate<>(update);
+        pendingUpdates.add(pendingUpdate);
+        commitLock.lock();
+        try {
+            if (!pendingUpdate.committed) {
+                commitPendingUpdates(committer);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        return pendingUpdate.getResult();
+    }
+
+    /**
+     * @return the number of persistence operations done
+     */
+    public long getNbCommits() {
+        return nbCommits.get();
+    }
+
+    /**
+     * @return the number of updates persisted
+     */
+    public long getNbUpdates() {
+        return nbUpdates.get();
+    }
+
+    private void commitPendingUpdates(Consumer<Runnable> committer) {
+        List<PendingUpdate<?>> batch = new ArrayList<>();
+        PendingUpdate<?> pendingUpdate;
+        while ((pendingUpdate = pendingUpdates.poll()) != null) {
+            batch.add(pendingUpdate);
+        }
+        try {
+            committer.accept(() -> batch.forEach(PendingUpdate::apply));
+        } catch (RuntimeException e) {
+            batch.forEach(update -> update.failure = e);
+        } finally {
+            batch.forEach(update -> update.committed = true);
+            nbCommits.incrementAndGet();
+            nbUpdates.addAndGet(batch.size());
+        }
+    }
+
+    private static class PendingUpdate<T> {
+
+        private final Supplier<T> update;
+
+        private T result;
+
+        private RuntimeException failure;
+
+        private boolean committed = false;
+
+        private PendingUpdate(Supplier<T> update) {
+            this.update = update;
+        }
+
+        private void apply() {
+            try {
+                result = update.get();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        private T getResult() {
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+
+}
@@ -25,10 +25,13 @@
  */
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -38,11 +41,19 @@ import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.StandardHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.ssl.SSLContexts;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
@@ -53,22 +64,45 @@ import org.jboss.resteasy.plugins.interceptors.encoding.AcceptEncodingGZIPFilter
 import org.jboss.resteasy.plugins.interceptors.encoding.GZIPDecodingInterceptor;
 import org.jboss.resteasy.plugins.interceptors.encoding.GZIPEncodingInterceptor;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.ow2.proactive.resourcemanager.nodesource.infrastructure.util.NSProperties;
 import org.ow2.proactive.web.WebProperties;
 
 
 public class RestClient {
 
+    private static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 100;
+
+    private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 60000;
+
+    private static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30000;
+
+    private static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+
     private final ResteasyClient restEasyClient;
 
     private static SSLContext sslContext;
 
     private final String connectorIaasURL;
 
+    private final PoolingHttpClientConnectionManager connectionManager;
+
     public RestClient(String connectorIaasURL) {
+        // a single pool per connector-iaas URL: RestClient instances are shared through
+        // ConnectorIaasClient.generateRestClient, so that all node sources reuse the same
+        // kept-alive (and already TLS-negotiated) connections
+        this.connectionManager = createConnectionManager();
+        long idleConnectionTimeout = NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_HTTP_IDLE_CONNECTION_TIMEOUT,
+                                                                  DEFAULT_IDLE_CONNECTION_TIMEOUT);
         HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
                                                                .useSystemProperties()
+                                                               .setConnectionManager(connectionManager)
+                                                               .setKeepAliveStrategy(createKeepAliveStrategy())
+                                                               .evictExpiredConnections()
+                                                               .evictIdleConnections(idleConnectionTimeout,
+                                                                                     TimeUnit.MILLISECONDS)
                                                                .setRetryHandler(new StandardHttpRequestRetryHandler());
-        setSSLContext(httpClientBuilder);
         ClientHttpEngine engine = new ApacheHttpClient4Engine(httpClientBuilder.build());
 
         ResteasyProviderFactory providerFactory = ResteasyProviderFactory.getInstance();
@@ -77,12 +111,34 @@ public class RestClient {
         this.connectorIaasURL = connectorIaasURL;
     }
 
+    /**
+     * @return the statistics (leased, pending, available and max connections) of the
+     * connection pool used to reach connector-iaas
+     */
+    public PoolStats getConnectionPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
     public String getInfrastructures() {
         ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures");
         Response response = target.request(MediaType.APPLICATION_JSON_TYPE).get();
         return checkAndGetResponse(response);
     }
 
+    /**
+     * Lightweight availability check: HEAD request on the infrastructures resource, so that
+     * the list of infrastructures is not transferred.
+     */
+    public void checkAvailability() {
+        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures");
+        Response response = target.request(MediaType.APPLICATION_JSON_TYPE).head();
+        try {
+            checkResponseIsOK(response);
+        } finally {
+            response.close();
+        }
+    }
+
     public String getInstancesByInfrastructure(String infrastructureId) {
         ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId +
                                                  "/instances");
@@ -90,6 +146,40 @@ public class RestClient {
         return checkAndGetResponse(response);
     }
 
+    /**
+     * Lists the instances of an infrastructure, handing the response body to the given reader
+     * as a stream, instead of loading it into a string.
+     */
+    public <T> T getInstancesByInfrastructure(String infrastructureId, Function<InputStream, T> responseReader) {
+        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId +
+                                                 "/instances");
+        Response response = target.request(MediaType.APPLICATION_JSON_TYPE).get();
+        try {
+            return responseReader.apply(checkResponseIsOK(response).readEntity(InputStream.class));
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Lists the instances of an infrastructure having the given tag, handing the response
+     * body to the given reader as a stream. Connector-iaas versions which do not support
+     * the filter return all the instances, so the reader must filter them as well.
+     */
+    public <T> T getInstancesByInfrastructureAndTag(String infrastructureId, String instanceTag,
+            Function<InputStream, T> responseReader) {
+        ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures/" + infrastructureId +
+                                                 "/instances");
+        Response response = target.queryParam("instanceTag", instanceTag)
+                                  .request(MediaType.APPLICATION_JSON_TYPE)
+                                  .get();
+        try {
+            return responseReader.apply(checkResponseIsOK(response).readEntity(InputStream.class));
+        } finally {
+            response.close();
+        }
+    }
+
     public String postInfrastructures(String infrastructureJson) {
         ResteasyWebTarget target = initWebTarget(connectorIaasURL + "/infrastructures");
         Response response = target.request().post(Entity.entity(infrastructureJson, MediaType.APPLICATION_JSON_TYPE));
@@ -164,9 +254,10 @@ public class RestClient {
 
     private Response checkResponseIsOK(Response response) {
         if (response.getStatus() != HttpURLConnection.HTTP_OK) {
-            throw new RuntimeException(String.format("Failed: HTTP error code %s with error message: %s. ",
-                                                     response.getStatus(),
-                                                     response.readEntity(String.class)));
+            throw new ConnectorIaasHttpException(response.getStatus(),
+                                                 String.format("Failed: HTTP error code %s with error message: %s. ",
+                                                               response.getStatus(),
+                                                               response.readEntity(String.class)));
         }
         return response;
     }
@@ -175,26 +266,60 @@ public class RestClient {
         return restEasyClient.target(url);
     }
 
-    private void setSSLContext(HttpClientBuilder httpClientBuilder) {
-        if (WebProperties.WEB_HTTPS_ALLOW_ANY_CERTIFICATE.getValueAsBoolean()) {
-            TrustStrategy acceptingTrustStrategy = (cert, authType) -> true;
-            try {
-                sslContext = SSLContexts.custom().loadTrustMaterial(null, acceptingTrustStrategy).build();
-            } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
-                throw new RuntimeException(e.getMessage(), e);
-            }
-        } else {
-            sslContext = SSLContexts.createSystemDefault();
-        }
+    private PoolingHttpClientConnectionManager createConnectionManager() {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory> create()
+                                                                                 .register("http",
+                                                                                           PlainConnectionSocketFactory.getSocketFactory())
+                                                                                 .register("https",
+                                                                                           createSSLConnectionSocketFactory())
+                                                                                 .build();
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        manager.setMaxTotal(NSProperties.getIntProperty(NSProperties.CONNECTOR_IAAS_HTTP_MAX_CONNECTIONS_TOTAL,
+                                                        DEFAULT_MAX_CONNECTIONS_TOTAL));
+        manager.setDefaultMaxPerRoute(NSProperties.getIntProperty(NSProperties.CONNECTOR_IAAS_HTTP_MAX_CONNECTIONS_PER_ROUTE,
+                                                                  DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        manager.setValidateAfterInactivity(NSProperties.getIntProperty(NSProperties.CONNECTOR_IAAS_HTTP_VALIDATE_AFTER_INACTIVITY,
+                                                                       DEFAULT_VALIDATE_AFTER_INACTIVITY));
+        return manager;
+    }
+
+    private ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+        long defaultKeepAlive = NSProperties.getLongProperty(NSProperties.CONNECTOR_IAAS_HTTP_KEEP_ALIVE_TIMEOUT,
+                                                             DEFAULT_KEEP_ALIVE_TIMEOUT);
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? keepAlive : defaultKeepAlive;
+        };
+    }
+
+    private SSLConnectionSocketFactory createSSLConnectionSocketFactory() {
         HostnameVerifier hostnameVerifier;
         if (WebProperties.WEB_HTTPS_ALLOW_ANY_HOSTNAME.getValueAsBoolean()) {
             hostnameVerifier = NoopHostnameVerifier.INSTANCE;
         } else {
             hostnameVerifier = SSLConnectionSocketFactory.getDefaultHostnameVerifier();
         }
-        SSLConnectionSocketFactory sslConnectionSocketFactory = new SSLConnectionSocketFactory(sslContext,
-                                                                                               hostnameVerifier);
-        httpClientBuilder.setSSLSocketFactory(sslConnectionSocketFactory);
+        return new SSLConnectionSocketFactory(getSSLContext(), hostnameVerifier);
+    }
+
+    /**
+     * The SSL context is created once and shared by all clients, so that its session cache
+     * allows TLS sessions to be resumed instead of performing full handshakes.
+     */
+    private static synchronized SSLContext getSSLContext() {
+        if (sslContext == null) {
+            if (WebProperties.WEB_HTTPS_ALLOW_ANY_CERTIFICATE.getValueAsBoolean()) {
+                TrustStrategy acceptingTrustStrategy = (cert, authType) -> true;
+                try {
+                    sslContext = SSLContexts.custom().loadTrustMaterial(null, acceptingTrustStrategy).build();
+                } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            } else {
+                sslContext = SSLContexts.createSystemDefault();
+            }
+        }
+        return sslContext;
     }
 
     private String checkAndGetResponse(Response response) {
@@ -0,0 +1,154 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.ws.rs.ProcessingException;
+
+import org.json.JSONException;
+
+
+/**
+ * Retry policy of the connector-iaas requests: exponential backoff with decorrelated
+ * jitter, bounded by a maximum number of attempts and a maximum elapsed time.
+ *
+ * The jitter spreads the retries of the many deploying tasks that fail at the same time
+ * (typically when connector-iaas restarts), instead of having them retry in lockstep.
+ */
+public class RetryPolicy {
+
+    /**
+     * Policy of the requests that must be sent only once.
+     */
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 0, 0);
+
+    private final int maxAttempts;
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    private final long maxElapsedTime;
+
+    /**
+     * @param maxAttempts maximum number of requests sent, including the first one
+     * @param initialDelay minimum delay between two attempts (in milliseconds)
+     * @param maxDelay maximum delay between two attempts (in milliseconds)
+     * @param maxElapsedTime time after which no new attempt is made (in milliseconds)
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, long maxElapsedTime) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+        this.maxElapsedTime = maxElapsedTime;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Tells whether a failed request is worth retrying. I/O and transport errors (connection
+     * refused or reset, timeouts...), server errors and throttling are transient, whereas the
+     * other HTTP errors (bad request, not found, ...), malformed responses and programming
+     * errors will not be fixed by sending the request again. A request rejected by an open
+     * circuit breaker can be sent again once the endpoint is back.
+     */
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof CircuitBreakerOpenException) {
+            return true;
+        }
+        if (error instanceof ConnectorIaasHttpException) {
+            int statusCode = ((ConnectorIaasHttpException) error).getStatusCode();
+            return statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || statusCode == 429 ||
+                   statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        if (error instanceof JSONException) {
+            // malformed response, even when caused by the parsing of a truncated stream
+            return false;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof ProcessingException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a failed request has been answered by the endpoint, which is then
+     * available even though the request failed: HTTP errors and malformed responses.
+     */
+    public static boolean isAnsweredByEndpoint(Throwable error) {
+        return error instanceof ConnectorIaasHttpException || error instanceof JSONException;
+    }
+
+    public Execution newExecution() {
+        return new Execution();
+    }
+
+    /**
+     * Retry state of one request. It is not thread safe: it must be used by one
+     * caller at a time.
+     */
+    public class Execution {
+
+        private final long deadline = System.currentTimeMillis() + maxElapsedTime;
+
+        private int attempts = 0;
+
+        private long previousDelay = initialDelay;
+
+        public void attemptSent() {
+            attempts++;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public boolean canRetry() {
+            return attempts < maxAttempts && System.currentTimeMillis() < deadline;
+        }
+
+        /**
+         * @return the delay to wait before the next attempt: a random value between the
+         * initial delay and three times the previous delay, capped by the maximum delay
+         * and by the remaining time
+         */
+        public long nextDelay() {
+            long upperBound = Math.min(maxDelay, previousDelay * 3);
+            long delay = upperBound > initialDelay ? ThreadLocalRandom.current().nextLong(initialDelay, upperBound + 1)
+                                                   : initialDelay;
+            previousDelay = delay;
+            return Math.max(0, Math.min(delay, deadline - System.currentTimeMillis()));
+        }
+    }
+
+}
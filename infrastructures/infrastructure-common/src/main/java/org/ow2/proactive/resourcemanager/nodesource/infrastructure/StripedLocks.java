@@ -0,0 +1,78 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+
+/**
+ * A fixed set of locks, each key being guarded by the lock of its hash. It lets the
+ * updates of different instances run concurrently, while the updates of a same instance
+ * are serialized, without creating a lock per instance.
+ */
+public class StripedLocks {
+
+    private final ReentrantLock[] locks;
+
+    /**
+     * @param nbStripes number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int nbStripes) {
+        int size = Integer.highestOneBit(Math.max(1, nbStripes - 1)) << 1;
+        locks = new ReentrantLock[nbStripes <= 1 ? 1 : size];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public int getNbStripes() {
+        return locks.length;
+    }
+
+    /**
+     * Runs the given action holding the lock of the given key.
+     *
+     * @return the value returned by the action
+     */
+    public <T> T withLock(String key, Supplier<T> action) {
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ReentrantLock getLock(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, as the number of stripes is a power of two
+        hash ^= hash >>> 16;
+        return locks[hash & (locks.length - 1)];
+    }
+
+}
@@ -36,10 +36,17 @@ import org.apache.commons.configuration2.convert.DefaultListDelimiterHandler;
 import org.apache.commons.configuration2.convert.DisabledListDelimiterHandler;
 import org.apache.commons.configuration2.convert.ListDelimiterHandler;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.log4j.Logger;
 
 
 public class NSProperties {
 
+    private static final Logger logger = Logger.getLogger(NSProperties.class);
+
+    private static Configuration sharedConfig;
+
+    private static boolean sharedConfigLoaded = false;
+
     private NSProperties() {
     }
 
@@ -57,6 +64,64 @@ public class NSProperties {
 
     public static final String DEFAULT_JYTHON_PATH = "ns.default.jython.path";
 
+    public static final String CONNECTOR_IAAS_HTTP_MAX_CONNECTIONS_TOTAL = "ns.connector.iaas.http.max.connections.total";
+
+    public static final String CONNECTOR_IAAS_HTTP_MAX_CONNECTIONS_PER_ROUTE = "ns.connector.iaas.http.max.connections.per.route";
+
+    public static final String CONNECTOR_IAAS_HTTP_IDLE_CONNECTION_TIMEOUT = "ns.connector.iaas.http.idle.connection.timeout";
+
+    public static final String CONNECTOR_IAAS_HTTP_KEEP_ALIVE_TIMEOUT = "ns.connector.iaas.http.keep.alive.timeout";
+
+    public static final String CONNECTOR_IAAS_HTTP_VALIDATE_AFTER_INACTIVITY = "ns.connector.iaas.http.validate.after.inactivity";
+
+    public static final String CONNECTOR_IAAS_RETRY_INITIAL_DELAY = "ns.connector.iaas.retry.initial.delay";
+
+    public static final String CONNECTOR_IAAS_RETRY_MAX_DELAY = "ns.connector.iaas.retry.max.delay";
+
+    public static final String CONNECTOR_IAAS_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "ns.connector.iaas.circuit.breaker.failure.threshold";
+
+    public static final String CONNECTOR_IAAS_CIRCUIT_BREAKER_OPEN_DURATION = "ns.connector.iaas.circuit.breaker.open.duration";
+
+    public static final String CONNECTOR_IAAS_HEALTH_TTL = "ns.connector.iaas.health.ttl";
+
+    public static final String CONNECTOR_IAAS_INSTANCES_CACHE_TTL = "ns.connector.iaas.instances.cache.ttl";
+
+    public static final String DEPLOYMENT_MAX_PARALLEL_INSTANCES = "ns.deployment.max.parallel.instances";
+
+    public static final String INFRASTRUCTURE_EXECUTOR_THREADS = "ns.infrastructure.executor.threads";
+
+    public static final String INFRASTRUCTURE_EXECUTOR_QUEUE_CAPACITY = "ns.infrastructure.executor.queue.capacity";
+
+    public static final String INSTANCE_TERMINATION_MAX_ATTEMPTS = "ns.instance.termination.max.attempts";
+
+    public static final String INSTANCE_TERMINATION_RETRY_INITIAL_DELAY = "ns.instance.termination.retry.initial.delay";
+
+    public static final String INSTANCE_TERMINATION_RETRY_MAX_DELAY = "ns.instance.termination.retry.max.delay";
+
+    public static final String INSTANCE_RECONCILIATION_PERIOD = "ns.instance.reconciliation.period";
+
+    public static final String INSTANCE_RECONCILIATION_MIN_INTERVAL = "ns.instance.reconciliation.min.interval";
+
+    public static final String INSTANCE_RECONCILIATION_MAX_TERMINATIONS = "ns.instance.reconciliation.max.terminations";
+
+    public static final String INSTANCE_RECONCILIATION_ORPHAN_MIN_AGE = "ns.instance.reconciliation.orphan.min.age";
+
+    public static final String INSTANCE_DEPLOYMENT_TIMEOUT = "ns.instance.deployment.timeout";
+
+    public static final String INSTANCE_RECOVERY_MAX_ATTEMPTS = "ns.instance.recovery.max.attempts";
+
+    public static final String INSTANCE_RECOVERY_RETRY_INITIAL_DELAY = "ns.instance.recovery.retry.initial.delay";
+
+    public static final String INSTANCE_RECOVERY_RETRY_MAX_DELAY = "ns.instance.recovery.retry.max.delay";
+
+    public static final String ACQUISITION_MAX_PARALLEL_DEPLOYMENTS = "ns.acquisition.max.parallel.deployments";
+
+    public static final String ACQUISITION_MAX_PENDING_REQUESTS = "ns.acquisition.max.pending.requests";
+
+    public static final String AZURE_RATE_CARD_CACHE_DIR = "ns.azure.rate.card.cache.dir";
+
+    public static final String AZURE_RATE_CARD_CACHE_TTL = "ns.azure.rate.card.cache.ttl";
+
     /**
      * loads NodeSource configuration.
      *
@@ -83,4 +148,49 @@ public class NSProperties {
 
         return config;
     }
+
+    /**
+     * Reads an optional integer property of the NodeSource configuration.
+     *
+     * @return the value of the property, or the given default value if the property or the
+     * configuration is not available
+     */
+    public static int getIntProperty(String key, int defaultValue) {
+        Configuration config = getSharedConfig();
+        return config != null ? config.getInt(key, defaultValue) : defaultValue;
+    }
+
+    /**
+     * Reads an optional long property of the NodeSource configuration.
+     *
+     * @return the value of the property, or the given default value if the property or the
+     * configuration is not available
+     */
+    public static long getLongProperty(String key, long defaultValue) {
+        Configuration config = getSharedConfig();
+        return config != null ? config.getLong(key, defaultValue) : defaultValue;
+    }
+
+    /**
+     * Reads an optional string property of the NodeSource configuration.
+     *
+     * @return the value of the property, or the given default value if the property or the
+     * configuration is not available
+     */
+    public static String getStringProperty(String key, String defaultValue) {
+        Configuration config = getSharedConfig();
+        return config != null ? config.getString(key, defaultValue) : defaultValue;
+    }
+
+    private static synchronized Configuration getSharedConfig() {
+        if (!sharedConfigLoaded) {
+            sharedConfigLoaded = true;
+            try {
+                sharedConfig = loadConfig();
+            } catch (ConfigurationException | RuntimeException e) {
+                logger.warn("Exception when loading NodeSource properties, default values will be used", e);
+            }
+        }
+        return sharedConfig;
+    }
 }
@@ -0,0 +1,294 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.proactive.core.node.Node;
+import org.objectweb.proactive.core.node.NodeInformation;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+
+public class AbstractAddonInfrastructureTest {
+
+    private TestInfrastructure infrastructure;
+
+    @Before
+    public void init() {
+        infrastructure = new TestInfrastructure();
+        infrastructure.initializePersistedInfraVariables();
+    }
+
+    @After
+    public void tearDown() {
+        infrastructure.shutDown();
+    }
+
+    @Test
+    public void testDeployingInstancesAreKnownUntilTheirNodesAreRemoved() {
+
+        infrastructure.registerDeployingInstances(ImmutableSet.of("instance1", "instance2"));
+
+        assertThat(infrastructure.getKnownInstances(), is(ImmutableSet.of("instance1", "instance2")));
+
+        infrastructure.addNewNodeForInstance("instance1", "node1");
+        infrastructure.unregisterNodeAndRemoveInstanceIfNeeded("instance1", "node1", "test", false);
+
+        assertThat(infrastructure.getKnownInstances(), is(ImmutableSet.of("instance2")));
+
+    }
+
+    @Test
+    public void testRemovedInstancesAreNoLongerDeploying() {
+
+        infrastructure.registerDeployingInstances(ImmutableSet.of("instance1", "instance2"));
+
+        infrastructure.removeInstancesFromState(ImmutableSet.of("instance2"));
+
+        assertThat(infrastructure.getKnownInstances(), is(ImmutableSet.of("instance1")));
+
+    }
+
+    @Test
+    public void testInstanceOfNodeFoundUntilNodeRemoved() {
+
+        infrastructure.addNewNodeForInstance("instance1", "node1");
+        infrastructure.addNewNodeForInstance("instance1", "node2");
+        infrastructure.addNewNodeForInstance("instance2", "node3");
+
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node2"), is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node3"), is("instance2"));
+
+        infrastructure.unregisterNodeAndRemoveInstanceIfNeeded("instance1", "node1", "test", false);
+        infrastructure.removeInstancesFromState(ImmutableSet.of("instance2"));
+
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), is(nullValue()));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node2"), is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node3"), is(nullValue()));
+
+    }
+
+    @Test
+    public void testInstanceOfDownNodeFoundAgainAfterReconnection() throws Exception {
+
+        infrastructure.existingInstances = ImmutableSet.of("instance1");
+        infrastructure.addNewNodeForInstance("instance1", "node1");
+        infrastructure.addNewNodeForInstance("instance1", "node2");
+
+        // the node object cannot be found anymore when the resource manager is recovered
+        infrastructure.notifyDownNode("node1", "url1", null);
+
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), is(nullValue()));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node2"), is("instance1"));
+
+        infrastructure.onDownNodeReconnection(mockNode("node1", "instance1"));
+
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), is("instance1"));
+        assertThat(infrastructure.getNodesPerInstancesMap().get("instance1"), is(ImmutableSet.of("node1", "node2")));
+
+    }
+
+    @Test
+    public void testIndexBuiltFromRestoredVariables() {
+
+        // the persisted variables restored by the resource manager hold mutable collections
+        HashMap<String, Set<String>> restoredNodesPerInstance = new HashMap<>();
+        restoredNodesPerInstance.put("instance1", new HashSet<>(ImmutableSet.of("node1", "node2")));
+        infrastructure.persistedInfraVariables.put(AbstractAddonInfrastructure.NODES_PER_INSTANCES_KEY,
+                                                   restoredNodesPerInstance);
+
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node2"), is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node3"), is(nullValue()));
+
+    }
+
+    @Test
+    public void testNodeNamesOfInstanceGrowAndShrink() {
+
+        Set<String> nodeNames = AbstractAddonInfrastructure.withNodeName(null, "node1");
+        assertThat(nodeNames, is(ImmutableSet.of("node1")));
+        assertThat(AbstractAddonInfrastructure.withNodeName(nodeNames, "node1"), sameInstance(nodeNames));
+
+        nodeNames = AbstractAddonInfrastructure.withNodeName(nodeNames, "node2");
+        nodeNames = AbstractAddonInfrastructure.withNodeName(nodeNames, "node3");
+        assertThat(nodeNames, is(ImmutableSet.of("node1", "node2", "node3")));
+        assertThat(AbstractAddonInfrastructure.withoutNodeName(nodeNames, "node4"), sameInstance(nodeNames));
+
+        nodeNames = AbstractAddonInfrastructure.withoutNodeName(nodeNames, "node2");
+        assertThat(nodeNames, is(ImmutableSet.of("node1", "node3")));
+        nodeNames = AbstractAddonInfrastructure.withoutNodeName(nodeNames, "node1");
+        assertThat(nodeNames, is(ImmutableSet.of("node3")));
+        nodeNames = AbstractAddonInfrastructure.withoutNodeName(nodeNames, "node3");
+        assertThat(nodeNames.isEmpty(), is(true));
+
+    }
+
+    @Test
+    public void testInstanceRemovedWithItsLastNode() {
+
+        infrastructure.addNewNodeForInstance("instance1", "node1");
+        assertThat(infrastructure.getNodesPerInstancesMap().get("instance1"), is(ImmutableSet.of("node1")));
+
+        infrastructure.addNewNodeForInstance("instance1", "node2");
+        infrastructure.addNewNodeForInstance("instance1", "node3");
+        assertThat(infrastructure.getNodesPerInstancesMap().get("instance1"),
+                   is(ImmutableSet.of("node1", "node2", "node3")));
+        assertThat(infrastructure.getNumberOfAcquiredNodesWithLock(), is(3));
+
+        infrastructure.unregisterNodeAndRemoveInstanceIfNeeded("instance1", "node2", "test", false);
+        assertThat(infrastructure.getNodesPerInstancesMap().get("instance1"), is(ImmutableSet.of("node1", "node3")));
+        infrastructure.unregisterNodeAndRemoveInstanceIfNeeded("instance1", "node1", "test", false);
+        assertThat(infrastructure.getNodesPerInstancesMap().get("instance1"), is(ImmutableSet.of("node3")));
+        infrastructure.unregisterNodeAndRemoveInstanceIfNeeded("instance1", "node3", "test", false);
+        assertThat(infrastructure.getNodesPerInstancesMap().containsKey("instance1"), is(false));
+
+    }
+
+    @Test
+    public void testInstanceIdsHeldOnce() {
+
+        infrastructure.addNewNodeForInstance(new String("instance1"), "node1");
+        infrastructure.addNewNodeForInstance(new String("instance1"), "node2");
+
+        String instanceId = infrastructure.getNodesPerInstancesMap().keySet().iterator().next();
+        assertThat(instanceId, is("instance1"));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node1"), sameInstance(instanceId));
+        assertThat(infrastructure.tryToFindInstanceIdOfNode("node2"), sameInstance(instanceId));
+
+    }
+
+    @Test
+    public void testInstancesOfNodeSourcesSharingIdPrefixAreNotOrphans() {
+
+        Map<String, Set<String>> cloudInstances = ImmutableMap.of("aws",
+                                                                  ImmutableSet.of("i-1"),
+                                                                  "aws2",
+                                                                  ImmutableSet.of("i-2"),
+                                                                  "aws-prod",
+                                                                  ImmutableSet.of("i-3"));
+        infrastructure.infrastructureId = "aws";
+        infrastructure.cloudInstances = cloudInstances;
+        infrastructure.addNewNodeForInstance("i-1", "node1");
+        TestInfrastructure otherInfrastructure = new TestInfrastructure();
+        otherInfrastructure.initializePersistedInfraVariables();
+        otherInfrastructure.infrastructureId = "aws2";
+        otherInfrastructure.cloudInstances = cloudInstances;
+
+        try {
+            // the instances of "aws2" and "aws-prod" are neither known nor orphans of "aws"
+            assertThat(infrastructure.getInstanceReconciler().reconcile().getOrphanInstances().isEmpty(), is(true));
+            assertThat(infrastructure.getInstanceReconciler().reconcile().getOrphanInstances().isEmpty(), is(true));
+            assertThat(infrastructure.getInstanceReconciler().getLastDrift().isEmpty(), is(true));
+            assertThat(infrastructure.getInstanceReconciler().getNbTerminatedOrphans(), is(0L));
+
+            otherInfrastructure.getInstanceReconciler().reconcile();
+            assertThat(otherInfrastructure.getInstanceReconciler().getLastDrift().getOrphanInstances(),
+                       is(ImmutableSet.of("i-2")));
+        } finally {
+            otherInfrastructure.shutDown();
+        }
+
+    }
+
+    private static Node mockNode(String nodeName, String instanceId) throws Exception {
+        NodeInformation nodeInformation = mock(NodeInformation.class);
+        when(nodeInformation.getName()).thenReturn(nodeName);
+        Node node = mock(Node.class);
+        when(node.getNodeInformation()).thenReturn(nodeInformation);
+        when(node.getProperty("instanceId")).thenReturn(instanceId);
+        return node;
+    }
+
+    private static class TestInfrastructure extends AbstractAddonInfrastructure {
+
+        private Set<String> existingInstances = ImmutableSet.of();
+
+        private String infrastructureId = "test";
+
+        // instances listed by connector-iaas, indexed by tag
+        private Map<String, Set<String>> cloudInstances = ImmutableMap.of();
+
+        @Override
+        public void configure(Object... parameters) {
+        }
+
+        @Override
+        public void acquireNode() {
+        }
+
+        @Override
+        public void acquireAllNodes() {
+        }
+
+        @Override
+        public void removeNode(Node node) {
+        }
+
+        @Override
+        public String getDescription() {
+            return "Test infrastructure";
+        }
+
+        @Override
+        protected String getInstanceIdNodeProperty() {
+            return "instanceId";
+        }
+
+        @Override
+        protected String getInfrastructureId() {
+            return infrastructureId;
+        }
+
+        @Override
+        protected Map<String, Set<String>> listInstanceIdsByTag() {
+            return new HashMap<>(cloudInstances);
+        }
+
+        @Override
+        protected Set<String> listExistingInstances() {
+            return existingInstances;
+        }
+
+    }
+
+}
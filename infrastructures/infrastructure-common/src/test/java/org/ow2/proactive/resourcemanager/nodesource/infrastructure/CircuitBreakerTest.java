@@ -0,0 +1,119 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CircuitBreakerTest {
+
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void init() {
+        circuitBreaker = new CircuitBreaker("test", 2, 100);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(circuitBreaker.tryAcquirePermission(), is(false));
+
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() throws InterruptedException {
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        Thread.sleep(150);
+
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(circuitBreaker.tryAcquirePermission(), is(false));
+
+        circuitBreaker.recordSuccess();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain() throws InterruptedException {
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        Thread.sleep(150);
+
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+        circuitBreaker.recordFailure();
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(circuitBreaker.tryAcquirePermission(), is(false));
+
+    }
+
+    @Test
+    public void testReleasedProbeLeavesStateUnchanged() throws InterruptedException {
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+
+        Thread.sleep(150);
+
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+        circuitBreaker.releasePermission();
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        // another request can probe the endpoint
+        assertThat(circuitBreaker.tryAcquirePermission(), is(true));
+
+    }
+
+}
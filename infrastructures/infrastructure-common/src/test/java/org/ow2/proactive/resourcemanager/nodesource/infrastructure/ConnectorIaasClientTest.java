@@ -27,10 +27,24 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
+import javax.ws.rs.ProcessingException;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
@@ -39,6 +53,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 
 
@@ -59,6 +74,35 @@ public class ConnectorIaasClientTest {
 
     }
 
+    @Test
+    public void testWaitForConnectorIaasToBeUPUsesCachedHealthState() {
+
+        connectorIaasClient.waitForConnectorIaasToBeUP();
+        connectorIaasClient.waitForConnectorIaasToBeUP();
+        new ConnectorIaasClient(restClient).waitForConnectorIaasToBeUP();
+
+        assertThat(connectorIaasClient.isConnectorIaasHealthy(), is(true));
+
+        Mockito.verify(restClient, times(1)).checkAvailability();
+        Mockito.verify(restClient, never()).getInfrastructures();
+
+    }
+
+    @Test
+    public void testHealthMonitorReleasedByLastClosedClient() {
+
+        ConnectorIaasClient otherClient = new ConnectorIaasClient(restClient);
+        connectorIaasClient.waitForConnectorIaasToBeUP();
+
+        connectorIaasClient.close();
+        assertThat(otherClient.isConnectorIaasHealthy(), is(true));
+
+        otherClient.close();
+        // the clients created afterwards use a new monitor
+        assertThat(new ConnectorIaasClient(restClient).isConnectorIaasHealthy(), is(false));
+
+    }
+
     @Test
     public void testCreateInfrastructure() {
 
@@ -110,6 +154,68 @@ public class ConnectorIaasClientTest {
 
     }
 
+    @Test
+    public void testGetInstanceIdsByTag() {
+
+        String instancesJson = "[{\"id\":\"instance123\",\"tag\":\"instanceTag123\",\"hardware\":{\"id\":\"small\"}}," +
+                               "{\"tag\":\"instanceTag123\",\"id\":\"instance456\",\"network\":{\"publicAddresses\":[\"1.2.3.4\"]}}," +
+                               "{\"id\":\"instance789\",\"tag\":\"instanceTag789\"}]";
+
+        Mockito.when(restClient.getInstancesByInfrastructure(eq("infra123"), any(Function.class)))
+               .thenAnswer(invocation -> ((Function<InputStream, ?>) invocation.getArguments()[1]).apply(new ByteArrayInputStream(instancesJson.getBytes(StandardCharsets.UTF_8))));
+
+        Map<String, Set<String>> instanceIdsByTag = connectorIaasClient.getInstanceIdsByTag("infra123");
+
+        assertThat(instanceIdsByTag.size(), is(2));
+        assertThat(instanceIdsByTag.get("instanceTag123"), is(Sets.newHashSet("instance123", "instance456")));
+        assertThat(instanceIdsByTag.get("instanceTag789"), is(Sets.newHashSet("instance789")));
+
+    }
+
+    @Test
+    public void testGetInstanceIdsByTagUsesCachedListing() {
+
+        String instancesJson = "[{\"id\":\"instance123\",\"tag\":\"instanceTag123\"}]";
+
+        Mockito.when(restClient.getInstancesByInfrastructure(eq("infra123"), any(Function.class)))
+               .thenAnswer(invocation -> ((Function<InputStream, ?>) invocation.getArguments()[1]).apply(new ByteArrayInputStream(instancesJson.getBytes(StandardCharsets.UTF_8))));
+        Mockito.when(restClient.postInstances("infra123", "{id=\"456\",tag=\"instanceTag456\"}"))
+               .thenReturn("[{'id' : 'instance456'}]");
+
+        assertThat(connectorIaasClient.getInstanceIdsByTag("infra123", "instanceTag123"),
+                   is(ImmutableMap.of("instanceTag123", Sets.newHashSet("instance123"))));
+        assertThat(connectorIaasClient.getInstanceIdsByTag("infra123", "instanceTag456").isEmpty(), is(true));
+
+        connectorIaasClient.createInstancesIfNotExist("infra123",
+                                                      "instanceTag456",
+                                                      "{id=\"456\",tag=\"instanceTag456\"}",
+                                                      connectorIaasClient.getInstanceIdsByTag("infra123",
+                                                                                              "instanceTag456"));
+        connectorIaasClient.terminateInstance("infra123", "instance123");
+
+        assertThat(connectorIaasClient.getInstanceIdsByTag("infra123", "instanceTag456"),
+                   is(ImmutableMap.of("instanceTag456", Sets.newHashSet("instance456"))));
+        assertThat(connectorIaasClient.getInstanceIdsByTag("infra123", "instanceTag123").isEmpty(), is(true));
+
+        Mockito.verify(restClient, times(1)).getInstancesByInfrastructure(eq("infra123"), any(Function.class));
+
+    }
+
+    @Test
+    public void testCreateInstancesReusesExistingInstances() {
+
+        Set<String> instances = connectorIaasClient.createInstancesIfNotExist("infra123",
+                                                                              "instanceTag123",
+                                                                              "{id=\"123\",tag=\"instanceTag123\"}",
+                                                                              ImmutableMap.of("instanceTag123",
+                                                                                              Sets.newHashSet("instance123")));
+
+        assertThat(instances, is(Sets.newHashSet("instance123")));
+
+        Mockito.verify(restClient, never()).postInstances(any(String.class), any(String.class));
+
+    }
+
     @Test
     public void testTerminateInstance() {
 
@@ -146,4 +252,107 @@ public class ConnectorIaasClientTest {
 
     }
 
+    @Test
+    public void testRunScriptOnInstanceRetriedOnServerError() {
+
+        Mockito.when(restClient.postScript("infra123", "instanceId", "123456", "somescriptjason"))
+               .thenThrow(new ConnectorIaasHttpException(503, "unavailable"))
+               .thenReturn("{'output' : 'done'}");
+
+        String output = connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason");
+
+        assertThat(output, is("{'output' : 'done'}"));
+
+        Mockito.verify(restClient, times(2)).postScript("infra123", "instanceId", "123456", "somescriptjason");
+
+    }
+
+    @Test(expected = ConnectorIaasHttpException.class)
+    public void testRunScriptOnInstanceNotRetriedOnClientError() {
+
+        Mockito.when(restClient.postScript("infra123", "instanceId", "123456", "somescriptjason"))
+               .thenThrow(new ConnectorIaasHttpException(404, "not found"));
+
+        try {
+            connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason");
+        } finally {
+            Mockito.verify(restClient, times(1)).postScript("infra123", "instanceId", "123456", "somescriptjason");
+            assertThat(connectorIaasClient.getCircuitBreakerState(), is(CircuitBreaker.State.CLOSED));
+        }
+
+    }
+
+    @Test
+    public void testRunScriptOnInstanceRetriedOnTransportError() {
+
+        Mockito.when(restClient.postScript("infra123", "instanceId", "123456", "somescriptjason"))
+               .thenThrow(new ProcessingException(new ConnectException("Connection refused")))
+               .thenReturn("{'output' : 'done'}");
+
+        String output = connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason");
+
+        assertThat(output, is("{'output' : 'done'}"));
+
+        Mockito.verify(restClient, times(2)).postScript("infra123", "instanceId", "123456", "somescriptjason");
+
+    }
+
+    @Test
+    public void testProgrammingErrorsNotRetriedNorCountedAsEndpointFailures() {
+
+        Mockito.when(restClient.postScript("infra123", "instanceId", "123456", "somescriptjason"))
+               .thenThrow(new IllegalArgumentException("bad script"));
+
+        for (int attempt = 0; attempt < 10; attempt++) {
+            try {
+                connectorIaasClient.runScriptOnInstance("infra123", "123456", "somescriptjason");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), is("bad script"));
+            }
+        }
+
+        Mockito.verify(restClient, times(10)).postScript("infra123", "instanceId", "123456", "somescriptjason");
+        assertThat(connectorIaasClient.getCircuitBreakerState(), is(CircuitBreaker.State.CLOSED));
+
+    }
+
+    @Test
+    public void testServerErrorsAnsweredByConnectorIaasNotCountedAsEndpointFailures() {
+
+        Mockito.when(restClient.getInstancesByInfrastructure("infra123"))
+               .thenThrow(new ConnectorIaasHttpException(500, "internal error"));
+
+        for (int attempt = 0; attempt < 10; attempt++) {
+            try {
+                connectorIaasClient.getAllJsonInstancesByInfrastructureId("infra123");
+            } catch (ConnectorIaasHttpException e) {
+                assertThat(e.getStatusCode(), is(500));
+            }
+        }
+
+        Mockito.verify(restClient, times(10)).getInstancesByInfrastructure("infra123");
+        assertThat(connectorIaasClient.getCircuitBreakerState(), is(CircuitBreaker.State.CLOSED));
+
+    }
+
+    @Test
+    public void testTruncatedInstancesListingNotRetried() {
+
+        String truncatedJson = "[{\"id\":\"instance123\",\"tag\":\"instanceTag123\"},{\"id\":\"inst";
+
+        Mockito.when(restClient.getInstancesByInfrastructure(eq("infra123"), any(Function.class)))
+               .thenAnswer(invocation -> ((Function<InputStream, ?>) invocation.getArguments()[1]).apply(new ByteArrayInputStream(truncatedJson.getBytes(StandardCharsets.UTF_8))));
+
+        try {
+            connectorIaasClient.getInstanceIdsByTag("infra123");
+            fail("A truncated listing must not be parsed");
+        } catch (JSONException e) {
+            assertThat(RetryPolicy.isRetryable(e), is(false));
+        }
+
+        Mockito.verify(restClient, times(1)).getInstancesByInfrastructure(eq("infra123"), any(Function.class));
+        assertThat(connectorIaasClient.getCircuitBreakerState(), is(CircuitBreaker.State.CLOSED));
+
+    }
+
 }
@@ -27,16 +27,16 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Matchers.anySet;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -47,6 +47,7 @@ import org.objectweb.proactive.core.runtime.ProActiveRuntime;
 import org.ow2.proactive.resourcemanager.nodesource.NodeSource;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 
@@ -131,11 +132,11 @@ public class ConnectorIaasControllerTest {
         when(connectorIaasClient.createInstancesIfNotExist(anyString(),
                                                            anyString(),
                                                            anyString(),
-                                                           anySet())).thenReturn(instanceIds);
+                                                           anyMap())).thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet();
+        Map<String, Set<String>> existingInstances = Maps.newHashMap();
 
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name")).thenReturn(existingInstances);
+        when(connectorIaasClient.getInstanceIdsByTag("node_source_name", "node_source_name")).thenReturn(existingInstances);
 
         Set<String> instancesIds = connectorIaasController.createInstancesWithOptions("node_source_name",
                                                                                       "node_source_name",
@@ -179,11 +180,11 @@ public class ConnectorIaasControllerTest {
         when(connectorIaasClient.createInstancesIfNotExist(anyString(),
                                                            anyString(),
                                                            anyString(),
-                                                           anySet())).thenReturn(instanceIds);
+                                                           anyMap())).thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet();
+        Map<String, Set<String>> existingInstances = Maps.newHashMap();
 
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name")).thenReturn(existingInstances);
+        when(connectorIaasClient.getInstanceIdsByTag("node_source_name", "node_source_name")).thenReturn(existingInstances);
 
         Set<String> instancesIds = connectorIaasController.createOpenstackInstance("node_source_name",
                                                                                    "node_source_name",
@@ -224,11 +225,12 @@ public class ConnectorIaasControllerTest {
         when(connectorIaasClient.createInstancesIfNotExist(anyString(),
                                                            anyString(),
                                                            anyString(),
-                                                           anySet())).thenReturn(instanceIds);
+                                                           anyMap())).thenReturn(instanceIds);
 
-        Set<JSONObject> existingInstances = Sets.newHashSet(new JSONObject());
+        Map<String, Set<String>> existingInstances = Maps.newHashMap();
+        existingInstances.put("other_tag", Sets.newHashSet("789"));
 
-        when(connectorIaasClient.getAllJsonInstancesByInfrastructureId("node_source_name")).thenReturn(existingInstances);
+        when(connectorIaasClient.getInstanceIdsByTag("node_source_name", "node_source_name")).thenReturn(existingInstances);
 
         Set<String> instancesIds = connectorIaasController.createInstances("node_source_name",
                                                                            "node_source_name",
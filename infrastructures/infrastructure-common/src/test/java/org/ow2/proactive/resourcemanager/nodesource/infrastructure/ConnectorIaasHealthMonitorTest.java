@@ -0,0 +1,95 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+
+public class ConnectorIaasHealthMonitorTest {
+
+    private final List<RestClient> probedClients = new CopyOnWriteArrayList<>();
+
+    private RestClient restClient;
+
+    private ConnectorIaasHealthMonitor healthMonitor;
+
+    @Before
+    public void init() {
+        restClient = Mockito.mock(RestClient.class);
+        healthMonitor = new ConnectorIaasHealthMonitor(restClient, probedClients::add, 20);
+    }
+
+    @Test
+    public void testProbeUpdatesHealthState() throws InterruptedException {
+
+        healthMonitor.retain();
+        healthMonitor.start();
+        waitForProbes(1);
+
+        assertThat(probedClients.get(0), is(sameInstance(restClient)));
+        assertThat(healthMonitor.isHealthy(), is(true));
+
+        healthMonitor.release();
+
+    }
+
+    @Test
+    public void testProbesStoppedWhenLastUserReleases() throws InterruptedException {
+
+        healthMonitor.retain();
+        healthMonitor.retain();
+        healthMonitor.start();
+
+        assertThat(healthMonitor.release(), is(1));
+        assertThat(healthMonitor.isStarted(), is(true));
+
+        assertThat(healthMonitor.release(), is(0));
+        assertThat(healthMonitor.isStarted(), is(false));
+
+        // a stopped monitor cannot be started again
+        healthMonitor.start();
+        assertThat(healthMonitor.isStarted(), is(false));
+
+    }
+
+    private void waitForProbes(int nbProbes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (probedClients.size() < nbProbes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(probedClients.size() >= nbProbes, is(true));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+
+public class DefaultInstanceCountPlannerTest {
+
+    private final DefaultInstanceCountPlanner planner = new DefaultInstanceCountPlanner();
+
+    @Test
+    public void testLastInstanceRunsTheRemainingNodes() {
+
+        DeploymentPlan plan = planner.plan(new DeploymentRequest(5,
+                                                                 Collections.emptyMap(),
+                                                                 0,
+                                                                 0,
+                                                                 Collections.emptyMap(),
+                                                                 10,
+                                                                 2,
+                                                                 false));
+
+        assertThat(plan.getNbInstancesToCreate(), is(3));
+        assertThat(plan.getNbNodesOnLastInstance(), is(1));
+        assertThat(plan.getNbNodesToDeploy(), is(5));
+
+    }
+
+    @Test
+    public void testPartiallyUsedInstancesFilledFirst() {
+
+        Map<String, Integer> nbNodesPerExistingInstance = ImmutableMap.of("full", 4, "half", 2, "almostFull", 3);
+
+        DeploymentPlan plan = planner.plan(new DeploymentRequest(6,
+                                                                 Collections.emptyMap(),
+                                                                 9,
+                                                                 0,
+                                                                 nbNodesPerExistingInstance,
+                                                                 10,
+                                                                 4,
+                                                                 true));
+
+        assertThat(plan.getNbNodesOnExistingInstances(), is(ImmutableMap.of("almostFull", 1, "half", 2)));
+        assertThat(plan.getNbInstancesToCreate(), is(1));
+        assertThat(plan.getNbNodesOnLastInstance(), is(3));
+
+    }
+
+    @Test
+    public void testDeployingNodesReduceTheNodesToDeploy() {
+
+        Map<String, Integer> dynamicPolicyParameters = ImmutableMap.of(AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY,
+                                                                       7,
+                                                                       AbstractAddonInfrastructure.MAX_NODES_KEY,
+                                                                       10);
+
+        // the policy decided to deploy 5 nodes while 2 others were still deploying
+        DeploymentPlan plan = planner.plan(new DeploymentRequest(5,
+                                                                 dynamicPolicyParameters,
+                                                                 2,
+                                                                 2,
+                                                                 ImmutableMap.of("instance", 2),
+                                                                 10,
+                                                                 2,
+                                                                 false));
+
+        assertThat(plan.getNbInstancesToCreate(), is(2));
+        assertThat(plan.getNbNodesToDeploy(), is(3));
+
+    }
+
+    @Test
+    public void testMaxNumberOfInstances() {
+
+        Map<String, Integer> dynamicPolicyParameters = ImmutableMap.of(AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY,
+                                                                       12,
+                                                                       AbstractAddonInfrastructure.MAX_NODES_KEY,
+                                                                       20);
+
+        DeploymentPlan plan = planner.plan(new DeploymentRequest(10,
+                                                                 dynamicPolicyParameters,
+                                                                 2,
+                                                                 0,
+                                                                 ImmutableMap.of("instance", 2),
+                                                                 4,
+                                                                 2,
+                                                                 false));
+
+        assertThat(plan.getNbInstancesToCreate(), is(3));
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDynamicPolicyRequestWithoutMaxNodes() {
+
+        planner.plan(new DeploymentRequest(5,
+                                           ImmutableMap.of(AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY, 7),
+                                           0,
+                                           0,
+                                           Collections.emptyMap(),
+                                           10,
+                                           2,
+                                           false));
+
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class InfrastructureExecutorTest {
+
+    private InfrastructureExecutor infrastructureExecutor;
+
+    @Before
+    public void init() {
+        infrastructureExecutor = new InfrastructureExecutor("test-executor", 1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        infrastructureExecutor.shutdown();
+    }
+
+    @Test
+    public void testSubmitterRunsTaskWhenSaturated() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        infrastructureExecutor.submit(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        started.await(10, TimeUnit.SECONDS);
+        infrastructureExecutor.submit(() -> {
+        });
+
+        Thread submitter = Thread.currentThread();
+        String runningThread = infrastructureExecutor.submit(() -> Thread.currentThread().getName())
+                                                     .get(10, TimeUnit.SECONDS);
+
+        assertThat(runningThread, is(submitter.getName()));
+        assertThat(infrastructureExecutor.getActiveCount(), is(1));
+        assertThat(infrastructureExecutor.getQueueSize(), is(1));
+
+        release.countDown();
+
+    }
+
+    @Test
+    public void testDeferrableTaskNotRunBySubmitterWhenSaturated() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        infrastructureExecutor.submit(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        started.await(10, TimeUnit.SECONDS);
+
+        assertThat(infrastructureExecutor.trySubmit(() -> {
+        }), is(true));
+        assertThat(infrastructureExecutor.trySubmit(() -> {
+            throw new IllegalStateException("Run by the submitter");
+        }), is(false));
+        assertThat(infrastructureExecutor.getQueueSize(), is(1));
+
+        release.countDown();
+        infrastructureExecutor.shutdown();
+
+        assertThat(infrastructureExecutor.trySubmit(() -> {
+        }), is(false));
+
+    }
+
+    @Test
+    public void testShutdown() {
+
+        infrastructureExecutor.shutdown();
+
+        assertThat(infrastructureExecutor.isShutdown(), is(true));
+
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+
+public class InfrastructureStateSnapshotTest {
+
+    @Test
+    public void testMissingInstances() {
+
+        InfrastructureStateSnapshot snapshot = newSnapshot(InfrastructureStateSnapshot.CURRENT_VERSION, 3);
+
+        assertThat(snapshot.getMissingInstances(ImmutableSet.of("instance1")),
+                   is(ImmutableSet.of("instance2", "instance3")));
+        assertThat(snapshot.getMissingInstances(ImmutableSet.of("instance1", "instance2", "instance3")).isEmpty(),
+                   is(true));
+        assertThat(snapshot.getNbRegisteredNodes(), is(3));
+
+    }
+
+    @Test
+    public void testValidSnapshot() {
+
+        newSnapshot(InfrastructureStateSnapshot.CURRENT_VERSION, 3).validate();
+
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNewerVersionIsRejected() {
+
+        newSnapshot(InfrastructureStateSnapshot.CURRENT_VERSION + 1, 3).validate();
+
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNegativeNumberOfAcquiredNodesIsRejected() {
+
+        newSnapshot(InfrastructureStateSnapshot.CURRENT_VERSION, -1).validate();
+
+    }
+
+    private InfrastructureStateSnapshot newSnapshot(int version, int nbAcquiredNodes) {
+        Map<String, Set<String>> nodesPerInstance = new HashMap<>();
+        nodesPerInstance.put("instance1", ImmutableSet.of("node1"));
+        nodesPerInstance.put("instance2", ImmutableSet.of("node2", "node3"));
+        Map<String, Serializable> infrastructureVariables = new HashMap<>();
+        infrastructureVariables.put("keyPair", "key");
+        return new InfrastructureStateSnapshot(version,
+                                               nodesPerInstance,
+                                               ImmutableMap.of("instance2", 1),
+                                               ImmutableMap.of("instance3", 2),
+                                               nbAcquiredNodes,
+                                               true,
+                                               infrastructureVariables);
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+
+public class InstanceReconcilerTest {
+
+    private InfrastructureExecutor infrastructureExecutor;
+
+    private final TestInventory inventory = new TestInventory();
+
+    private InstanceReconciler instanceReconciler;
+
+    @Before
+    public void init() {
+        infrastructureExecutor = new InfrastructureExecutor("test-executor", 1, 10);
+        instanceReconciler = new InstanceReconciler("test", inventory, infrastructureExecutor, 0, 0, 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        infrastructureExecutor.shutdown();
+    }
+
+    @Test
+    public void testDriftFixedWhenSeenTwice() {
+
+        inventory.existingInstances = ImmutableSet.of("known", "orphan1", "orphan2", "withoutNodes");
+        inventory.knownInstances = ImmutableSet.of("known", "missing", "withoutNodes");
+        inventory.instancesWithoutNodes = ImmutableSet.of("withoutNodes");
+
+        assertThat(instanceReconciler.reconcile().isEmpty(), is(true));
+        assertThat(instanceReconciler.getLastDrift().getOrphanInstances(), is(ImmutableSet.of("orphan1", "orphan2")));
+
+        InstanceReconciler.Drift drift = instanceReconciler.reconcile();
+
+        assertThat(drift.getOrphanInstances(), is(ImmutableSet.of("orphan1", "orphan2")));
+        assertThat(drift.getMissingInstances(), is(ImmutableSet.of("missing")));
+        assertThat(drift.getInstancesWithoutNodes(), is(ImmutableSet.of("withoutNodes")));
+        // at most one orphan instance is terminated by a reconciliation
+        assertThat(inventory.terminatedInstances.size(), is(1));
+        assertThat(inventory.removedInstances, is(Lists.newArrayList("missing")));
+        assertThat(inventory.redeployedInstances, is(Lists.newArrayList("withoutNodes")));
+        assertThat(instanceReconciler.getNbTerminatedOrphans(), is(1L));
+        assertThat(instanceReconciler.getNbRemovedMissingInstances(), is(1L));
+        assertThat(instanceReconciler.getNbRedeployedInstances(), is(1L));
+
+    }
+
+    @Test
+    public void testDriftNotFixedWhileDeploying() {
+
+        inventory.existingInstances = ImmutableSet.of("known", "orphan");
+        inventory.knownInstances = ImmutableSet.of("known");
+        inventory.deploying = true;
+
+        instanceReconciler.reconcile();
+        instanceReconciler.reconcile();
+
+        assertThat(instanceReconciler.getLastDrift().getOrphanInstances(), is(ImmutableSet.of("orphan")));
+        assertThat(inventory.terminatedInstances.isEmpty(), is(true));
+
+    }
+
+    @Test
+    public void testYoungOrphanInstancesAreNotTerminated() {
+
+        instanceReconciler = new InstanceReconciler("test", inventory, infrastructureExecutor, 0, 0, 1, 60000);
+        inventory.existingInstances = ImmutableSet.of("known", "orphan");
+        inventory.knownInstances = ImmutableSet.of("known", "missing");
+
+        instanceReconciler.reconcile();
+        InstanceReconciler.Drift drift = instanceReconciler.reconcile();
+
+        assertThat(drift.getOrphanInstances().isEmpty(), is(true));
+        assertThat(inventory.terminatedInstances.isEmpty(), is(true));
+        // the other drifts are fixed as soon as they are confirmed
+        assertThat(inventory.removedInstances, is(Lists.newArrayList("missing")));
+
+    }
+
+    @Test
+    public void testEmptyListingDoesNotRemoveInstances() {
+
+        inventory.existingInstances = new HashSet<>();
+        inventory.knownInstances = ImmutableSet.of("known");
+
+        instanceReconciler.reconcile();
+        instanceReconciler.reconcile();
+
+        assertThat(inventory.removedInstances.isEmpty(), is(true));
+
+    }
+
+    @Test
+    public void testFailedListingSkipsReconciliation() {
+
+        inventory.existingInstances = null;
+
+        assertThat(instanceReconciler.reconcile(), is(nullValue()));
+        assertThat(instanceReconciler.getNbFailedListings(), is(1L));
+        assertThat(instanceReconciler.getNbReconciliations(), is(0L));
+
+    }
+
+    private static class TestInventory implements InstanceReconciler.Inventory {
+
+        private Set<String> existingInstances = new HashSet<>();
+
+        private Set<String> knownInstances = new HashSet<>();
+
+        private Set<String> instancesWithoutNodes = new HashSet<>();
+
+        private boolean deploying = false;
+
+        private final List<String> terminatedInstances = new CopyOnWriteArrayList<>();
+
+        private final List<String> removedInstances = new CopyOnWriteArrayList<>();
+
+        private final List<String> redeployedInstances = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Set<String> listExistingInstances() {
+            return existingInstances;
+        }
+
+        @Override
+        public Set<String> getKnownInstances() {
+            return knownInstances;
+        }
+
+        @Override
+        public Set<String> getInstancesWithoutNodes() {
+            return instancesWithoutNodes;
+        }
+
+        @Override
+        public boolean isDeploying() {
+            return deploying;
+        }
+
+        @Override
+        public void terminateOrphanInstance(String instanceId) {
+            terminatedInstances.add(instanceId);
+        }
+
+        @Override
+        public void removeMissingInstances(Set<String> instanceIds) {
+            removedInstances.addAll(instanceIds);
+        }
+
+        @Override
+        public boolean redeployNodes(Set<String> instanceIds) {
+            redeployedInstances.addAll(instanceIds);
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+
+/**
+ * Compares the heap used by the nodes per instance map when the node names of an instance
+ * are held in a concurrent hash set, as previously, and in an immutable set with interned
+ * instance ids. The node names and instance ids are included in the measures. It is run as a
+ * plain main on the test classpath, with the serial collector and a fixed heap size:
+ * {@code java -XX:+UseSerialGC -Xms512m -Xmx512m org.ow2.proactive.resourcemanager.nodesource.infrastructure.InstanceStateFootprintBenchmark [nbInstances] [nbNodesPerInstance]}
+ */
+public class InstanceStateFootprintBenchmark {
+
+    public static void main(String[] args) {
+        int nbInstances = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int nbNodesPerInstance = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        System.out.println(String.format("%d instances of %d nodes", nbInstances, nbNodesPerInstance));
+        // loads the classes of both structures before measuring
+        AbstractAddonInfrastructure.withNodeName(ConcurrentHashMap.newKeySet(), "node");
+        Interners.newWeakInterner().intern("instance");
+
+        long hashSetsFootprint = measureHeapUsed(() -> {
+            Map<String, Set<String>> nodesPerInstance = new ConcurrentHashMap<>();
+            for (int instance = 0; instance < nbInstances; instance++) {
+                String instanceId = instanceId(instance);
+                for (int node = 0; node < nbNodesPerInstance; node++) {
+                    nodesPerInstance.computeIfAbsent(instanceId, id -> ConcurrentHashMap.newKeySet())
+                                    .add(nodeName(instance, node));
+                }
+            }
+            return nodesPerInstance;
+        });
+        long immutableSetsFootprint = measureHeapUsed(() -> {
+            Interner<String> instanceIds = Interners.newWeakInterner();
+            Map<String, Set<String>> nodesPerInstance = new ConcurrentHashMap<>();
+            for (int instance = 0; instance < nbInstances; instance++) {
+                String instanceId = instanceIds.intern(instanceId(instance));
+                for (int node = 0; node < nbNodesPerInstance; node++) {
+                    nodesPerInstance.put(instanceId,
+                                         AbstractAddonInfrastructure.withNodeName(nodesPerInstance.get(instanceId),
+                                                                                  nodeName(instance, node)));
+                }
+            }
+            // the interner is held by the infrastructure as long as its instances
+            return new Object[] { instanceIds, nodesPerInstance };
+        });
+        System.out.println(String.format("hash sets: %.1f MB, immutable sets: %.1f MB",
+                                         hashSetsFootprint / 1e6,
+                                         immutableSetsFootprint / 1e6));
+    }
+
+    private static String instanceId(int instance) {
+        return "eu-west-1/i-" + String.format("%017x", instance);
+    }
+
+    private static String nodeName(int instance, int node) {
+        return "node-source-" + String.format("%017x", instance) + "_" + node;
+    }
+
+    /**
+     * @return the heap used after a full collection by the object built by the given supplier
+     */
+    private static long measureHeapUsed(Supplier<Object> builder) {
+        long before = usedHeapAfterCollection();
+        Object built = builder.get();
+        long after = usedHeapAfterCollection();
+        // keeps the built object reachable until the second measure
+        if (built.hashCode() == System.nanoTime()) {
+            System.out.println(built);
+        }
+        return after - before;
+    }
+
+    private static long usedHeapAfterCollection() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+}
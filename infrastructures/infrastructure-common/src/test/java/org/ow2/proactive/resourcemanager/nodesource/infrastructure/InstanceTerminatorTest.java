@@ -0,0 +1,166 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+
+public class InstanceTerminatorTest {
+
+    private InfrastructureExecutor infrastructureExecutor;
+
+    private final List<String> terminatedInstances = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void init() {
+        infrastructureExecutor = new InfrastructureExecutor("test-executor", 2, 10);
+    }
+
+    @After
+    public void tearDown() {
+        infrastructureExecutor.shutdown();
+    }
+
+    @Test
+    public void testTerminateQueuedInstancesOnce() throws Exception {
+
+        CountDownLatch release = new CountDownLatch(1);
+        InstanceTerminator instanceTerminator = new InstanceTerminator("test", instanceId -> {
+            awaitQuietly(release);
+            terminatedInstances.add(instanceId);
+        }, infrastructureExecutor, RetryPolicy.NO_RETRY);
+
+        CompletableFuture<Void> first = instanceTerminator.terminate("instance1");
+        CompletableFuture<Void> second = instanceTerminator.terminate("instance2");
+        CompletableFuture<Void> duplicate = instanceTerminator.terminate("instance2");
+        release.countDown();
+
+        CompletableFuture.allOf(first, second, duplicate).get(10, TimeUnit.SECONDS);
+
+        assertThat(terminatedInstances, is(Lists.newArrayList("instance1", "instance2")));
+        assertThat(instanceTerminator.getNbTerminated(), is(2L));
+        assertThat(instanceTerminator.getNbPendingTerminations(), is(0));
+
+    }
+
+    @Test
+    public void testFailedTerminationRetried() throws Exception {
+
+        AtomicInteger attempts = new AtomicInteger(0);
+        InstanceTerminator instanceTerminator = new InstanceTerminator("test", instanceId -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new ConnectorIaasHttpException(503, "unavailable");
+            }
+            terminatedInstances.add(instanceId);
+        }, infrastructureExecutor, new RetryPolicy(3, 1, 1, 10000));
+
+        instanceTerminator.terminate("instance1").get(10, TimeUnit.SECONDS);
+
+        assertThat(attempts.get(), is(3));
+        assertThat(terminatedInstances, is(Lists.newArrayList("instance1")));
+
+    }
+
+    @Test
+    public void testFailedTerminationReported() throws Exception {
+
+        InstanceTerminator instanceTerminator = new InstanceTerminator("test", instanceId -> {
+            throw new ConnectorIaasHttpException(404, "not found");
+        }, infrastructureExecutor, new RetryPolicy(3, 1, 1, 10000));
+
+        try {
+            instanceTerminator.terminate("instance1").get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof ConnectorIaasHttpException, is(true));
+        }
+
+        assertThat(instanceTerminator.getNbFailed(), is(1L));
+        assertThat(instanceTerminator.getNbTerminated(), is(0L));
+
+    }
+
+    @Test
+    public void testTerminationNotRunByRequesterWhenExecutorSaturated() throws Exception {
+
+        InfrastructureExecutor saturatedExecutor = new InfrastructureExecutor("saturated-executor", 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            saturatedExecutor.submit(() -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            started.await(10, TimeUnit.SECONDS);
+            saturatedExecutor.submit(() -> {
+            });
+
+            List<String> terminationThreads = new CopyOnWriteArrayList<>();
+            InstanceTerminator instanceTerminator = new InstanceTerminator("test", instanceId -> {
+                terminationThreads.add(Thread.currentThread().getName());
+                terminatedInstances.add(instanceId);
+            }, saturatedExecutor, RetryPolicy.NO_RETRY);
+
+            CompletableFuture<Void> outcome = instanceTerminator.terminate("instance1");
+
+            assertThat(outcome.isDone(), is(false));
+            assertThat(terminatedInstances.isEmpty(), is(true));
+
+            release.countDown();
+            outcome.get(10, TimeUnit.SECONDS);
+
+            assertThat(terminatedInstances, is(Lists.newArrayList("instance1")));
+            assertThat(terminationThreads.get(0).startsWith("saturated-executor"), is(true));
+        } finally {
+            release.countDown();
+            saturatedExecutor.shutdown();
+        }
+
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
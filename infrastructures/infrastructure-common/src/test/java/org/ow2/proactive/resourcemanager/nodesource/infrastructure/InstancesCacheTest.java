@@ -0,0 +1,183 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+
+public class InstancesCacheTest {
+
+    private final AtomicInteger nbListings = new AtomicInteger();
+
+    @Test
+    public void testListingReusedAndKeptUpToDate() {
+
+        InstancesCache instancesCache = new InstancesCache(60000);
+        Supplier<Map<String, Set<String>>> loader = countedLoader(ImmutableMap.of("tag", ImmutableSet.of("instance1")));
+
+        assertThat(instancesCache.getInstanceIds("infrastructure", "tag", loader), is(ImmutableSet.of("instance1")));
+        instancesCache.addInstances("infrastructure", "tag", ImmutableSet.of("instance2", "instance3"));
+        instancesCache.removeInstance("infrastructure", "instance1");
+
+        assertThat(instancesCache.getInstanceIds("infrastructure", "tag", loader),
+                   is(ImmutableSet.of("instance2", "instance3")));
+        assertThat(nbListings.get(), is(1));
+
+        instancesCache.invalidate("infrastructure");
+
+        assertThat(instancesCache.getInstanceIds("infrastructure", "tag", loader), is(ImmutableSet.of("instance1")));
+        assertThat(nbListings.get(), is(2));
+
+    }
+
+    @Test
+    public void testStaleListingLoadedAgain() throws InterruptedException {
+
+        InstancesCache instancesCache = new InstancesCache(50);
+        Supplier<Map<String, Set<String>>> loader = countedLoader(ImmutableMap.of("tag", ImmutableSet.of("instance1")));
+
+        instancesCache.getInstanceIds("infrastructure", "tag", loader);
+        Thread.sleep(100);
+        instancesCache.getInstanceIds("infrastructure", "tag", loader);
+
+        assertThat(nbListings.get(), is(2));
+
+    }
+
+    @Test
+    public void testFailedListingNotCached() {
+
+        InstancesCache instancesCache = new InstancesCache(60000);
+
+        try {
+            instancesCache.getInstanceIds("infrastructure", "tag", () -> {
+                throw new IllegalStateException("connector-iaas unavailable");
+            });
+            fail("The failure of the listing should be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("connector-iaas unavailable"));
+        }
+
+        Supplier<Map<String, Set<String>>> loader = countedLoader(ImmutableMap.of("tag", ImmutableSet.of("instance1")));
+        assertThat(instancesCache.getInstanceIds("infrastructure", "tag", loader), is(ImmutableSet.of("instance1")));
+        assertThat(nbListings.get(), is(1));
+
+    }
+
+    @Test
+    public void testConcurrentCallersWaitForSingleListing() throws Exception {
+
+        InstancesCache instancesCache = new InstancesCache(60000);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Supplier<Map<String, Set<String>>> loader = blockedLoader(loading, release);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Set<String>> first = executor.submit(() -> instancesCache.getInstanceIds("infrastructure",
+                                                                                           "tag",
+                                                                                           loader));
+            assertThat(loading.await(10, TimeUnit.SECONDS), is(true));
+            Future<Set<String>> second = executor.submit(() -> instancesCache.getInstanceIds("infrastructure",
+                                                                                            "tag",
+                                                                                            loader));
+
+            release.countDown();
+            assertThat(first.get(10, TimeUnit.SECONDS), is(ImmutableSet.of("instance1")));
+            assertThat(second.get(10, TimeUnit.SECONDS), is(ImmutableSet.of("instance1")));
+            assertThat(nbListings.get(), is(1));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+
+    }
+
+    @Test
+    public void testListingLoadedOutsideOfTheMap() throws Exception {
+
+        InstancesCache instancesCache = new InstancesCache(60000);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Set<String>> listing = executor.submit(() -> instancesCache.getInstanceIds("infrastructure",
+                                                                                             "tag",
+                                                                                             blockedLoader(loading,
+                                                                                                           release)));
+            assertThat(loading.await(10, TimeUnit.SECONDS), is(true));
+
+            // the entry of the infrastructure is not locked while its listing is loaded
+            executor.submit(() -> instancesCache.invalidate("infrastructure")).get(5, TimeUnit.SECONDS);
+
+            release.countDown();
+            assertThat(listing.get(10, TimeUnit.SECONDS), is(ImmutableSet.of("instance1")));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+
+    }
+
+    private Supplier<Map<String, Set<String>>> blockedLoader(CountDownLatch loading, CountDownLatch release) {
+        return () -> {
+            nbListings.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ImmutableMap.of("tag", ImmutableSet.of("instance1"));
+        };
+    }
+
+    private Supplier<Map<String, Set<String>>> countedLoader(Map<String, Set<String>> instanceIdsByTag) {
+        return () -> {
+            nbListings.incrementAndGet();
+            return instanceIdsByTag;
+        };
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+
+public class NodeAcquisitionQueueTest {
+
+    private static final Map<String, ?> SMALL_NODES = ImmutableMap.of("image", "small");
+
+    private static final Map<String, ?> LARGE_NODES = ImmutableMap.of("image", "large");
+
+    private final List<String> deployments = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch deploymentsReleased = new CountDownLatch(1);
+
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        deploymentsReleased.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRequestsOfSameConfigurationCoalesced() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", this::blockingDeploy, executor, 4, 10);
+
+        CompletableFuture<Void> first = queue.submit(2, 0, withTotal(SMALL_NODES, 2));
+        waitForDeployments(1);
+        CompletableFuture<Void> second = queue.submit(3, 0, withTotal(SMALL_NODES, 5));
+        CompletableFuture<Void> third = queue.submit(1, 0, withTotal(SMALL_NODES, 6));
+
+        assertThat(queue.getNbPendingAcquisitions(), is(1));
+        assertThat(queue.getNbCoalescedRequests(), is(1L));
+
+        deploymentsReleased.countDown();
+        CompletableFuture.allOf(first, second, third).get(5, TimeUnit.SECONDS);
+
+        // the coalesced requests are deployed once, with the parameters of the latest request
+        assertThat(deployments.size(), is(2));
+        assertThat(deployments.get(0), is("2 nodes " + withTotal(SMALL_NODES, 2)));
+        assertThat(deployments.get(1), is("3 nodes " + withTotal(SMALL_NODES, 6)));
+    }
+
+    @Test
+    public void testRepeatedRequestsNotAddedUp() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", this::blockingDeploy, executor, 4, 10);
+
+        CompletableFuture<Void> running = queue.submit(1, 0, withTotal(SMALL_NODES, 1));
+        waitForDeployments(1);
+        // the policy asks again for the same missing nodes while the first deployment runs
+        List<CompletableFuture<Void>> repeated = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            repeated.add(queue.submit(2, 0, withTotal(SMALL_NODES, 1)));
+        }
+
+        deploymentsReleased.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        CompletableFuture.allOf(repeated.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        assertThat(deployments.size(), is(2));
+        assertThat(deployments.get(1), is("2 nodes " + withTotal(SMALL_NODES, 1)));
+    }
+
+    @Test
+    public void testDifferentConfigurationsDeployedConcurrently() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", this::blockingDeploy, executor, 2, 10);
+
+        CompletableFuture<Void> small = queue.submit(1, 0, SMALL_NODES);
+        CompletableFuture<Void> large = queue.submit(1, 0, LARGE_NODES);
+        CompletableFuture<Void> other = queue.submit(1, 0, ImmutableMap.of("image", "other"));
+        waitForDeployments(2);
+
+        // the third configuration waits for a deployment to complete
+        assertThat(queue.getNbRunningDeployments(), is(2));
+        assertThat(queue.getNbPendingAcquisitions(), is(1));
+
+        deploymentsReleased.countDown();
+        CompletableFuture.allOf(small, large, other).get(5, TimeUnit.SECONDS);
+        assertThat(deployments.size(), is(3));
+    }
+
+    @Test
+    public void testRequestRejectedWhenTooManyPending() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", this::blockingDeploy, executor, 1, 1);
+
+        CompletableFuture<Void> running = queue.submit(1, 0, SMALL_NODES);
+        waitForDeployments(1);
+        CompletableFuture<Void> pending = queue.submit(1, 0, LARGE_NODES);
+        CompletableFuture<Void> rejected = queue.submit(1, 0, ImmutableMap.of("image", "other"));
+
+        assertThat(rejected.isCompletedExceptionally(), is(true));
+        assertThat(queue.getNbRejectedRequests(), is(1L));
+
+        deploymentsReleased.countDown();
+        CompletableFuture.allOf(running, pending).get(5, TimeUnit.SECONDS);
+        assertThat(deployments.size(), is(2));
+    }
+
+    @Test
+    public void testRequestRejectedAfterStartTimeout() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", this::blockingDeploy, executor, 1, 10);
+
+        CompletableFuture<Void> running = queue.submit(1, 0, SMALL_NODES);
+        waitForDeployments(1);
+        CompletableFuture<Void> expired = queue.submit(1, 1, LARGE_NODES);
+        Thread.sleep(50);
+
+        deploymentsReleased.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        try {
+            expired.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("The request should be rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof TimeoutException, is(true));
+        }
+        assertThat(deployments.size(), is(1));
+        assertThat(queue.getNbRejectedRequests(), is(1L));
+    }
+
+    @Test
+    public void testFailedDeploymentReported() throws Exception {
+        NodeAcquisitionQueue queue = new NodeAcquisitionQueue("test", (numberOfNodes, nodeConfiguration) -> {
+            throw new IllegalStateException("deployment failed");
+        }, executor, 1, 10);
+
+        CompletableFuture<Void> failed = queue.submit(1, 0, SMALL_NODES);
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("The deployment should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("deployment failed"));
+        }
+
+        // the queue keeps deploying the requests after a failed deployment
+        assertThat(queue.getNbRunningDeployments(), is(0));
+        CompletableFuture<Void> next = queue.submit(1, 0, SMALL_NODES);
+        try {
+            next.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("The deployment should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("deployment failed"));
+        }
+    }
+
+    private void blockingDeploy(int numberOfNodes, Map<String, ?> nodeConfiguration) throws InterruptedException {
+        deployments.add(numberOfNodes + " nodes " + nodeConfiguration);
+        deploymentsReleased.await(5, TimeUnit.SECONDS);
+    }
+
+    private void waitForDeployments(int nbDeployments) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (deployments.size() < nbDeployments && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(deployments.size(), is(nbDeployments));
+    }
+
+    private static Map<String, ?> withTotal(Map<String, ?> nodeConfiguration, int totalNumberOfNodes) {
+        return ImmutableMap.<String, Object> builder()
+                           .putAll(nodeConfiguration)
+                           .put(AbstractAddonInfrastructure.TOTAL_NUMBER_OF_NODES_KEY, totalNumberOfNodes)
+                           .put(AbstractAddonInfrastructure.MAX_NODES_KEY, 10)
+                           .build();
+    }
+
+}
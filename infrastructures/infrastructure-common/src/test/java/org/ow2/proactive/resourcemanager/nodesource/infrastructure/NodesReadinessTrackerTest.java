@@ -0,0 +1,86 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class NodesReadinessTrackerTest {
+
+    private NodesReadinessTracker nodesReadinessTracker;
+
+    @Before
+    public void init() {
+        nodesReadinessTracker = new NodesReadinessTracker();
+    }
+
+    @Test
+    public void testAwaitReturnsWhenNodesAlreadyAcquired() throws InterruptedException {
+
+        nodesReadinessTracker.update(3);
+
+        assertThat(nodesReadinessTracker.awaitAcquiredNodes(2, 0), is(true));
+
+    }
+
+    @Test
+    public void testAwaitTimesOut() throws InterruptedException {
+
+        nodesReadinessTracker.update(1);
+
+        assertThat(nodesReadinessTracker.awaitAcquiredNodes(2, 100), is(false));
+
+    }
+
+    @Test
+    public void testAwaitCompletesWhenLastNodeIsAcquired() throws Exception {
+
+        CompletableFuture<Boolean> ready = CompletableFuture.supplyAsync(() -> {
+            try {
+                return nodesReadinessTracker.awaitAcquiredNodes(2, 60000);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        });
+
+        nodesReadinessTracker.update(1);
+        Thread.sleep(50);
+        assertThat(ready.isDone(), is(false));
+
+        nodesReadinessTracker.update(2);
+
+        assertThat(ready.get(10, TimeUnit.SECONDS), is(true));
+
+    }
+
+}
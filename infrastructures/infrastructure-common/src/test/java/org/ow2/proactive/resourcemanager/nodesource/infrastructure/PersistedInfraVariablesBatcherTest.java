@@ -0,0 +1,127 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PersistedInfraVariablesBatcherTest {
+
+    private PersistedInfraVariablesBatcher persistedInfraVariablesBatcher;
+
+    private AtomicInteger nbPersistences;
+
+    private Consumer<Runnable> committer;
+
+    @Before
+    public void init() {
+        persistedInfraVariablesBatcher = new PersistedInfraVariablesBatcher();
+        nbPersistences = new AtomicInteger(0);
+        committer = updates -> {
+            synchronized (this) {
+                updates.run();
+                nbPersistences.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testUpdateIsAppliedAndPersisted() {
+
+        int result = persistedInfraVariablesBatcher.update(() -> 42, committer);
+
+        assertThat(result, is(42));
+        assertThat(nbPersistences.get(), is(1));
+
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUpdateExceptionIsThrownToItsCaller() {
+
+        persistedInfraVariablesBatcher.update(() -> {
+            throw new IllegalStateException("failed update");
+        }, committer);
+
+    }
+
+    @Test
+    public void testConcurrentUpdatesArePersistedTogether() throws Exception {
+
+        CountDownLatch firstPersistenceStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPersistence = new CountDownLatch(1);
+        Consumer<Runnable> slowCommitter = updates -> {
+            committer.accept(updates);
+            firstPersistenceStarted.countDown();
+            try {
+                releaseFirstPersistence.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        AtomicInteger counter = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(11);
+        try {
+            List<Future<Integer>> updates = new ArrayList<>();
+            updates.add(executor.submit(() -> persistedInfraVariablesBatcher.update(counter::incrementAndGet,
+                                                                                    slowCommitter)));
+            firstPersistenceStarted.await(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 10; i++) {
+                updates.add(executor.submit(() -> persistedInfraVariablesBatcher.update(counter::incrementAndGet,
+                                                                                        slowCommitter)));
+            }
+            Thread.sleep(100);
+            releaseFirstPersistence.countDown();
+
+            for (Future<Integer> update : updates) {
+                update.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(counter.get(), is(11));
+        assertThat(persistedInfraVariablesBatcher.getNbUpdates(), is(11L));
+        assertThat(nbPersistences.get(), lessThan(11));
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class StripedLocksTest {
+
+    @Test
+    public void testNbStripesRoundedToPowerOfTwo() {
+
+        assertThat(new StripedLocks(1).getNbStripes(), is(1));
+        assertThat(new StripedLocks(16).getNbStripes(), is(16));
+        assertThat(new StripedLocks(17).getNbStripes(), is(32));
+
+    }
+
+    @Test
+    public void testSameKeyUsesSameLock() {
+
+        StripedLocks stripedLocks = new StripedLocks(16);
+
+        assertThat(stripedLocks.getLock("instance1"), is(sameInstance(stripedLocks.getLock("instance1"))));
+
+    }
+
+    @Test
+    public void testDifferentStripesRunConcurrently() throws Exception {
+
+        StripedLocks stripedLocks = new StripedLocks(16);
+        String otherKey = "instance2";
+        while (stripedLocks.getLock(otherKey) == stripedLocks.getLock("instance1")) {
+            otherKey = otherKey + "0";
+        }
+        assertThat(stripedLocks.getLock(otherKey), is(not(sameInstance(stripedLocks.getLock("instance1")))));
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> holder = executor.submit(() -> stripedLocks.withLock("instance1", () -> {
+                locked.countDown();
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }));
+            locked.await(10, TimeUnit.SECONDS);
+
+            assertThat(stripedLocks.withLock(otherKey, () -> true), is(true));
+            assertThat(stripedLocks.getLock("instance1").isLocked(), is(true));
+
+            release.countDown();
+            assertThat(holder.get(10, TimeUnit.SECONDS), is(true));
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+}
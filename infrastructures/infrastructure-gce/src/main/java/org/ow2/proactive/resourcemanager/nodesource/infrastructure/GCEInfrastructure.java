@@ -27,10 +27,8 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
 import java.security.KeyException;
 import java.util.*;
-import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
@@ -42,7 +40,6 @@ import org.ow2.proactive.resourcemanager.rmnode.RMDeployingNode;
 import org.ow2.proactive.resourcemanager.utils.RMNodeStarter;
 import org.scijava.util.StringUtils;
 
-import com.google.common.collect.Maps;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -94,9 +91,6 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
     // wrap the write access to deletingLock, used when performing deleting operation
     private static Lock writeDeletingLock = deletingLock.writeLock();
 
-    // Lock for acquireNodes (dynamic policy)
-    private final transient Lock dynamicAcquireLock = new ReentrantLock();
-
     private boolean isCreatedInfrastructure = false;
 
     // The index of the infrastructure configurable parameters.
@@ -247,30 +241,21 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
     }
 
     @Override
-    public synchronized void acquireNodes(final int numberOfNodes, final Map<String, ?> nodeConfiguration) {
-        logger.info(String.format("Acquiring %d nodes with the configuration: %s.", numberOfNodes, nodeConfiguration));
-
-        nodeSource.executeInParallel(() -> {
-            if (dynamicAcquireLock.tryLock()) {
-                try {
-                    int nbInstancesToDeploy = calNumberOfInstancesToDeploy(numberOfNodes,
-                                                                           nodeConfiguration,
-                                                                           totalNumberOfInstances,
-                                                                           numberOfNodesPerInstance);
-                    if (nbInstancesToDeploy <= 0) {
-                        logger.info("No need to deploy new instances, acquireNodes skipped.");
-                        return;
-                    }
-                    deployInstancesWithFullNodes(nbInstancesToDeploy);
-                } catch (Exception e) {
-                    logger.error("Error during node acquisition", e);
-                } finally {
-                    dynamicAcquireLock.unlock();
-                }
-            } else {
-                logger.info("Infrastructure is busy, acquireNodes skipped.");
-            }
-        });
+    public void acquireNodes(final int numberOfNodes, final Map<String, ?> nodeConfiguration) {
+        requestNodesAcquisition(numberOfNodes, 0, nodeConfiguration);
+    }
+
+    @Override
+    protected void deployRequestedNodes(int numberOfNodes, Map<String, ?> nodeConfiguration) {
+        int nbInstancesToDeploy = calNumberOfInstancesToDeploy(numberOfNodes,
+                                                               nodeConfiguration,
+                                                               totalNumberOfInstances,
+                                                               numberOfNodesPerInstance);
+        if (nbInstancesToDeploy <= 0) {
+            logger.info("No need to deploy new instances, acquireNodes skipped.");
+            return;
+        }
+        deployInstancesWithFullNodes(nbInstancesToDeploy);
     }
 
     /**
@@ -359,7 +344,7 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
             nodeNames.addAll(RMNodeStarter.getWorkersNodeNames(instanceTag, nbNodesPerInstance));
         }
         // declare nodes as "deploying"
-        Executors.newCachedThreadPool().submit(() -> {
+        getInfrastructureExecutor().submit(() -> {
             List<String> deployingNodes = addMultipleDeployingNodes(nodeNames,
                                                                     nodeStartCmd,
                                                                     "Node deployment on Google Compute Engine",
@@ -385,7 +370,7 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
         // Delete the instance when instance doesn't contain any other deploying nodes or persisted nodes
         if (!existOtherDeployingNodesOnInstance(currentNode, instanceTag) &&
             !existRegisteredNodesOnInstance(instanceTag)) {
-            terminateInstance(getInfrastructureId(), instanceTag);
+            requestInstanceTermination(instanceTag);
         }
     }
 
@@ -399,16 +384,25 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
         return false;
     }
 
-    private void terminateInstance(String infrastructureId, String instanceTag) {
-        nodeSource.executeInParallel(() -> {
-            writeDeletingLock.lock();
-            try {
-                connectorIaasController.terminateInstanceByTag(infrastructureId, instanceTag);
-                logger.info("Terminated the instance: " + instanceTag);
-            } finally {
-                writeDeletingLock.unlock();
-            }
-        });
+    @Override
+    protected boolean isOwnInstanceTag(String instanceTag) {
+        // the instances are named by connector-iaas "<infrastructure id>-<suffix>"
+        return instanceTag.startsWith(getInfrastructureId() + "-");
+    }
+
+    @Override
+    protected boolean identifiesInstancesByTag() {
+        return true;
+    }
+
+    @Override
+    protected void terminateInstance(String instanceTag) {
+        writeDeletingLock.lock();
+        try {
+            connectorIaasController.terminateInstanceByTag(getInfrastructureId(), instanceTag);
+        } finally {
+            writeDeletingLock.unlock();
+        }
     }
 
     @Override
@@ -454,33 +448,15 @@ public class GCEInfrastructure extends AbstractAddonInfrastructure {
                              region);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     protected void unregisterNodeAndRemoveInstanceIfNeeded(final String instanceTag, final String nodeName,
             final String infrastructureId, final boolean terminateInstanceIfEmpty) {
-        setPersistedInfraVariable(() -> {
-            // first read from the runtime variables map
-            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
-            // make modifications to the nodesPerInstance map
-            if (nodesPerInstance.get(instanceTag) != null) {
-                nodesPerInstance.get(instanceTag).remove(nodeName);
-                logger.info("Removed node: " + nodeName);
-                if (nodesPerInstance.get(instanceTag).isEmpty()) {
-                    if (terminateInstanceIfEmpty) {
-                        terminateInstance(infrastructureId, instanceTag);
-                    }
-                    nodesPerInstance.remove(instanceTag);
-                    logger.info("Removed instance: " + instanceTag);
-                }
-                // finally write to the runtime variable map
-                decrementNumberOfAcquiredNodesWithLockAndPersist();
-                persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-            } else {
-                logger.error("Cannot remove node " + nodeName + " because instance " + instanceTag +
-                             " is not registered");
-            }
-            return null;
-        });
+        boolean instanceRemoved = updateInstanceState(instanceTag, () -> removeNodeFromInstance(instanceTag,
+                                                                                                nodeName,
+                                                                                                true));
+        if (instanceRemoved && terminateInstanceIfEmpty) {
+            requestInstanceTermination(instanceTag);
+        }
     }
 
     /**
@@ -566,6 +566,8 @@ public class GCEInfrastructureTest {
         when(node.getNodeInformation()).thenReturn(nodeInformation);
         when(nodeInformation.getName()).thenReturn(nodeName);
 
+        when(nodeSource.getName()).thenReturn(INFRASTRUCTURE_ID);
+
         gceInfrastructure.notifyAcquiredNode(node);
 
         assertThat(gceInfrastructure.getNodesPerInstancesMapCopy().get(instanceTag).isEmpty(), is(false));
@@ -610,7 +612,7 @@ public class GCEInfrastructureTest {
         gceInfrastructure.removeNode(node);
 
         verify(proActiveRuntime, times(1)).killNode(nodeName);
-        verify(connectorIaasController).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
+        verify(connectorIaasController, timeout(10000)).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
         assertThat(gceInfrastructure.getNodesPerInstancesMap().isEmpty(), is(true));
     }
 
@@ -650,7 +652,7 @@ public class GCEInfrastructureTest {
 
         gceInfrastructure.notifyDeployingNodeLost(nodeUrl);
 
-        verify(connectorIaasController, times(1)).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
+        verify(connectorIaasController, timeout(10000).times(1)).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
     }
 
     @Test
@@ -771,7 +773,16 @@ public class GCEInfrastructureTest {
 
         gceInfrastructure.notifyDeployingNodeLost(nodeUrl1);
 
-        verify(connectorIaasController, times(1)).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
+        verify(connectorIaasController, timeout(10000).times(1)).terminateInstanceByTag(INFRASTRUCTURE_ID, instanceTag);
+    }
+
+    @Test
+    public void testOnlyNamesDerivedFromItsIdAreOwnInstanceTags() {
+        when(nodeSource.getName()).thenReturn("ns1");
+
+        assertThat(gceInfrastructure.isOwnInstanceTag("ns1-a2f"), is(true));
+        assertThat(gceInfrastructure.isOwnInstanceTag("ns10-a2f"), is(false));
+        assertThat(gceInfrastructure.isOwnInstanceTag("ns1prod-a2f"), is(false));
     }
 
 }
@@ -28,8 +28,6 @@ package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 import java.security.KeyException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.node.Node;
@@ -63,8 +61,6 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
 
     private static final long DEFAULT_NODES_INIT_DELAY = 10 * 60 * 1000;// 10 min
 
-    private final transient Lock acquireLock = new ReentrantLock();
-
     private boolean isInitializedAndCreated = false;
 
     private final transient InitScriptGenerator initScriptGenerator = new InitScriptGenerator();
@@ -215,17 +211,7 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
 
         createOpenstackInfrastructure();
 
-        for (int i = 1; i <= numberOfInstances; i++) {
-            String instanceTag = getInfrastructureId() + "_" + ProActiveCounter.getUniqID();
-            List<String> scripts = createScripts(instanceTag, instanceTag, numberOfNodesPerInstance, params);
-            logger.info("start up script: " + scripts);
-            createOpenstackInstance(instanceTag, scripts, params);
-
-            // Declare nodes are deploying
-            Executors.newCachedThreadPool().submit(() -> {
-                declareNodesAsDeploying(numberOfNodesPerInstance, instanceTag);
-            });
-        }
+        createOpenstackInstances(numberOfInstances, params);
     }
 
     @Override
@@ -234,26 +220,14 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
     }
 
     @Override
-    public synchronized void acquireNodes(final int numberOfNodes, final long startTimeout,
-            final Map<String, ?> nodeConfiguration) {
-        this.nodeSource.executeInParallel(() -> {
-            try {
-                if (acquireLock.tryLock(startTimeout, TimeUnit.MILLISECONDS)) {
-                    try {
-                        OpenstackCustomizableParameter params = getNodeSpecificParameters(nodeConfiguration);
-                        internalAcquireNodes(numberOfNodes, nodeConfiguration, params);
-                    } catch (Exception e) {
-                        logger.error("Error during node acquisition", e);
-                    } finally {
-                        acquireLock.unlock();
-                    }
-                } else {
-                    logger.info("acquireNodes skipped because infrastructure is busy.");
-                }
-            } catch (InterruptedException e) {
-                logger.info("acquireNodes skipped because of InterruptedException:", e);
-            }
-        });
+    public void acquireNodes(final int numberOfNodes, final long startTimeout, final Map<String, ?> nodeConfiguration) {
+        requestNodesAcquisition(numberOfNodes, startTimeout, nodeConfiguration);
+    }
+
+    @Override
+    protected void deployRequestedNodes(int numberOfNodes, Map<String, ?> nodeConfiguration) {
+        OpenstackCustomizableParameter params = getNodeSpecificParameters(nodeConfiguration);
+        internalAcquireNodes(numberOfNodes, nodeConfiguration, params);
     }
 
     @Override
@@ -301,39 +275,38 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
 
     @Override
     public void shutDown() {
+        shutDownInfrastructureExecutor();
         String infrastructureId = getInfrastructureId();
         logger.info("Deleting infrastructure : " + infrastructureId + " and its underlying instances");
         connectorIaasController.terminateInfrastructure(infrastructureId, true);
+        closeConnectorIaasController();
     }
 
     @Override
     protected void unregisterNodeAndRemoveInstanceIfNeeded(final String instanceTag, final String nodeName,
             final String infrastructureId, final boolean terminateInstanceIfEmpty) {
-        setPersistedInfraVariable(() -> {
-            // First read from the runtime variables map
-            //noinspection unchecked
-            nodesPerInstance = (Map<String, Set<String>>) persistedInfraVariables.get(NODES_PER_INSTANCES_KEY);
-            // Make modifications to the nodesPerInstance map
-            if (nodesPerInstance.get(instanceTag) != null) {
-                nodesPerInstance.get(instanceTag).remove(nodeName);
-                logger.info("Removed node: " + nodeName);
-                if (nodesPerInstance.get(instanceTag).isEmpty()) {
-                    if (terminateInstanceIfEmpty) {
-                        connectorIaasController.terminateInstanceByTag(infrastructureId, instanceTag);
-                        logger.info("Instance terminated: " + instanceTag);
-                    }
-                    nodesPerInstance.remove(instanceTag);
-                    logger.info("Removed instance: " + instanceTag);
-                }
-                // Finally write to the runtime variable map
-                decrementNumberOfAcquiredNodesWithLockAndPersist();
-                persistedInfraVariables.put(NODES_PER_INSTANCES_KEY, Maps.newHashMap(nodesPerInstance));
-            } else {
-                logger.error("Cannot remove node " + nodeName + " because instance " + instanceTag +
-                             " is not registered");
-            }
-            return null;
-        });
+        boolean instanceRemoved = updateInstanceState(instanceTag, () -> removeNodeFromInstance(instanceTag,
+                                                                                                nodeName,
+                                                                                                true));
+        if (instanceRemoved && terminateInstanceIfEmpty) {
+            requestInstanceTermination(instanceTag);
+        }
+    }
+
+    @Override
+    protected boolean isOwnInstanceTag(String instanceTag) {
+        // the tag of an instance is "<infrastructure id>_<unique id>"
+        return instanceTag.startsWith(getInfrastructureId() + "_");
+    }
+
+    @Override
+    protected boolean identifiesInstancesByTag() {
+        return true;
+    }
+
+    @Override
+    protected void terminateInstance(String instanceTag) {
+        connectorIaasController.terminateInstanceByTag(getInfrastructureId(), instanceTag);
     }
 
     private void internalAcquireNodes(int numberOfNodes, Map<String, ?> nodeConfiguration,
@@ -352,31 +325,12 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
             // Create Openstack infrastructure (if it does not exist) and initialize its persistent variables
             initializeOpenstackInfrastructure();
 
-            int nbOfDeployedNodes = 0;
-
-            Map<String, Set<String>> instancesAndNodesToDeploy = Maps.newHashMap();
-
-            for (int i = 0; i < instancesToDeploy; i++) {
-
-                // Determine the instance tag
-                String instanceTag = getInfrastructureId() + "_" + ProActiveCounter.getUniqID();
-                logger.info("Deploying Openstack instance with tag " + instanceTag + " and the number of nodes " +
-                            numberOfNodesPerInstance);
+            // Deploy the instances and declare their deploying nodes
+            Map<String, Set<String>> instancesAndNodesToDeploy = createOpenstackInstances(instancesToDeploy, params);
 
-                // Build nodes'start scripts and deploy instance
-                List<String> scripts = createScripts(instanceTag, instanceTag, numberOfNodesPerInstance, params);
-                logger.info("start up script: " + scripts);
-                createOpenstackInstance(instanceTag, scripts, params);
-
-                // Declare deploying nodes
-                Set<String> deployedNodes = declareNodesAsDeploying(numberOfNodesPerInstance, instanceTag);
-
-                // Update the number of deployed instances and nodes
-                nbOfDeployedNodes += numberOfNodesPerInstance;
-                instancesAndNodesToDeploy.put(instanceTag, deployedNodes);
-            }
+            int nbOfDeployedNodes = instancesAndNodesToDeploy.size() * numberOfNodesPerInstance;
 
-            if (!waitForNodesToBeUp(existingNodes + nbOfDeployedNodes)) {
+            if (!waitForAcquiredNodes(existingNodes + nbOfDeployedNodes, nodesInitDelay)) {
                 logger.info("Deployed Openstack instances and nodes will be removed");
                 removeDeployedInstancesAndNodes(instancesAndNodesToDeploy);
             }
@@ -399,6 +353,72 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
         }
     }
 
+    /**
+     * Creates the given number of uniquely tagged instances. The instances are created by batches of
+     * concurrent connector-iaas requests, and the nodes of the instances of a batch are declared as
+     * deploying as soon as the batch is created. An instance which cannot be created does not prevent
+     * the creation of the other ones.
+     *
+     * @return the nodes declared as deploying for each created instance tag
+     */
+    private Map<String, Set<String>> createOpenstackInstances(int instancesToDeploy,
+            OpenstackCustomizableParameter params) {
+
+        Map<String, Set<String>> instancesAndDeployingNodes = Maps.newHashMap();
+        if (instancesToDeploy <= 0) {
+            return instancesAndDeployingNodes;
+        }
+
+        int batchSize = Math.min(instancesToDeploy, getDeploymentMaxParallelInstances());
+        try {
+            for (int batchStart = 0; batchStart < instancesToDeploy; batchStart += batchSize) {
+
+                List<String> instanceTags = new ArrayList<>();
+                List<Callable<Set<String>>> creations = new ArrayList<>();
+                for (int i = batchStart; i < Math.min(instancesToDeploy, batchStart + batchSize); i++) {
+                    String instanceTag = getInfrastructureId() + "_" + ProActiveCounter.getUniqID();
+                    logger.info("Deploying Openstack instance with tag " + instanceTag + " and the number of nodes " +
+                                numberOfNodesPerInstance);
+                    List<String> scripts = createScripts(instanceTag, instanceTag, numberOfNodesPerInstance, params);
+                    logger.info("start up script: " + scripts);
+                    instanceTags.add(instanceTag);
+                    creations.add(() -> createOpenstackInstance(instanceTag, scripts, params));
+                }
+
+                List<Future<Set<String>>> createdInstances = getInfrastructureExecutor().invokeAll(creations);
+
+                for (int i = 0; i < instanceTags.size(); i++) {
+                    String instanceTag = instanceTags.get(i);
+                    try {
+                        createdInstances.get(i).get();
+                        instancesAndDeployingNodes.put(instanceTag, declareDeployingNodes(instanceTag));
+                    } catch (ExecutionException e) {
+                        logger.error("Openstack instance with tag " + instanceTag + " could not be created",
+                                     e.getCause());
+                    }
+                }
+                logger.info(String.format("Openstack instances created: %d/%d",
+                                          instancesAndDeployingNodes.size(),
+                                          instancesToDeploy));
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while creating Openstack instances", e);
+            Thread.currentThread().interrupt();
+        }
+
+        return instancesAndDeployingNodes;
+    }
+
+    private Set<String> declareDeployingNodes(String instanceTag) {
+        try {
+            return declareNodesAsDeploying(numberOfNodesPerInstance, instanceTag);
+        } catch (RuntimeException e) {
+            // the nodes will still register when they are started, only their deploying state is not shown
+            logger.warn("Could not declare the deploying nodes of instance " + instanceTag, e);
+            return new HashSet<>();
+        }
+    }
+
     protected Set<String> declareNodesAsDeploying(int nodesInCurrentInstance, String nodeBaseName) {
 
         Set<String> nodes = new HashSet<>();
@@ -451,9 +471,9 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
         }
     }
 
-    private void createOpenstackInstance(String instanceTag, List<String> scripts,
+    private Set<String> createOpenstackInstance(String instanceTag, List<String> scripts,
             OpenstackCustomizableParameter params) {
-        connectorIaasController.createOpenstackInstance(getInfrastructureId(),
+        return connectorIaasController.createOpenstackInstance(getInfrastructureId(),
                                                         instanceTag,
                                                         params.getImage(),
                                                         1,
@@ -465,36 +485,13 @@ public class OpenstackInfrastructure extends AbstractAddonInfrastructure {
                                                         scripts);
     }
 
-    private boolean waitForNodesToBeUp(int totalNodes) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Callable<Object> task = () -> {
-
-            while (getNumberOfAcquiredNodesWithLock() < totalNodes) {
-                logger.info("Waiting for " + (totalNodes - getNumberOfAcquiredNodesWithLock()) + " nodes to be up");
-                TimeUnit.SECONDS.sleep(30);
-            }
-
-            return nodeSource.getNodesCount();
-        };
-        Future<Object> future = executor.submit(task);
-        try {
-            future.get(nodesInitDelay, TimeUnit.MILLISECONDS);
-            return true;
-        } catch (TimeoutException | InterruptedException | ExecutionException ex) {
-            logger.error("A problem occurred while acquiring nodes.", ex);
-            return false;
-        } finally {
-            future.cancel(true);
-        }
-    }
-
     private void removeDeployedInstancesAndNodes(Map<String, Set<String>> deployedInstancesAndNodes) {
         for (Map.Entry<String, Set<String>> instanceWithNodes : deployedInstancesAndNodes.entrySet()) {
             String instanceTag = instanceWithNodes.getKey();
             for (String nodeName : instanceWithNodes.getValue()) {
                 unregisterNodeAndRemoveInstanceIfNeeded(instanceTag, nodeName, getInfrastructureId(), true);
             }
-            connectorIaasController.terminateInstanceByTag(getInfrastructureId(), instanceTag);
+            requestInstanceTermination(instanceTag);
         }
     }
 
@@ -30,11 +30,19 @@ import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.security.KeyException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hamcrest.Matchers;
 import org.junit.Before;
@@ -373,7 +381,7 @@ public class OpenstackInfrastructureTest {
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstanceByTag("node_source_name", "123");
+        verify(connectorIaasController, timeout(10000)).terminateInstanceByTag("node_source_name", "123");
 
         assertThat(openstackInfrastructure.getNodesPerInstancesMap().isEmpty(), is(true));
 
@@ -421,6 +429,155 @@ public class OpenstackInfrastructureTest {
 
     }
 
+    @Test
+    public void testInstancesCreatedByBatches() throws KeyException {
+
+        OpenstackInfrastructure infrastructure = configureSpiedInfrastructure(5);
+        doReturn(2).when(infrastructure).getDeploymentMaxParallelInstances();
+
+        AtomicInteger runningCreations = new AtomicInteger(0);
+        AtomicInteger maxRunningCreations = new AtomicInteger(0);
+        when(connectorIaasController.createOpenstackInstance(anyString(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anyInt(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anySet(),
+                                                             any(int[].class),
+                                                             anyList())).thenAnswer(invocation -> {
+                                                                 maxRunningCreations.accumulateAndGet(runningCreations.incrementAndGet(),
+                                                                                                      Math::max);
+                                                                 Thread.sleep(100);
+                                                                 runningCreations.decrementAndGet();
+                                                                 return Sets.newHashSet((String) invocation.getArguments()[1]);
+                                                             });
+
+        infrastructure.acquireNode();
+
+        verify(connectorIaasController, times(5)).createOpenstackInstance(anyString(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anyInt(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anySet(),
+                                                                          any(int[].class),
+                                                                          anyList());
+        assertThat(maxRunningCreations.get(), is(2));
+        verify(infrastructure, times(5)).declareNodesAsDeploying(anyInt(), anyString());
+    }
+
+    @Test
+    public void testFailedInstanceCreationDoesNotBlockOtherInstances() throws KeyException {
+
+        OpenstackInfrastructure infrastructure = configureSpiedInfrastructure(4);
+        doReturn(2).when(infrastructure).getDeploymentMaxParallelInstances();
+
+        AtomicInteger creations = new AtomicInteger(0);
+        List<String> failedInstanceTags = new CopyOnWriteArrayList<>();
+        List<String> createdInstanceTags = new CopyOnWriteArrayList<>();
+        when(connectorIaasController.createOpenstackInstance(anyString(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anyInt(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anyString(),
+                                                             anySet(),
+                                                             any(int[].class),
+                                                             anyList())).thenAnswer(invocation -> {
+                                                                 String instanceTag = (String) invocation.getArguments()[1];
+                                                                 if (creations.incrementAndGet() == 1) {
+                                                                     failedInstanceTags.add(instanceTag);
+                                                                     throw new IllegalStateException("quota exceeded");
+                                                                 }
+                                                                 createdInstanceTags.add(instanceTag);
+                                                                 return Sets.newHashSet(instanceTag);
+                                                             });
+
+        infrastructure.acquireNode();
+
+        // the failed creation does not prevent the creation of the other instances, in the same batch or not
+        verify(connectorIaasController, times(4)).createOpenstackInstance(anyString(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anyInt(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anyString(),
+                                                                          anySet(),
+                                                                          any(int[].class),
+                                                                          anyList());
+        assertThat(failedInstanceTags.size(), is(1));
+        assertThat(createdInstanceTags.size(), is(3));
+
+        // only the nodes of the created instances are declared as deploying
+        verify(infrastructure, times(3)).declareNodesAsDeploying(anyInt(), anyString());
+        for (String createdInstanceTag : createdInstanceTags) {
+            verify(infrastructure).declareNodesAsDeploying(1, createdInstanceTag);
+        }
+        verify(infrastructure, never()).declareNodesAsDeploying(anyInt(), eq(failedInstanceTags.get(0)));
+    }
+
+    /**
+     * @return a spy of the infrastructure configured with the given number of instances, whose
+     * deploying nodes are not declared to the node source
+     */
+    private OpenstackInfrastructure configureSpiedInfrastructure(int numberOfInstances) throws KeyException {
+
+        when(nodeSource.getName()).thenReturn("node source name");
+
+        when(nodeSource.getAdministrator()).thenReturn(client);
+
+        when(client.getCredentials()).thenReturn(Credentials.getCredentialsBase64(rmCreds.getBytes()));
+
+        openstackInfrastructure.nodeSource = nodeSource;
+
+        openstackInfrastructure.configure("username",
+                                          "password",
+                                          "domain",
+                                          "endpoint",
+                                          "scopePrefix",
+                                          "scopeValue",
+                                          "region",
+                                          "identityVersion",
+                                          "openstack-image",
+                                          "3",
+                                          "",
+                                          "publicKeyName",
+                                          String.valueOf(numberOfInstances),
+                                          "1",
+                                          "http://localhost:8088/connector-iaas",
+                                          "test.activeeon.com",
+                                          "wget -nv test.activeeon.com/rest/node.jar",
+                                          "-Dnew=value",
+                                          240000,
+                                          STARTUP_SCRIPT);
+
+        openstackInfrastructure.connectorIaasController = connectorIaasController;
+
+        openstackInfrastructure.setRmUrl("http://test.activeeon.com");
+
+        OpenstackInfrastructure infrastructure = spy(openstackInfrastructure);
+        doAnswer(invocation -> Sets.newHashSet((String) invocation.getArguments()[1])).when(infrastructure)
+                                                                                     .declareNodesAsDeploying(anyInt(),
+                                                                                                              anyString());
+        return infrastructure;
+    }
+
+    @Test
+    public void testOnlyTagsDerivedFromItsIdAreOwnInstanceTags() {
+        when(nodeSource.getName()).thenReturn("ns1");
+        openstackInfrastructure.nodeSource = nodeSource;
+
+        assertThat(openstackInfrastructure.isOwnInstanceTag("ns1_123"), is(true));
+        assertThat(openstackInfrastructure.isOwnInstanceTag("ns10_123"), is(false));
+        assertThat(openstackInfrastructure.isOwnInstanceTag("ns1-prod_123"), is(false));
+    }
+
     @Test
     public void testGetDescription() {
         assertThat(openstackInfrastructure.toString().split(" ")[0], Matchers.startsWith("OpenstackInfrastructure"));
@@ -25,14 +25,20 @@
  */
 package org.ow2.proactive.resourcemanager.nodesource.infrastructure;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.objectweb.proactive.core.node.Node;
 import org.ow2.proactive.resourcemanager.exception.RMException;
 import org.ow2.proactive.resourcemanager.nodesource.common.Configurable;
+import org.ow2.proactive.resourcemanager.utils.RMNodeStarter;
 
 import com.google.common.collect.Lists;
 
@@ -48,6 +54,8 @@ public class VMWareInfrastructure extends AbstractAddonInfrastructure {
 
     private static final Logger logger = Logger.getLogger(VMWareInfrastructure.class);
 
+    private static final int NODE_TIMEOUT = 10 * 60 * 1000;// 10 min
+
     @Configurable(description = "The VMWare_Username", sectionSelector = 1, important = true)
     protected String username = null;
 
@@ -217,22 +225,90 @@ public class VMWareInfrastructure extends AbstractAddonInfrastructure {
 
         logger.info("Instances ids created : " + instancesIds);
 
-        for (String instanceId : instancesIds) {
+        deployNodesOnInstances(instancesIds);
+    }
 
-            String fullScript = "-c '" + this.downloadCommand + ";nohup " +
-                                generateDefaultStartNodeCommand(instanceId) + "  &'";
+    /**
+     * Runs the node startup script on the instances by batches, the size of a batch being
+     * the maximum number of instances on which nodes are deployed in parallel, and returns
+     * once all of them are done.
+     */
+    private void deployNodesOnInstances(Set<String> instancesIds) {
+        if (instancesIds.isEmpty()) {
+            return;
+        }
 
-            try {
-                connectorIaasController.executeScriptWithCredentials(getInfrastructureId(),
-                                                                     instanceId,
-                                                                     Lists.newArrayList(fullScript),
-                                                                     vmUsername,
-                                                                     vmPassword);
-            } catch (ScriptNotExecutedException e) {
-                logger.info("Script not executed for instance " + instanceId);
+        List<String> instances = new ArrayList<>(instancesIds);
+        int batchSize = getDeploymentMaxParallelInstances();
+        AtomicInteger processedInstances = new AtomicInteger(0);
+        try {
+            for (List<String> batch : Lists.partition(instances, batchSize)) {
+                List<Callable<Void>> deployments = batch.stream().map(instanceId -> (Callable<Void>) () -> {
+                    deployNodesOnInstance(instanceId);
+                    logger.info(String.format("Nodes deployment processed on instance %s (%d/%d instances)",
+                                              instanceId,
+                                              processedInstances.incrementAndGet(),
+                                              instances.size()));
+                    return null;
+                }).collect(Collectors.toList());
+
+                getInfrastructureExecutor().invokeAll(deployments);
             }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while deploying nodes on instances " + instancesIds, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deployNodesOnInstance(String instanceId) {
+        String baseNodeName = getBaseNodeName(instanceId);
+
+        String fullScript = "-c '" + this.downloadCommand + ";nohup " +
+                            generateDefaultStartNodeCommand(instanceId, baseNodeName) + "  &'";
+
+        List<String> deployingNodes = declareDeployingNodes(baseNodeName, fullScript);
+
+        try {
+            connectorIaasController.executeScriptWithCredentials(getInfrastructureId(),
+                                                                 instanceId,
+                                                                 Lists.newArrayList(fullScript),
+                                                                 vmUsername,
+                                                                 vmPassword);
+        } catch (ScriptNotExecutedException | RuntimeException e) {
+            logger.error("Error while executing the script on instance " + instanceId, e);
+            // the nodes will not be started, they are not left deploying until their timeout
+            deployingNodes.forEach(deployingNode -> declareDeployingNodeLost(deployingNode,
+                                                                             "The script could not be executed on instance " +
+                                                                                            instanceId + ": " +
+                                                                                            e.getMessage()));
         }
+    }
 
+    /**
+     * @return the URLs of the nodes declared as deploying, empty if they could not be declared
+     */
+    private List<String> declareDeployingNodes(String baseNodeName, String startupScript) {
+        try {
+            List<String> nodeNames = RMNodeStarter.getWorkersNodeNames(baseNodeName, numberOfNodesPerInstance);
+            List<String> deployingNodes = addMultipleDeployingNodes(nodeNames,
+                                                                    startupScript,
+                                                                    "Nodes deployment on VMware",
+                                                                    NODE_TIMEOUT);
+            logger.info("Deploying nodes: " + deployingNodes);
+            return deployingNodes;
+        } catch (RuntimeException e) {
+            // the nodes will still register when they are started, only their deploying state is not shown
+            logger.warn("Could not declare the deploying nodes " + baseNodeName, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return a node name made from the instance id, with the characters which are not
+     * allowed in node names replaced
+     */
+    private static String getBaseNodeName(String instanceId) {
+        return instanceId.replaceAll("[^a-zA-Z0-9_-]", "_");
     }
 
     @Override
@@ -291,7 +367,7 @@ public class VMWareInfrastructure extends AbstractAddonInfrastructure {
         }
     }
 
-    private String generateDefaultStartNodeCommand(String instanceId) {
+    private String generateDefaultStartNodeCommand(String instanceId, String baseNodeName) {
         try {
             String rmUrlToUse = getRmUrl();
 
@@ -299,11 +375,12 @@ public class VMWareInfrastructure extends AbstractAddonInfrastructure {
             return "java -jar node.jar -Dproactive.communication.protocol=" + protocol +
                    " -Dproactive.pamr.router.address=" + rmHostname + " -D" + instanceIdNodeProperty + "=" +
                    instanceId + " " + additionalProperties + " -r " + rmUrlToUse + " -s " + nodeSource.getName() +
-                   " -w " + numberOfNodesPerInstance;
+                   " -n " + baseNodeName + " -w " + numberOfNodesPerInstance;
         } catch (Exception e) {
             logger.error("Exception when generating the command, fallback on default value", e);
             return "java -jar node.jar -D" + instanceIdNodeProperty + "=" + instanceId + " " + additionalProperties +
-                   " -r " + getRmUrl() + " -s " + nodeSource.getName() + " -w " + numberOfNodesPerInstance;
+                   " -r " + getRmUrl() + " -s " + nodeSource.getName() + " -n " + baseNodeName + " -w " +
+                   numberOfNodesPerInstance;
         }
     }
 
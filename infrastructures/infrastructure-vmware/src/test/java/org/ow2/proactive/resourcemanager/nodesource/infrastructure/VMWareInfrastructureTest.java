@@ -31,13 +31,18 @@ import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.objectweb.proactive.core.ProActiveException;
@@ -211,6 +216,14 @@ public class VMWareInfrastructureTest {
                                                                                anyList(),
                                                                                anyString(),
                                                                                anyString());
+
+        ArgumentCaptor<List> scriptsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(connectorIaasController).executeScriptWithCredentials(eq("node_source_name"),
+                                                                     eq("123"),
+                                                                     scriptsCaptor.capture(),
+                                                                     eq("vmUsername"),
+                                                                     eq("vmPassword"));
+        assertThat(scriptsCaptor.getValue().get(0).toString().contains(" -n 123 "), is(true));
     }
 
     @Test
@@ -393,7 +406,7 @@ public class VMWareInfrastructureTest {
 
         verify(proActiveRuntime).killNode("nodename");
 
-        verify(connectorIaasController).terminateInstance("node_source_name", "123");
+        verify(connectorIaasController, timeout(10000)).terminateInstance("node_source_name", "123");
 
         assertThat(vmwareInfrastructure.getNodesPerInstancesMap().isEmpty(), is(true));
 